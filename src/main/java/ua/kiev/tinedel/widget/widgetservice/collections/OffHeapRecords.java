@@ -0,0 +1,110 @@
+package ua.kiev.tinedel.widget.widgetservice.collections;
+
+import lombok.experimental.NonFinal;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-size records in direct memory, addressed by int numbers. Memory is allocated in chunks of about a megabyte,
+ * so that the heap only holds a chunk object per thousands of records and garbage collector has nothing to trace
+ * inside of them. Fields are read and written at byte offsets inside of the record.
+ * <p>
+ * Records are either allocated one by one, reusing freed ones first, or used as an array after
+ * {@link #ensureCapacity(int) ensuring capacity}. Not thread-safe.
+ */
+public class OffHeapRecords {
+
+    public final static int NONE = -1;
+
+    private final static int CHUNK_BYTES = 1 << 20;
+
+    int recordBytes;
+    int chunkShift;
+    int chunkMask;
+    List<ByteBuffer> chunks = new ArrayList<>();
+    // records ever allocated, freed ones are chained through their first field
+    @NonFinal int allocated;
+    @NonFinal int firstFree = NONE;
+    @NonFinal int live;
+
+    public OffHeapRecords(int recordBytes) {
+        if (recordBytes < Integer.BYTES) {
+            throw new IllegalArgumentException("Record must fit at least an int");
+        }
+        this.recordBytes = recordBytes;
+        this.chunkShift = Integer.numberOfTrailingZeros(Math.max(1, Integer.highestOneBit(CHUNK_BYTES / recordBytes)));
+        this.chunkMask = (1 << chunkShift) - 1;
+    }
+
+    /**
+     * Returns number of a record which is not in use, its content is undefined.
+     */
+    public int allocate() {
+        live++;
+        if (firstFree != NONE) {
+            int record = firstFree;
+            firstFree = getInt(record, 0);
+            return record;
+        }
+        if (allocated == Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many records");
+        }
+        ensureCapacity(allocated + 1);
+        return allocated++;
+    }
+
+    public void free(int record) {
+        putInt(record, 0, firstFree);
+        firstFree = record;
+        live--;
+    }
+
+    /**
+     * Number of allocated records which are not freed.
+     */
+    public int size() {
+        return live;
+    }
+
+    /**
+     * Makes records from 0 to the given number available.
+     */
+    public void ensureCapacity(int records) {
+        while ((long) chunks.size() << chunkShift < records) {
+            chunks.add(ByteBuffer.allocateDirect(recordBytes << chunkShift).order(ByteOrder.nativeOrder()));
+        }
+    }
+
+    /**
+     * Frees everything, memory is returned once chunks are collected.
+     */
+    public void clear() {
+        chunks.clear();
+        allocated = 0;
+        firstFree = NONE;
+        live = 0;
+    }
+
+    public int getInt(int record, int field) {
+        return chunks.get(record >>> chunkShift).getInt(offset(record, field));
+    }
+
+    public void putInt(int record, int field, int value) {
+        chunks.get(record >>> chunkShift).putInt(offset(record, field), value);
+    }
+
+    public long getLong(int record, int field) {
+        return chunks.get(record >>> chunkShift).getLong(offset(record, field));
+    }
+
+    public void putLong(int record, int field, long value) {
+        chunks.get(record >>> chunkShift).putLong(offset(record, field), value);
+    }
+
+    private int offset(int record, int field) {
+        return (record & chunkMask) * recordBytes + field;
+    }
+}
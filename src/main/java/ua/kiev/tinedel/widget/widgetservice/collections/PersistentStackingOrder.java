@@ -0,0 +1,501 @@
+package ua.kiev.tinedel.widget.widgetservice.collections;
+
+import lombok.Value;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ObjLongConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Immutable stack of values, each on its own level, e.g. widgets on their zIndexes. Besides visible level
+ * every value has a label, which keeps the same order as levels but does not change when levels are shifted,
+ * so labels can be used to order values in other indexes.
+ * <p>
+ * Implemented as treap ordered by labels. Levels are shifted lazily: node holds pending shift for its children,
+ * so shifting any run of levels costs O(log n) new nodes, like any other change. Old versions stay valid.
+ * <p>
+ * Labels leave gaps for values put in between. When there is no gap left, labels of some neighbours are spread
+ * evenly again and reported to the caller. Labels stay within +-2^52, so they are exact as doubles.
+ */
+public class PersistentStackingOrder<V> {
+
+    public final static long LABEL_BOUND = 1L << 52;
+    // labels of values put on free levels are their levels times this, unless it breaks the order
+    private final static int LABEL_SPACING_SHIFT = 20;
+    // minimum average gap between labels spread after there was no gap left
+    private final static long MIN_GAP = 1L << 10;
+
+    private static final PersistentStackingOrder<?> EMPTY = new PersistentStackingOrder<>(null);
+
+    Node<V> root;
+
+    private PersistentStackingOrder(Node<V> root) {
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentStackingOrder<V> empty() {
+        return (PersistentStackingOrder<V>) EMPTY;
+    }
+
+    /**
+     * Builds the stack of values on strictly ascending levels at once, in linear time, e.g. to load saved state.
+     * Labels are the preferred ones for the levels.
+     */
+    public static <V> PersistentStackingOrder<V> ofSorted(List<V> values, ToIntFunction<V> levelOf) {
+        for (int i = 1; i < values.size(); i++) {
+            if (levelOf.applyAsInt(values.get(i - 1)) >= levelOf.applyAsInt(values.get(i))) {
+                throw new IllegalArgumentException("Levels must be strictly ascending");
+            }
+        }
+        return new PersistentStackingOrder<>(build(values, levelOf, 0, values.size(), 1.0));
+    }
+
+    @Value
+    public static class Entry<V> {
+        V value;
+        int level;
+        long label;
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public V get(int level) {
+        Entry<V> entry = entry(level);
+        return entry == null ? null : entry.value;
+    }
+
+    public Entry<V> entry(int level) {
+        int acc = 0;
+        for (Node<V> node = root; node != null; ) {
+            int nodeLevel = node.level + acc;
+            if (nodeLevel == level) {
+                return new Entry<>(node.value, level, node.label);
+            }
+            acc += node.shift;
+            node = level < nodeLevel ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * Entry on the lowest occupied level which is not below the given one.
+     */
+    public Entry<V> ceilingEntry(int level) {
+        Iterator<Entry<V>> entries = entriesFrom(level).iterator();
+        return entries.hasNext() ? entries.next() : null;
+    }
+
+    /**
+     * Entry on the highest occupied level which is not above the given one.
+     */
+    public Entry<V> floorEntry(int level) {
+        Entry<V> floor = null;
+        int acc = 0;
+        for (Node<V> node = root; node != null; ) {
+            int nodeLevel = node.level + acc;
+            acc += node.shift;
+            if (nodeLevel <= level) {
+                floor = new Entry<>(node.value, nodeLevel, node.label);
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return floor;
+    }
+
+    public Entry<V> entryOf(long label) {
+        int acc = 0;
+        for (Node<V> node = root; node != null; ) {
+            if (node.label == label) {
+                return new Entry<>(node.value, node.level + acc, label);
+            }
+            acc += node.shift;
+            node = label < node.label ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * Number of occupied levels in a row starting from the given one.
+     */
+    public int runLength(int level) {
+        if (entry(level) == null) {
+            return 0;
+        }
+        int first = rank(level);
+        // level minus rank never decreases along the stack and stays the same within run
+        int target = level - first;
+        int last = first;
+        int acc = 0;
+        int offset = 0;
+        for (Node<V> node = root; node != null; ) {
+            int nodeRank = offset + size(node.left);
+            int nodeLevel = node.level + acc;
+            acc += node.shift;
+            if (nodeLevel - nodeRank <= target) {
+                last = nodeRank;
+                offset = nodeRank + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return last - first + 1;
+    }
+
+    /**
+     * Moves the run of occupied levels starting from the given one up by one, so the level becomes free.
+     */
+    public PersistentStackingOrder<V> shift(int level) {
+        int length = runLength(level);
+        if (length == 0) {
+            return this;
+        }
+        Node<V>[] byStart = splitByLevel(root, level);
+        Node<V>[] byEnd = splitByLevel(byStart[1], level + length);
+        return new PersistentStackingOrder<>(merge(byStart[0], merge(shifted(byEnd[0], 1), byEnd[1])));
+    }
+
+    /**
+     * Puts value on the free level. Labels of other values which had to be changed to make space for
+     * the new one are passed to relabeled.
+     */
+    public PersistentStackingOrder<V> insert(int level, V value, ObjLongConsumer<V> relabeled) {
+        if (entry(level) != null) {
+            throw new IllegalArgumentException("Level " + level + " is occupied");
+        }
+
+        int rank = rank(level);
+        int size = size();
+        long lower = rank == 0 ? -LABEL_BOUND : labelAt(rank - 1);
+        long upper = rank == size ? LABEL_BOUND : labelAt(rank);
+        long preferred = (long) level << LABEL_SPACING_SHIFT;
+
+        long label;
+        if (lower < preferred && preferred < upper) {
+            label = preferred;
+        } else if (upper - lower >= 2) {
+            label = lower + (upper - lower) / 2;
+        } else {
+            return relabel(rank, new Node<>(0, value, level, 0, null, null), relabeled);
+        }
+
+        Node<V>[] split = splitByLevel(root, level);
+        return new PersistentStackingOrder<>(merge(merge(split[0], new Node<>(label, value, level, 0, null, null)),
+                split[1]));
+    }
+
+    /**
+     * Replaces value on the occupied level keeping its label.
+     */
+    public PersistentStackingOrder<V> set(int level, V value) {
+        Node<V>[] byStart = splitByLevel(root, level);
+        Node<V>[] byEnd = splitByLevel(byStart[1], level + 1);
+        Node<V> node = byEnd[0];
+        if (node == null) {
+            throw new IllegalArgumentException("Level " + level + " is free");
+        }
+        return new PersistentStackingOrder<>(merge(byStart[0],
+                merge(new Node<>(node.label, value, node.level, 0, null, null), byEnd[1])));
+    }
+
+    public PersistentStackingOrder<V> remove(int level) {
+        if (entry(level) == null) {
+            return this;
+        }
+        Node<V>[] byStart = splitByLevel(root, level);
+        Node<V>[] byEnd = splitByLevel(byStart[1], level + 1);
+        return new PersistentStackingOrder<>(merge(byStart[0], byEnd[1]));
+    }
+
+    /**
+     * Entries from the bottom to the top.
+     */
+    public Iterable<Entry<V>> entries() {
+        return () -> new EntryIterator<V>(root).fromLevel(Integer.MIN_VALUE);
+    }
+
+    /**
+     * Entries on the given level and above, from the bottom to the top.
+     */
+    public Iterable<Entry<V>> entriesFrom(int level) {
+        return () -> new EntryIterator<V>(root).fromLevel(level);
+    }
+
+    /**
+     * Entries starting from the given position counting from the bottom. Subtree sizes are kept in nodes,
+     * so skipping to the position costs O(log n).
+     */
+    public Iterable<Entry<V>> entriesFromRank(int rank) {
+        return () -> new EntryIterator<V>(root).fromRank(rank);
+    }
+
+    // number of values below the level
+    private int rank(int level) {
+        int rank = 0;
+        int acc = 0;
+        for (Node<V> node = root; node != null; ) {
+            int nodeLevel = node.level + acc;
+            acc += node.shift;
+            if (nodeLevel < level) {
+                rank += size(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return rank;
+    }
+
+    private long labelAt(int rank) {
+        Node<V> node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (rank == leftSize) {
+                return node.label;
+            }
+            if (rank < leftSize) {
+                node = node.left;
+            } else {
+                rank -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /*
+     * Finds the smallest window of neighbours around rank which labels can be spread with at least MIN_GAP
+     * between them together with the new node, and gives new labels to all of them.
+     */
+    private PersistentStackingOrder<V> relabel(int rank, Node<V> added, ObjLongConsumer<V> relabeled) {
+        int size = size();
+        for (int half = 1; ; half *= 2) {
+            int from = Math.max(0, rank - half);
+            int to = Math.min(size, rank + half);
+            long lower = from == 0 ? -LABEL_BOUND : labelAt(from - 1);
+            long upper = to == size ? LABEL_BOUND : labelAt(to);
+            long step = (upper - lower) / (to - from + 2);
+            if (step < MIN_GAP && (from > 0 || to < size)) {
+                continue;
+            }
+
+            Node<V>[] byFrom = splitByRank(root, from);
+            Node<V>[] byTo = splitByRank(byFrom[1], to - from);
+
+            List<Entry<V>> window = new ArrayList<>(to - from + 1);
+            new EntryIterator<V>(byTo[0]).fromLevel(Integer.MIN_VALUE).forEachRemaining(window::add);
+            window.add(rank - from, new Entry<>(added.value, added.level, 0));
+
+            Node<V> spread = null;
+            long label = lower;
+            for (int i = 0; i < window.size(); i++) {
+                Entry<V> entry = window.get(i);
+                label += step;
+                spread = merge(spread, new Node<>(label, entry.value, entry.level, 0, null, null));
+                if (i != rank - from) {
+                    relabeled.accept(entry.value, label);
+                }
+            }
+            return new PersistentStackingOrder<>(merge(byFrom[0], merge(spread, byTo[1])));
+        }
+    }
+
+    /*
+     * Balanced tree of values [from, to). Priorities still look random to later changes: priority of the root
+     * is distributed as the largest of that many random ones, bounded by the priority of its parent.
+     */
+    private static <V> Node<V> build(List<V> values, ToIntFunction<V> levelOf, int from, int to, double bound) {
+        if (from == to) {
+            return null;
+        }
+        double priority = bound * Math.pow(ThreadLocalRandom.current().nextDouble(), 1.0 / (to - from));
+        int middle = (from + to) >>> 1;
+        V value = values.get(middle);
+        int level = levelOf.applyAsInt(value);
+        return new Node<>((long) level << LABEL_SPACING_SHIFT, value, level, 0,
+                build(values, levelOf, from, middle, priority), build(values, levelOf, middle + 1, to, priority),
+                (int) (Integer.MIN_VALUE + (long) (priority * 0xFFFFFFFFL)));
+    }
+
+    private static int size(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    // adds delta to levels of the whole subtree
+    private static <V> Node<V> shifted(Node<V> node, int delta) {
+        if (node == null || delta == 0) {
+            return node;
+        }
+        return new Node<>(node.label, node.value, node.level + delta, node.shift + delta, node.left, node.right,
+                node.priority);
+    }
+
+    // the same node with its pending shift passed to the children, so that children can be taken apart
+    private static <V> Node<V> pushed(Node<V> node) {
+        if (node.shift == 0) {
+            return node;
+        }
+        return new Node<>(node.label, node.value, node.level, 0,
+                shifted(node.left, node.shift), shifted(node.right, node.shift), node.priority);
+    }
+
+    private static <V> Node<V> with(Node<V> node, Node<V> left, Node<V> right) {
+        return new Node<>(node.label, node.value, node.level, 0, left, right, node.priority);
+    }
+
+    // [nodes below level, nodes on level and above]
+    @SuppressWarnings("unchecked")
+    private static <V> Node<V>[] splitByLevel(Node<V> node, int level) {
+        if (node == null) {
+            return (Node<V>[]) new Node<?>[]{null, null};
+        }
+        node = pushed(node);
+        if (node.level < level) {
+            Node<V>[] split = splitByLevel(node.right, level);
+            return (Node<V>[]) new Node<?>[]{with(node, node.left, split[0]), split[1]};
+        } else {
+            Node<V>[] split = splitByLevel(node.left, level);
+            return (Node<V>[]) new Node<?>[]{split[0], with(node, split[1], node.right)};
+        }
+    }
+
+    // [first count nodes, the rest]
+    @SuppressWarnings("unchecked")
+    private static <V> Node<V>[] splitByRank(Node<V> node, int count) {
+        if (node == null) {
+            return (Node<V>[]) new Node<?>[]{null, null};
+        }
+        node = pushed(node);
+        int leftSize = size(node.left);
+        if (leftSize < count) {
+            Node<V>[] split = splitByRank(node.right, count - leftSize - 1);
+            return (Node<V>[]) new Node<?>[]{with(node, node.left, split[0]), split[1]};
+        } else {
+            Node<V>[] split = splitByRank(node.left, count);
+            return (Node<V>[]) new Node<?>[]{split[0], with(node, split[1], node.right)};
+        }
+    }
+
+    // every node of lower is below every node of upper
+    private static <V> Node<V> merge(Node<V> lower, Node<V> upper) {
+        if (lower == null) {
+            return upper;
+        }
+        if (upper == null) {
+            return lower;
+        }
+        if (lower.priority > upper.priority) {
+            lower = pushed(lower);
+            return with(lower, lower.left, merge(lower.right, upper));
+        } else {
+            upper = pushed(upper);
+            return with(upper, merge(lower, upper.left), upper.right);
+        }
+    }
+
+    /**
+     * Level of node is its own level plus pending shifts of all its ancestors. Shift of node is pending
+     * for its children only.
+     */
+    private static class Node<V> {
+        long label;
+        V value;
+        int level;
+        int shift;
+        int size;
+        int priority;
+        Node<V> left, right;
+
+        Node(long label, V value, int level, int shift, Node<V> left, Node<V> right) {
+            this(label, value, level, shift, left, right, ThreadLocalRandom.current().nextInt());
+        }
+
+        Node(long label, V value, int level, int shift, Node<V> left, Node<V> right, int priority) {
+            this.label = label;
+            this.value = value;
+            this.level = level;
+            this.shift = shift;
+            this.left = left;
+            this.right = right;
+            this.priority = priority;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+
+    // in-order traversal keeping path to the next node with shifts accumulated above each of them
+    private static class EntryIterator<V> implements Iterator<Entry<V>> {
+        Deque<Node<V>> nodes = new ArrayDeque<>();
+        Deque<Integer> shifts = new ArrayDeque<>();
+        Node<V> root;
+
+        EntryIterator(Node<V> root) {
+            this.root = root;
+        }
+
+        EntryIterator<V> fromLevel(int from) {
+            int acc = 0;
+            for (Node<V> node = root; node != null; ) {
+                int nodeLevel = node.level + acc;
+                if (from <= nodeLevel) {
+                    nodes.push(node);
+                    shifts.push(acc);
+                    acc += node.shift;
+                    node = node.left;
+                } else {
+                    acc += node.shift;
+                    node = node.right;
+                }
+            }
+            return this;
+        }
+
+        EntryIterator<V> fromRank(int rank) {
+            int acc = 0;
+            for (Node<V> node = root; node != null; ) {
+                int leftSize = size(node.left);
+                if (rank <= leftSize) {
+                    nodes.push(node);
+                    shifts.push(acc);
+                    acc += node.shift;
+                    node = node.left;
+                } else {
+                    rank -= leftSize + 1;
+                    acc += node.shift;
+                    node = node.right;
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !nodes.isEmpty();
+        }
+
+        @Override
+        public Entry<V> next() {
+            if (nodes.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Node<V> node = nodes.pop();
+            int acc = shifts.pop();
+            int childAcc = acc + node.shift;
+            for (Node<V> next = node.right; next != null; next = next.left) {
+                nodes.push(next);
+                shifts.push(childAcc);
+                childAcc += next.shift;
+            }
+            return new Entry<>(node.value, node.level + acc, node.label);
+        }
+    }
+}
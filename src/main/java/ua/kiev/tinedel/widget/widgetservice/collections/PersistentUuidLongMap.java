@@ -0,0 +1,272 @@
+package ua.kiev.tinedel.widget.widgetservice.collections;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Immutable map from UUIDs to primitive longs, implemented as compressed hash trie (CHAMP). Keys and values
+ * are kept in flat long arrays of trie nodes: two halves of UUID and the value per entry, no objects per entry
+ * at all. Change copies only nodes on the path to the entry, which are at most 32 entries wide, and old versions
+ * stay valid for anybody still reading them, like {@link PersistentStackingOrder}.
+ */
+public class PersistentUuidLongMap {
+
+    // returned for missing keys, can not be stored
+    public final static long NO_VALUE = Long.MIN_VALUE;
+
+    private final static int BITS = 5;
+    private final static int HASH_BITS = 64;
+
+    private static final PersistentUuidLongMap EMPTY = new PersistentUuidLongMap(Node.EMPTY, 0);
+
+    Node root;
+    int size;
+
+    private PersistentUuidLongMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public static PersistentUuidLongMap empty() {
+        return EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long get(UUID key) {
+        return get(key.getMostSignificantBits(), key.getLeastSignificantBits());
+    }
+
+    /**
+     * Same as {@link #get(UUID)} for keys kept as two halves, saves creating UUID for the lookup.
+     */
+    public long get(long most, long least) {
+        return root.get(most, least, hash(most, least), 0);
+    }
+
+    public boolean containsKey(UUID key) {
+        return get(key) != NO_VALUE;
+    }
+
+    public PersistentUuidLongMap put(UUID key, long value) {
+        return put(key.getMostSignificantBits(), key.getLeastSignificantBits(), value);
+    }
+
+    /**
+     * Same as {@link #put(UUID, long)} for keys kept as two halves.
+     */
+    public PersistentUuidLongMap put(long most, long least, long value) {
+        if (value == NO_VALUE) {
+            throw new IllegalArgumentException("Value is reserved for missing keys");
+        }
+        long hash = hash(most, least);
+        int newSize = root.get(most, least, hash, 0) == NO_VALUE ? size + 1 : size;
+        return new PersistentUuidLongMap(root.put(most, least, hash, 0, value), newSize);
+    }
+
+    public PersistentUuidLongMap remove(UUID key) {
+        if (!containsKey(key)) {
+            return this;
+        }
+        long most = key.getMostSignificantBits(), least = key.getLeastSignificantBits();
+        return new PersistentUuidLongMap(root.remove(most, least, hash(most, least), 0), size - 1);
+    }
+
+    private static long hash(long most, long least) {
+        long h = (most ^ least) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Node holds entries which hash bits at its depth are unique among its keys and child nodes for the others.
+     * Bit i of dataMap or nodeMap tells that the entry or child node for hash bits i is present, and it is stored
+     * at index equal to number of lower bits set. Keys are in pairs (most, least) in keys array.
+     * Nodes below the last bits of hash hold colliding entries as a plain list.
+     */
+    private static class Node {
+        static final Node EMPTY = new Node(0, 0, new long[0], new long[0], new Node[0]);
+
+        int dataMap;
+        int nodeMap;
+        long[] keys;
+        long[] values;
+        Node[] nodes;
+
+        Node(int dataMap, int nodeMap, long[] keys, long[] values, Node[] nodes) {
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.keys = keys;
+            this.values = values;
+            this.nodes = nodes;
+        }
+
+        long get(long most, long least, long hash, int shift) {
+            if (shift >= HASH_BITS) {
+                int i = collisionIndex(most, least);
+                return i < 0 ? NO_VALUE : values[i];
+            }
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int i = index(dataMap, bit);
+                return keys[2 * i] == most && keys[2 * i + 1] == least ? values[i] : NO_VALUE;
+            }
+            if ((nodeMap & bit) != 0) {
+                return nodes[index(nodeMap, bit)].get(most, least, hash, shift + BITS);
+            }
+            return NO_VALUE;
+        }
+
+        Node put(long most, long least, long hash, int shift, long value) {
+            if (shift >= HASH_BITS) {
+                int i = collisionIndex(most, least);
+                return i < 0
+                        ? new Node(0, 0, insertKey(keys, values.length, most, least),
+                        insert(values, values.length, value), nodes)
+                        : new Node(0, 0, keys, replace(values, i, value), nodes);
+            }
+
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int i = index(dataMap, bit);
+                long otherMost = keys[2 * i], otherLeast = keys[2 * i + 1];
+                if (otherMost == most && otherLeast == least) {
+                    return new Node(dataMap, nodeMap, keys, replace(values, i, value), nodes);
+                }
+                // two keys share hash bits on this level, they go one level down together
+                Node child = pair(otherMost, otherLeast, hash(otherMost, otherLeast), values[i],
+                        most, least, hash, value, shift + BITS);
+                return new Node(dataMap ^ bit, nodeMap | bit, removeKey(keys, i), remove(values, i),
+                        insert(nodes, index(nodeMap, bit), child));
+            }
+            if ((nodeMap & bit) != 0) {
+                int i = index(nodeMap, bit);
+                return new Node(dataMap, nodeMap, keys, values,
+                        replace(nodes, i, nodes[i].put(most, least, hash, shift + BITS, value)));
+            }
+            int i = index(dataMap, bit);
+            return new Node(dataMap | bit, nodeMap, insertKey(keys, i, most, least), insert(values, i, value), nodes);
+        }
+
+        // key must be present
+        Node remove(long most, long least, long hash, int shift) {
+            if (shift >= HASH_BITS) {
+                int i = collisionIndex(most, least);
+                return new Node(0, 0, removeKey(keys, i), remove(values, i), nodes);
+            }
+
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int i = index(dataMap, bit);
+                return new Node(dataMap ^ bit, nodeMap, removeKey(keys, i), remove(values, i), nodes);
+            }
+
+            int i = index(nodeMap, bit);
+            Node child = nodes[i].remove(most, least, hash, shift + BITS);
+            if (child.nodes.length == 0 && child.values.length == 1) {
+                // single entry left below is pulled up, so that the trie stays as shallow as possible
+                int at = index(dataMap, bit);
+                return new Node(dataMap | bit, nodeMap ^ bit, insertKey(keys, at, child.keys[0], child.keys[1]),
+                        insert(values, at, child.values[0]), remove(nodes, i));
+            }
+            return new Node(dataMap, nodeMap, keys, values, replace(nodes, i, child));
+        }
+
+        private int collisionIndex(long most, long least) {
+            for (int i = 0; i < values.length; i++) {
+                if (keys[2 * i] == most && keys[2 * i + 1] == least) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static Node pair(long most1, long least1, long hash1, long value1,
+                                 long most2, long least2, long hash2, long value2, int shift) {
+            if (shift >= HASH_BITS) {
+                return new Node(0, 0, new long[]{most1, least1, most2, least2}, new long[]{value1, value2},
+                        new Node[0]);
+            }
+            int bit1 = bit(hash1, shift), bit2 = bit(hash2, shift);
+            if (bit1 == bit2) {
+                return new Node(0, bit1, new long[0], new long[0],
+                        new Node[]{pair(most1, least1, hash1, value1, most2, least2, hash2, value2, shift + BITS)});
+            }
+            return Integer.compareUnsigned(bit1, bit2) < 0
+                    ? new Node(bit1 | bit2, 0, new long[]{most1, least1, most2, least2}, new long[]{value1, value2},
+                    new Node[0])
+                    : new Node(bit1 | bit2, 0, new long[]{most2, least2, most1, least1}, new long[]{value2, value1},
+                    new Node[0]);
+        }
+
+        private static int bit(long hash, int shift) {
+            return 1 << (int) ((hash >>> shift) & 31);
+        }
+
+        private static int index(int map, int bit) {
+            return Integer.bitCount(map & (bit - 1));
+        }
+
+        private static long[] replace(long[] array, int i, long value) {
+            long[] copy = array.clone();
+            copy[i] = value;
+            return copy;
+        }
+
+        private static long[] insert(long[] array, int i, long value) {
+            long[] copy = new long[array.length + 1];
+            System.arraycopy(array, 0, copy, 0, i);
+            copy[i] = value;
+            System.arraycopy(array, i, copy, i + 1, array.length - i);
+            return copy;
+        }
+
+        private static long[] remove(long[] array, int i) {
+            long[] copy = new long[array.length - 1];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 1, copy, i, copy.length - i);
+            return copy;
+        }
+
+        private static long[] insertKey(long[] keys, int i, long most, long least) {
+            long[] copy = new long[keys.length + 2];
+            System.arraycopy(keys, 0, copy, 0, 2 * i);
+            copy[2 * i] = most;
+            copy[2 * i + 1] = least;
+            System.arraycopy(keys, 2 * i, copy, 2 * i + 2, keys.length - 2 * i);
+            return copy;
+        }
+
+        private static long[] removeKey(long[] keys, int i) {
+            long[] copy = new long[keys.length - 2];
+            System.arraycopy(keys, 0, copy, 0, 2 * i);
+            System.arraycopy(keys, 2 * i + 2, copy, 2 * i, copy.length - 2 * i);
+            return copy;
+        }
+
+        private static Node[] replace(Node[] array, int i, Node node) {
+            Node[] copy = array.clone();
+            copy[i] = node;
+            return copy;
+        }
+
+        private static Node[] insert(Node[] array, int i, Node node) {
+            Node[] copy = Arrays.copyOf(array, array.length + 1);
+            System.arraycopy(array, i, copy, i + 1, array.length - i);
+            copy[i] = node;
+            return copy;
+        }
+
+        private static Node[] remove(Node[] array, int i) {
+            Node[] copy = new Node[array.length - 1];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 1, copy, i, copy.length - i);
+            return copy;
+        }
+    }
+}
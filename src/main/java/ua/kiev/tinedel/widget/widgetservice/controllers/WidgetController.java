@@ -2,12 +2,16 @@ package ua.kiev.tinedel.widget.widgetservice.controllers;
 
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
+import ua.kiev.tinedel.widget.widgetservice.models.ContinuationToken;
 import ua.kiev.tinedel.widget.widgetservice.models.CreateValidationGroup;
 import ua.kiev.tinedel.widget.widgetservice.models.UpdateValidationGroup;
 import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.WidgetBatch;
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
 import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
 import ua.kiev.tinedel.widget.widgetservice.services.WidgetService;
 
@@ -23,21 +27,104 @@ import java.util.UUID;
 @Validated
 public class WidgetController {
 
+    public final static String CONTINUATION_TOKEN_HEADER = "X-Continuation-Token";
+    private final static int DEFAULT_PAGE_SIZE = 10;
+
     WidgetService service;
 
+    /**
+     * Pages either by number and size or, when after is given, by zIndex of the last widget of the previous page
+     * and limit. The latter costs the same for any page and does not repeat or skip widgets when widgets of pages
+     * before are added or deleted, but it does when zIndexes are shifted between the pages.
+     */
     @GetMapping()
     public List<Widget> findWidgets(
-            @RequestParam(value = "pageSize", required = false, defaultValue = "10")
-            @Positive int pageSize,
-            @RequestParam(value = "pageNumber", required = false, defaultValue = "1")
-            @Positive int pageNumber
+            @RequestParam(value = "pageSize", required = false)
+            @Positive Integer pageSize,
+            @RequestParam(value = "pageNumber", required = false)
+            @Positive Integer pageNumber,
+            @RequestParam(value = "after", required = false) Integer after,
+            @RequestParam(value = "limit", required = false)
+            @Positive Integer limit
     ) {
-        return service.findAll(pageSize, pageNumber - 1);
+        if (after != null) {
+            if (pageSize != null || pageNumber != null) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                        "Pages after zIndex are limited by limit, not by page size and number");
+            }
+            return service.findAllAfter(after, limit == null ? DEFAULT_PAGE_SIZE : limit);
+        }
+        if (limit != null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Numbered pages are limited by page size");
+        }
+        return service.findAll(pageSize == null ? DEFAULT_PAGE_SIZE : pageSize,
+                pageNumber == null ? 0 : pageNumber - 1);
     }
 
+    /**
+     * When limit is reached, response carries a token in CONTINUATION_TOKEN_HEADER, passing it back as token
+     * parameter returns the next widgets in the same order.
+     */
     @PostMapping("/search")
-    public List<Widget> findWidgets(@RequestBody MBRectangle boundingBox) {
-        return service.findInBoundingBox(boundingBox);
+    public ResponseEntity<List<Widget>> findWidgets(
+            @RequestBody MBRectangle boundingBox,
+            @RequestParam(value = "order", required = false, defaultValue = "BOTTOM_MOST_FIRST") ZOrder order,
+            @RequestParam(value = "limit", required = false, defaultValue = "" + WidgetService.NO_LIMIT)
+            @Positive int limit,
+            @RequestParam(value = "token", required = false) String token
+    ) {
+        List<Widget> found;
+        if (token == null) {
+            found = service.findInBoundingBox(boundingBox, order, limit);
+        } else {
+            ContinuationToken continuation = decode(token);
+            if (continuation.getOrder() != order) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Token was given for other order");
+            }
+            found = service.findInBoundingBoxAfter(boundingBox, order, continuation.getId(), continuation.getZIndex(),
+                    limit);
+        }
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (!found.isEmpty() && found.size() == limit) {
+            Widget last = found.get(found.size() - 1);
+            response.header(CONTINUATION_TOKEN_HEADER,
+                    new ContinuationToken(order, last.getZIndex(), last.getId()).encode());
+        }
+        return response.body(found);
+    }
+
+    private static ContinuationToken decode(String token) {
+        try {
+            return ContinuationToken.decode(token);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+    }
+
+    @PostMapping("/search/count")
+    public int countWidgets(@RequestBody MBRectangle boundingBox) {
+        return service.countInBoundingBox(boundingBox);
+    }
+
+    @GetMapping("/at")
+    public List<Widget> findWidgetsAt(
+            @RequestParam("x") int x,
+            @RequestParam("y") int y,
+            @RequestParam(value = "limit", required = false, defaultValue = "1")
+            @Positive int limit
+    ) {
+        return service.findAtPoint(x, y, limit);
+    }
+
+    @GetMapping("/nearest")
+    public List<Widget> findNearestWidgets(
+            @RequestParam("x") int x,
+            @RequestParam("y") int y,
+            @RequestParam(value = "k", required = false, defaultValue = "1")
+            @Positive int k
+    ) {
+        return service.findNearest(x, y, k);
     }
 
     @GetMapping("/{id}")
@@ -60,6 +147,14 @@ public class WidgetController {
         return service.save(widget);
     }
 
+    /**
+     * Applies creates, updates and deletes in one go, see {@link WidgetService#applyBatch(WidgetBatch)}.
+     */
+    @PostMapping(value = "/batch", consumes = "application/json")
+    public List<Widget> applyBatch(@Valid @RequestBody WidgetBatch batch) {
+        return service.applyBatch(batch);
+    }
+
     @DeleteMapping("/{id}")
     public void delete(@PathVariable("id") UUID id) {
         service.deleteById(id);
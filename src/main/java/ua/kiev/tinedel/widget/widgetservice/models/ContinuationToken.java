@@ -0,0 +1,39 @@
+package ua.kiev.tinedel.widget.widgetservice.models;
+
+import lombok.Value;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Last widget returned by ordered search, given to clients as opaque string to resume the search from. zIndex is
+ * used instead of offset, so that resuming costs the same as the first page. The search resumes from the zIndex
+ * the widget has then, so that zIndexes shifted between the pages do not make it skip or repeat widgets, and
+ * from the zIndex it had only if it was deleted meanwhile.
+ */
+@Value
+public class ContinuationToken {
+    ZOrder order;
+    int zIndex;
+    UUID id;
+
+    public String encode() {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((order + ":" + zIndex + ":" + id).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public static ContinuationToken decode(String token) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.US_ASCII).split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Malformed continuation token");
+            }
+            return new ContinuationToken(ZOrder.valueOf(parts[0]), Integer.parseInt(parts[1]),
+                    UUID.fromString(parts[2]));
+        } catch (IllegalArgumentException e) {
+            // covers bad base64, unknown order, bad number and bad id as well
+            throw new IllegalArgumentException("Malformed continuation token", e);
+        }
+    }
+}
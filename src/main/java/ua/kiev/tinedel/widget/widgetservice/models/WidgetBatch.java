@@ -0,0 +1,37 @@
+package ua.kiev.tinedel.widget.widgetservice.models;
+
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.experimental.Accessors;
+import lombok.experimental.FieldDefaults;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import javax.validation.groups.ConvertGroup;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Changes applied by the service at once: deletes first, then updates and creates, each in the given order
+ * and with the same zIndex rules as single saves.
+ */
+@SuppressWarnings("DefaultAnnotationParam")
+@FieldDefaults(makeFinal = false, level = AccessLevel.PRIVATE)
+@Data
+@Accessors(chain = true)
+public class WidgetBatch {
+
+    @Valid
+    @ConvertGroup(to = CreateValidationGroup.class)
+    @NotNull(message = "Widgets to create must not be null")
+    List<@NotNull Widget> create = new ArrayList<>();
+
+    @Valid
+    @ConvertGroup(to = UpdateValidationGroup.class)
+    @NotNull(message = "Widgets to update must not be null")
+    List<@NotNull Widget> update = new ArrayList<>();
+
+    @NotNull(message = "Ids to delete must not be null")
+    List<@NotNull UUID> delete = new ArrayList<>();
+}
@@ -0,0 +1,6 @@
+package ua.kiev.tinedel.widget.widgetservice.models;
+
+public enum ZOrder {
+    BOTTOM_MOST_FIRST,
+    TOP_MOST_FIRST
+}
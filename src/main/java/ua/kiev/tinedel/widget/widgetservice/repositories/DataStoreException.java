@@ -4,4 +4,8 @@ public class DataStoreException extends RuntimeException {
     public DataStoreException(String message) {
         super(message);
     }
+
+    public DataStoreException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
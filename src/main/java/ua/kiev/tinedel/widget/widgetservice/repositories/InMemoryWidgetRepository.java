@@ -1,57 +1,281 @@
 package ua.kiev.tinedel.widget.widgetservice.repositories;
 
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.experimental.NonFinal;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
+import ua.kiev.tinedel.widget.widgetservice.collections.PersistentStackingOrder;
+import ua.kiev.tinedel.widget.widgetservice.collections.PersistentUuidLongMap;
 import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
 import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
 import ua.kiev.tinedel.widget.widgetservice.rtree.RTree;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.function.Function;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
+/**
+ * Indexes are immutable, writer builds new versions of them sharing most of the structure with the old ones
+ * and publishes them all at once when it releases the write lock. So readers never lock and always see state
+ * after some complete write, while the writer sees its own unpublished changes.
+ * <p>
+ * Widgets are kept in stacking order, which shifts runs of zIndexes lazily, so making space for a widget does not
+ * touch the shifted widgets at all. Stored widgets keep zIndex they were saved with, actual one is put into
+ * widgets returned to callers. Spatial index orders widgets by labels of the stacking order, which do not change
+ * on shifts either.
+ * <p>
+ * Widgets are stored as compact {@link StoredWidget} records, {@link Widget} objects are only created for callers.
+ * <p>
+ * Optionally changes are logged to the {@link WriteAheadLog}. Changes are published to readers before they are
+ * forced to disk, but writers return only after that. Writes are refused once the log is closed or has failed,
+ * before anything is changed, so that readers do not see changes which would be lost on restart. State is saved
+ * to {@link SnapshotFile} from time to time, so that only changes after it are replayed on start.
+ */
+@Slf4j
 @Service
+@ConditionalOnProperty(name = "widgetservice.repository.type", havingValue = "in-memory", matchIfMissing = true)
 public class InMemoryWidgetRepository implements WidgetRepository {
 
-    ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    Map<UUID, Widget> idIndex = new HashMap<>(); // no requirement to maintain order on id
-    NavigableMap<Integer, Widget> zIndexIndex = new TreeMap<>();
-    RTree spatialIndex = new RTree();
+    ReentrantLock lock = new ReentrantLock();
+    // labels of widgets in the stacking order
+    @NonFinal PersistentUuidLongMap idIndex = PersistentUuidLongMap.empty();
+    @NonFinal PersistentStackingOrder<StoredWidget> zOrder = PersistentStackingOrder.empty();
+    @NonFinal RTree<StoredWidget> spatialIndex = new RTree<>(StoredWidget.SHAPE.orderedBy(this::labelOf));
+    @NonFinal volatile Snapshot published = new Snapshot(idIndex, zOrder, spatialIndex.snapshot());
+    WriteAheadLog wal;
+    // sequence number of the last change logged under the current hold of the write lock
+    @NonFinal long unsynced;
+    Path snapshotPath;
+    ScheduledExecutorService snapshotWriter;
 
-    @Override
-    public Optional<Widget> getById(UUID id) {
+    public InMemoryWidgetRepository() {
+        this("", Duration.ZERO, "", Duration.ZERO);
+    }
+
+    /**
+     * With the path of the write-ahead log given, changes are logged there. With the path of the snapshot given,
+     * state is saved there periodically and on close. State is restored from the snapshot and the changes logged
+     * after it.
+     */
+    @Autowired
+    public InMemoryWidgetRepository(
+            @Value("${widgetservice.repository.in-memory.wal.path:}") String walPath,
+            @Value("${widgetservice.repository.in-memory.wal.fsync-interval:10ms}") Duration fsyncInterval,
+            @Value("${widgetservice.repository.in-memory.snapshot.path:}") String snapshotPath,
+            @Value("${widgetservice.repository.in-memory.snapshot.interval:10m}") Duration snapshotInterval) {
+        this.snapshotPath = snapshotPath.isEmpty() ? null : Path.of(snapshotPath);
         try {
-            lock.readLock().lock();
-            return Optional.ofNullable(idIndex.get(id));
+            long sequence = 0;
+            if (this.snapshotPath != null && Files.exists(this.snapshotPath)) {
+                sequence = restore(SnapshotFile.read(this.snapshotPath));
+            }
+            this.wal = walPath.isEmpty()
+                    ? null
+                    : WriteAheadLog.open(Path.of(walPath), fsyncInterval, sequence, new Replay());
+        } catch (IOException e) {
+            throw new DataStoreException("Can not restore widgets", e);
+        }
+        published = new Snapshot(idIndex, zOrder, spatialIndex.snapshot());
+
+        if (this.snapshotPath == null) {
+            this.snapshotWriter = null;
+        } else {
+            this.snapshotWriter = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "widget-snapshot-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotWriter.scheduleWithFixedDelay(this::writeSnapshotInBackground,
+                    snapshotInterval.toMillis(), snapshotInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // loads indexes at once, returns sequence number of the last change in the snapshot
+    private long restore(SnapshotFile.Content snapshot) {
+        zOrder = PersistentStackingOrder.ofSorted(snapshot.getWidgets(), widget -> widget.zIndex);
+        PersistentUuidLongMap labels = PersistentUuidLongMap.empty();
+        for (PersistentStackingOrder.Entry<StoredWidget> entry : zOrder.entries()) {
+            labels = labels.put(entry.getValue().idMost, entry.getValue().idLeast, entry.getLabel());
+        }
+        idIndex = labels;
+        spatialIndex = RTree.bulkLoad(snapshot.getWidgets(), StoredWidget.SHAPE.orderedBy(this::labelOf));
+        return snapshot.getSequence();
+    }
+
+    /**
+     * Saves the current state to the snapshot file and drops changes saved there from the write-ahead log.
+     * Writers wait only while the state is taken and while the log is cut.
+     */
+    void writeSnapshot() throws IOException {
+        PersistentStackingOrder<StoredWidget> state;
+        long sequence = 0;
+        long logBytes = 0;
+        try {
+            acquireWriteLock();
+            state = zOrder;
+            if (wal != null) {
+                sequence = wal.lastAppended();
+                logBytes = wal.appendedBytes();
+            }
         } finally {
-            lock.readLock().unlock();
+            releaseWriteLock();
+        }
+
+        SnapshotFile.write(snapshotPath, sequence, state.size(), () -> StreamSupport
+                .stream(state.entries().spliterator(), false)
+                .map(entry -> entry.getValue().withZIndex(entry.getLevel()))
+                .iterator());
+
+        if (wal != null) {
+            try {
+                acquireWriteLock();
+                wal.dropHead(logBytes);
+            } finally {
+                releaseWriteLock();
+            }
+        }
+    }
+
+    private void writeSnapshotInBackground() {
+        try {
+            writeSnapshot();
+        } catch (IOException | RuntimeException e) {
+            // the next attempt may succeed, the log keeps everything meanwhile
+            log.error("Can not write snapshot to {}", snapshotPath, e);
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class Snapshot {
+        PersistentUuidLongMap idIndex;
+        PersistentStackingOrder<StoredWidget> zOrder;
+        RTree<StoredWidget> spatialIndex;
+
+        Optional<PersistentStackingOrder.Entry<StoredWidget>> entryOf(UUID id) {
+            long label = idIndex.get(id);
+            return label == PersistentUuidLongMap.NO_VALUE ? Optional.empty() : Optional.of(zOrder.entryOf(label));
+        }
+
+        // stored widget as callers should see it
+        Widget visible(StoredWidget stored) {
+            return stored.toWidget(zOrder.entryOf(idIndex.get(stored.idMost, stored.idLeast)).getLevel());
+        }
+
+        static Widget visible(PersistentStackingOrder.Entry<StoredWidget> entry) {
+            return entry.getValue().toWidget(entry.getLevel());
         }
     }
 
+    private Snapshot view() {
+        return lock.isHeldByCurrentThread() ? new Snapshot(idIndex, zOrder, spatialIndex) : published;
+    }
+
+    // order key of widgets in spatial index, only used while widget is indexed
+    private long labelOf(StoredWidget widget) {
+        return idIndex.get(widget.idMost, widget.idLeast);
+    }
+
+    @Override
+    public Optional<Widget> getById(UUID id) {
+        return view().entryOf(id).map(Snapshot::visible);
+    }
+
     @Override
     public List<Widget> findAllOrderByZIndexAsc(int offset, int limit) {
-        try {
-            lock.readLock().lock();
-            return zIndexIndex.values().stream().skip(offset).limit(limit).collect(Collectors.toUnmodifiableList());
-        } finally {
-            lock.readLock().unlock();
+        return StreamSupport.stream(view().zOrder.entriesFromRank(offset).spliterator(), false)
+                .limit(limit).map(Snapshot::visible).collect(Collectors.toUnmodifiableList());
+    }
+
+    @Override
+    public List<Widget> findAllAfterZIndexOrderByZIndexAsc(int afterZIndex, int limit) {
+        if (afterZIndex == Integer.MAX_VALUE) {
+            return List.of();
         }
+        return StreamSupport.stream(view().zOrder.entriesFrom(afterZIndex + 1).spliterator(), false)
+                .limit(limit).map(Snapshot::visible).collect(Collectors.toUnmodifiableList());
     }
 
     @Override
     public List<Widget> findAllInArea(MBRectangle boundingBox) {
-        try {
-            lock.readLock().lock();
-            return spatialIndex.find(boundingBox);
-        } finally {
-            lock.readLock().unlock();
+        Snapshot view = view();
+        List<Widget> found = new ArrayList<>();
+        view.spatialIndex.search(boundingBox, w -> found.add(view.visible(w)));
+        return found;
+    }
+
+    @Override
+    public List<Widget> findAllInAreaOrderByZIndex(MBRectangle boundingBox, ZOrder order, int limit) {
+        Snapshot view = view();
+        List<Widget> found = new ArrayList<>();
+        view.spatialIndex.searchOrderedByZIndex(boundingBox, order == ZOrder.TOP_MOST_FIRST, limit,
+                w -> found.add(view.visible(w)));
+        return found;
+    }
+
+    /**
+     * Spatial index is ordered by labels, so the search starts from the label of the first widget past the cursor.
+     */
+    @Override
+    public List<Widget> findAllInAreaOrderByZIndexAfter(MBRectangle boundingBox, ZOrder order, int afterZIndex,
+                                                        int limit) {
+        Snapshot view = view();
+        boolean topMostFirst = order == ZOrder.TOP_MOST_FIRST;
+        if (afterZIndex == (topMostFirst ? Integer.MIN_VALUE : Integer.MAX_VALUE)) {
+            return List.of();
         }
+        PersistentStackingOrder.Entry<StoredWidget> first = topMostFirst
+                ? view.zOrder.floorEntry(afterZIndex - 1)
+                : view.zOrder.ceilingEntry(afterZIndex + 1);
+        if (first == null) {
+            return List.of();
+        }
+
+        List<Widget> found = new ArrayList<>();
+        view.spatialIndex.searchOrderedByZIndex(boundingBox, topMostFirst, first.getLabel(), limit,
+                w -> found.add(view.visible(w)));
+        return found;
+    }
+
+    @Override
+    public List<Widget> findAllAtPointOrderByZIndexDesc(int x, int y, int limit) {
+        Snapshot view = view();
+        List<Widget> found = new ArrayList<>();
+        view.spatialIndex.searchAtPointOrderedByZIndex(x, y, true, limit, w -> found.add(view.visible(w)));
+        return found;
+    }
+
+    @Override
+    public List<Widget> findNearest(int x, int y, int limit) {
+        Snapshot view = view();
+        List<Widget> found = new ArrayList<>();
+        view.spatialIndex.searchNearest(x, y, limit, w -> found.add(view.visible(w)));
+        return found;
+    }
+
+    @Override
+    public int countInArea(MBRectangle boundingBox) {
+        return view().spatialIndex.count(boundingBox);
     }
 
     @Override
     public Widget save(Widget widget) {
         try {
             acquireWriteLock();
+            checkLogWritable();
             if (widget.getId() == null) {
                 widget.setId(UUID.randomUUID());
             }
@@ -62,36 +286,88 @@ public class InMemoryWidgetRepository implements WidgetRepository {
                 // found widget with different id with same z index
                 throw new DataStoreException("Found another element with same zIndex");
             } else {
-                zIndexIndex.put(widget.getZIndex(), widget);
-                idIndex.put(widget.getId(), widget);
-                spatialIndex.add(widget);
-                return widget;
+                StoredWidget stored = StoredWidget.of(widget);
+                put(stored);
+                appendToLog(wal -> wal.appendSave(stored));
+                return stored.toWidget(stored.zIndex);
             }
         } finally {
             releaseWriteLock();
         }
     }
 
+    /**
+     * Replaces stored widget with the same id if it keeps its zIndex. Widget keeps its label then,
+     * and moving widget is mostly done in place in the spatial index.
+     */
     @Override
-    public Optional<Widget> findByZIndex(int zIndex) {
+    public Optional<Widget> update(Widget widget) {
         try {
-            lock.readLock().lock();
-            return Optional.ofNullable(zIndexIndex.get(zIndex));
+            acquireWriteLock();
+            long label = idIndex.get(widget.getId());
+            PersistentStackingOrder.Entry<StoredWidget> stored =
+                    label == PersistentUuidLongMap.NO_VALUE ? null : zOrder.entryOf(label);
+            if (stored == null || stored.getLevel() != widget.getZIndex()) {
+                return Optional.empty();
+            }
+            checkLogWritable();
+            StoredWidget updated = StoredWidget.of(widget);
+            zOrder = zOrder.set(stored.getLevel(), updated);
+            spatialIndex.update(stored.getValue(), updated);
+            appendToLog(wal -> wal.appendSave(updated));
+            return Optional.of(updated.toWidget(updated.zIndex));
         } finally {
-            lock.readLock().unlock();
+            releaseWriteLock();
         }
     }
 
+    @Override
+    public void saveAll(Collection<Widget> widgets) {
+        try {
+            acquireWriteLock();
+            checkLogWritable();
+            Set<UUID> ids = widgets.stream().map(Widget::getId).filter(Objects::nonNull).collect(Collectors.toSet());
+            Set<Integer> zIndexes = new HashSet<>();
+            for (Widget widget : widgets) {
+                // widgets being replaced by the same batch will free their zIndex
+                if (!zIndexes.add(widget.getZIndex()) || findByZIndex(widget.getZIndex())
+                        .filter(inDb -> !ids.contains(inDb.getId()))
+                        .isPresent()) {
+                    throw new DataStoreException("Found another element with same zIndex");
+                }
+            }
+
+            List<StoredWidget> stored = new ArrayList<>(widgets.size());
+            for (Widget widget : widgets) {
+                if (widget.getId() == null) {
+                    widget.setId(UUID.randomUUID());
+                }
+                stored.add(StoredWidget.of(widget));
+            }
+            putAll(stored);
+            appendToLog(wal -> wal.appendSaveAll(stored));
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    @Override
+    public Optional<Widget> findByZIndex(int zIndex) {
+        return Optional.ofNullable(view().zOrder.entry(zIndex)).map(Snapshot::visible);
+    }
+
+    /**
+     * Shifts the run of zIndexes in the stacking order only, labels and therefore the other indexes stay the same.
+     */
     @Override
     public int updateZIndexToMakeSpaceFor(int zIndex) {
         try {
-            int updated = 0;
             acquireWriteLock();
-            Widget current = zIndexIndex.remove(zIndex);
-            while (current != null) {
-                current.setZIndex(current.getZIndex() + 1);
-                current = zIndexIndex.put(current.getZIndex(), current);
-                updated++;
+            checkLogWritable();
+            int updated = zOrder.runLength(zIndex);
+            if (updated > 0) {
+                zOrder = zOrder.shift(zIndex);
+                appendToLog(wal -> wal.appendShift(zIndex));
             }
             return updated;
         } finally {
@@ -103,31 +379,168 @@ public class InMemoryWidgetRepository implements WidgetRepository {
     public void deleteById(UUID id) {
         try {
             acquireWriteLock();
-            Widget removed = idIndex.remove(id);
-            if (removed != null) {
-                zIndexIndex.remove(removed.getZIndex());
-                spatialIndex.delete(removed);
+            checkLogWritable();
+            if (remove(id)) {
+                appendToLog(wal -> wal.appendDelete(id));
             }
         } finally {
             releaseWriteLock();
         }
     }
 
+    // replaces widget with the same id, zIndex must be free or taken by that widget
+    private void put(StoredWidget widget) {
+        remove(widget.id());
+        insert(widget);
+        spatialIndex.add(widget);
+    }
+
+    private void putAll(List<StoredWidget> widgets) {
+        boolean rebuild = widgets.size() >= idIndex.size();
+        if (rebuild) {
+            spatialIndex.clear();
+        }
+        for (StoredWidget widget : widgets) {
+            remove(widget.id());
+        }
+
+        for (StoredWidget widget : widgets) {
+            insert(widget);
+            if (!rebuild) {
+                spatialIndex.add(widget);
+            }
+        }
+
+        if (rebuild) {
+            // packing everything from scratch is cheaper than inserting comparable amount one by one
+            List<StoredWidget> all = new ArrayList<>(idIndex.size());
+            zOrder.entries().forEach(entry -> all.add(entry.getValue()));
+            spatialIndex = RTree.bulkLoad(all, StoredWidget.SHAPE.orderedBy(this::labelOf));
+        }
+    }
+
+    // puts widget into the stacking order and id index, but not into the spatial one
+    private void insert(StoredWidget widget) {
+        zOrder = zOrder.insert(widget.zIndex, widget, this::relabel);
+        idIndex = idIndex.put(widget.id(), zOrder.entry(widget.zIndex).getLabel());
+    }
+
+    private void relabel(StoredWidget widget, long label) {
+        idIndex = idIndex.put(widget.id(), label);
+        spatialIndex.refreshOrder(widget);
+    }
+
+    private boolean remove(UUID id) {
+        long label = idIndex.get(id);
+        if (label == PersistentUuidLongMap.NO_VALUE) {
+            return false;
+        }
+        PersistentStackingOrder.Entry<StoredWidget> removed = zOrder.entryOf(label);
+        zOrder = zOrder.remove(removed.getLevel());
+        idIndex = idIndex.remove(id);
+        spatialIndex.delete(removed.getValue());
+        return true;
+    }
+
+    private void reset() {
+        idIndex = PersistentUuidLongMap.empty();
+        zOrder = PersistentStackingOrder.empty();
+        spatialIndex.clear();
+    }
+
+    // the write lock must be held, checked before the change so that the change is not applied if it can not be logged
+    private void checkLogWritable() {
+        if (wal != null) {
+            wal.checkWritable();
+        }
+    }
+
+    // the write lock must be held
+    private void appendToLog(Consumer<WriteAheadLog> change) {
+        if (wal != null) {
+            change.accept(wal);
+            unsynced = wal.lastAppended();
+        }
+    }
+
+    /**
+     * Applies changes read from the log, without logging them again.
+     */
+    private class Replay implements WriteAheadLog.Target {
+        @Override
+        public void save(StoredWidget widget) {
+            put(widget);
+        }
+
+        @Override
+        public void saveAll(List<StoredWidget> widgets) {
+            putAll(widgets);
+        }
+
+        @Override
+        public void shift(int zIndex) {
+            zOrder = zOrder.shift(zIndex);
+        }
+
+        @Override
+        public void delete(UUID id) {
+            remove(id);
+        }
+
+        @Override
+        public void clear() {
+            reset();
+        }
+    }
+
     public void acquireWriteLock() {
-        lock.writeLock().lock();
+        lock.lock();
     }
 
+    /**
+     * Releasing the outermost hold publishes everything changed under the lock. With the write-ahead log
+     * it then waits for the changes to be forced to disk. It waits without the lock, so that changes of other
+     * writers made meanwhile are forced together with these.
+     */
     public void releaseWriteLock() {
-        lock.writeLock().unlock();
+        long toSync = 0;
+        if (lock.getHoldCount() == 1) {
+            published = new Snapshot(idIndex, zOrder, spatialIndex.snapshot());
+            toSync = unsynced;
+            unsynced = 0;
+        }
+        lock.unlock();
+        if (toSync > 0) {
+            wal.awaitDurable(toSync);
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        if (snapshotWriter != null) {
+            // not interrupted, as interrupt would close files in the middle of writing
+            snapshotWriter.shutdown();
+            snapshotWriter.awaitTermination(1, TimeUnit.MINUTES);
+            writeSnapshot();
+        }
+        if (wal != null) {
+            try {
+                // writers check the log and append to it under the lock, so none of them sees it closed in between
+                acquireWriteLock();
+                wal.close();
+            } finally {
+                releaseWriteLock();
+            }
+        }
     }
 
     @Override
     public void clear() {
         try {
             acquireWriteLock();
-            idIndex.clear();
-            zIndexIndex.clear();
-            spatialIndex.clear();
+            checkLogWritable();
+            reset();
+            appendToLog(WriteAheadLog::appendClear);
         } finally {
             releaseWriteLock();
         }
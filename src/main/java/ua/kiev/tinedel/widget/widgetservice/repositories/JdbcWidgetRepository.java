@@ -0,0 +1,418 @@
+package ua.kiev.tinedel.widget.widgetservice.repositories;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.experimental.NonFinal;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
+import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
+
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Widgets are kept in an SQL database, but searched in {@link InMemoryWidgetRepository} indexes, which are loaded
+ * from the database on start. So reads never go to the database.
+ * <p>
+ * Changes are applied to the indexes and queued in the order they were made. A flusher thread writes everything
+ * queued once per flush interval, in JDBC batches within a single transaction. Failed transaction is retried with
+ * the same changes on the next flush. Writers do not wait for the database, so changes made since the last flush
+ * are lost on crash, and pending changes pile up in memory while the database is down.
+ * <p>
+ * SQL is written for H2, which is run embedded in file mode, e.g. {@code jdbc:h2:./data/widgets}.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "widgetservice.repository.type", havingValue = "jdbc")
+public class JdbcWidgetRepository implements WidgetRepository {
+
+    private final static String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS widgets (id UUID PRIMARY KEY, "
+            + "x INT NOT NULL, y INT NOT NULL, z_index INT NOT NULL, width INT NOT NULL, height INT NOT NULL, "
+            + "last_modified TIMESTAMP(9) WITH TIME ZONE)";
+    // shifts update ranges of zIndexes
+    private final static String CREATE_INDEX = "CREATE INDEX IF NOT EXISTS widgets_z_index ON widgets (z_index)";
+    private final static String SELECT_ALL = "SELECT id, x, y, z_index, width, height, last_modified FROM widgets";
+    private final static String MERGE = "MERGE INTO widgets (id, x, y, z_index, width, height, last_modified) "
+            + "KEY (id) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private final static String DELETE = "DELETE FROM widgets WHERE id = ?";
+    private final static String SHIFT = "UPDATE widgets SET z_index = z_index + 1 WHERE z_index >= ? AND z_index < ?";
+    private final static String DELETE_ALL = "DELETE FROM widgets";
+
+    InMemoryWidgetRepository indexes = new InMemoryWidgetRepository();
+    String url;
+    String user;
+    String password;
+    long flushIntervalNanos;
+    Thread flusher;
+    // changes not written yet, guarded by the monitor of the repository
+    @NonFinal List<Change> pending = new ArrayList<>();
+    @NonFinal boolean closed;
+    // owned by the flusher, reopened after failures
+    @NonFinal Connection connection;
+
+    public JdbcWidgetRepository(
+            @Value("${widgetservice.repository.jdbc.url:jdbc:h2:./widgets}") String url,
+            @Value("${widgetservice.repository.jdbc.user:sa}") String user,
+            @Value("${widgetservice.repository.jdbc.password:}") String password,
+            @Value("${widgetservice.repository.jdbc.flush-interval:100ms}") Duration flushInterval) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.flushIntervalNanos = flushInterval.toNanos();
+        try {
+            warmUp();
+        } catch (SQLException e) {
+            throw new DataStoreException("Can not load widgets from " + url, e);
+        }
+        this.flusher = new Thread(this::flush, "widget-jdbc-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Change waiting to be written, adds its statements to the batches of the transaction.
+     */
+    private interface Change {
+        void write(Batches batches) throws SQLException;
+    }
+
+    /**
+     * Statements of one transaction. Consecutive changes of the same kind are sent as one batch, and batch
+     * is executed before a change of another kind is added, so that changes are written in their order.
+     */
+    private static class Batches implements AutoCloseable {
+        Connection connection;
+        Map<String, PreparedStatement> statements = new HashMap<>();
+        @NonFinal PreparedStatement batched;
+
+        Batches(Connection connection) {
+            this.connection = connection;
+        }
+
+        PreparedStatement statement(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            if (batched != null && batched != statement) {
+                batched.executeBatch();
+            }
+            batched = statement;
+            return statement;
+        }
+
+        void finish() throws SQLException {
+            if (batched != null) {
+                batched.executeBatch();
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            for (PreparedStatement statement : statements.values()) {
+                statement.close();
+            }
+        }
+    }
+
+    // schema is created on every connect, as in-memory database is dropped when its last connection is closed
+    private Connection connection() throws SQLException {
+        if (connection == null) {
+            Connection opened = DriverManager.getConnection(url, user, password);
+            try (Statement statement = opened.createStatement()) {
+                opened.setAutoCommit(false);
+                statement.execute(CREATE_TABLE);
+                statement.execute(CREATE_INDEX);
+                opened.commit();
+            } catch (SQLException | RuntimeException e) {
+                opened.close();
+                throw e;
+            }
+            connection = opened;
+        }
+        return connection;
+    }
+
+    private void warmUp() throws SQLException {
+        List<Widget> widgets = new ArrayList<>();
+        try (Statement statement = connection().createStatement()) {
+            try (ResultSet rows = statement.executeQuery(SELECT_ALL)) {
+                while (rows.next()) {
+                    OffsetDateTime lastModified = rows.getObject(7, OffsetDateTime.class);
+                    widgets.add(Widget.builder()
+                            .id(rows.getObject(1, UUID.class))
+                            .x(rows.getInt(2))
+                            .y(rows.getInt(3))
+                            .zIndex(rows.getInt(4))
+                            .width(rows.getInt(5))
+                            .height(rows.getInt(6))
+                            .lastModifiedDate(lastModified == null ? null : lastModified.toInstant())
+                            .build());
+                }
+            }
+            connection.commit();
+        }
+        // indexes are bulk loaded
+        indexes.saveAll(widgets);
+        log.info("Loaded {} widgets from {}", widgets.size(), url);
+    }
+
+    // the write lock must be held, so that changes are queued in the order they are applied
+    private synchronized void enqueue(Change change) {
+        if (closed) {
+            throw new DataStoreException("Repository is closed");
+        }
+        pending.add(change);
+    }
+
+    private void enqueueSave(Widget widget) {
+        enqueue(batches -> {
+            PreparedStatement merge = batches.statement(MERGE);
+            merge.setObject(1, widget.getId());
+            merge.setInt(2, widget.getX());
+            merge.setInt(3, widget.getY());
+            merge.setInt(4, widget.getZIndex());
+            merge.setInt(5, widget.getWidth());
+            merge.setInt(6, widget.getHeight());
+            merge.setObject(7, widget.getLastModifiedDate() == null
+                    ? null
+                    : OffsetDateTime.ofInstant(widget.getLastModifiedDate(), ZoneOffset.UTC));
+            merge.addBatch();
+        });
+    }
+
+    private void flush() {
+        boolean last = false;
+        while (!last) {
+            List<Change> changes;
+            synchronized (this) {
+                try {
+                    long until = System.nanoTime() + flushIntervalNanos;
+                    for (long left = flushIntervalNanos; left > 0 && !closed; left = until - System.nanoTime()) {
+                        wait(left / 1_000_000, (int) (left % 1_000_000));
+                    }
+                } catch (InterruptedException e) {
+                    // not interrupted by anybody but the JVM on exit
+                    return;
+                }
+                last = closed;
+                changes = pending;
+                pending = new ArrayList<>();
+            }
+
+            if (!changes.isEmpty() && !write(changes)) {
+                synchronized (this) {
+                    // retried together with the changes made meanwhile
+                    changes.addAll(pending);
+                    pending = changes;
+                }
+            }
+        }
+    }
+
+    private boolean write(List<Change> changes) {
+        try {
+            try (Batches batches = new Batches(connection())) {
+                for (Change change : changes) {
+                    change.write(batches);
+                }
+                batches.finish();
+            }
+            connection.commit();
+            return true;
+        } catch (SQLException | RuntimeException e) {
+            log.error("Can not write {} changes to {}, will retry", changes.size(), url, e);
+            closeConnection();
+            return false;
+        }
+    }
+
+    private void closeConnection() {
+        try {
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            log.warn("Can not close connection to {}", url, e);
+        }
+        connection = null;
+    }
+
+    /**
+     * Writes everything still pending and closes the connection. Changes which could not be written are logged.
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        flusher.join();
+        synchronized (this) {
+            if (!pending.isEmpty()) {
+                log.error("{} changes were not written to {}", pending.size(), url);
+            }
+        }
+        closeConnection();
+    }
+
+    @Override
+    public Optional<Widget> getById(UUID id) {
+        return indexes.getById(id);
+    }
+
+    @Override
+    public List<Widget> findAllOrderByZIndexAsc(int offset, int limit) {
+        return indexes.findAllOrderByZIndexAsc(offset, limit);
+    }
+
+    @Override
+    public List<Widget> findAllAfterZIndexOrderByZIndexAsc(int afterZIndex, int limit) {
+        return indexes.findAllAfterZIndexOrderByZIndexAsc(afterZIndex, limit);
+    }
+
+    @Override
+    public List<Widget> findAllInArea(MBRectangle boundingBox) {
+        return indexes.findAllInArea(boundingBox);
+    }
+
+    @Override
+    public List<Widget> findAllInAreaOrderByZIndex(MBRectangle boundingBox, ZOrder order, int limit) {
+        return indexes.findAllInAreaOrderByZIndex(boundingBox, order, limit);
+    }
+
+    @Override
+    public List<Widget> findAllInAreaOrderByZIndexAfter(MBRectangle boundingBox, ZOrder order, int afterZIndex,
+                                                        int limit) {
+        return indexes.findAllInAreaOrderByZIndexAfter(boundingBox, order, afterZIndex, limit);
+    }
+
+    @Override
+    public List<Widget> findAllAtPointOrderByZIndexDesc(int x, int y, int limit) {
+        return indexes.findAllAtPointOrderByZIndexDesc(x, y, limit);
+    }
+
+    @Override
+    public List<Widget> findNearest(int x, int y, int limit) {
+        return indexes.findNearest(x, y, limit);
+    }
+
+    @Override
+    public int countInArea(MBRectangle boundingBox) {
+        return indexes.countInArea(boundingBox);
+    }
+
+    @Override
+    public Optional<Widget> findByZIndex(int zIndex) {
+        return indexes.findByZIndex(zIndex);
+    }
+
+    @Override
+    public Widget save(Widget widget) {
+        try {
+            acquireWriteLock();
+            Widget saved = indexes.save(widget);
+            enqueueSave(saved);
+            return saved;
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    @Override
+    public Optional<Widget> update(Widget widget) {
+        try {
+            acquireWriteLock();
+            Optional<Widget> updated = indexes.update(widget);
+            updated.ifPresent(this::enqueueSave);
+            return updated;
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<Widget> widgets) {
+        try {
+            acquireWriteLock();
+            indexes.saveAll(widgets);
+            // widgets given may be changed by the caller later, stored ones may not
+            widgets.stream()
+                    .map(widget -> indexes.getById(widget.getId()).orElseThrow())
+                    .collect(Collectors.toList())
+                    .forEach(this::enqueueSave);
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    @Override
+    public int updateZIndexToMakeSpaceFor(int zIndex) {
+        try {
+            acquireWriteLock();
+            int updated = indexes.updateZIndexToMakeSpaceFor(zIndex);
+            if (updated > 0) {
+                enqueue(batches -> {
+                    PreparedStatement shift = batches.statement(SHIFT);
+                    shift.setInt(1, zIndex);
+                    shift.setLong(2, (long) zIndex + updated);
+                    shift.addBatch();
+                });
+            }
+            return updated;
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    @Override
+    public void deleteById(UUID id) {
+        try {
+            acquireWriteLock();
+            if (indexes.getById(id).isPresent()) {
+                indexes.deleteById(id);
+                enqueue(batches -> {
+                    PreparedStatement delete = batches.statement(DELETE);
+                    delete.setObject(1, id);
+                    delete.addBatch();
+                });
+            }
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    @Override
+    public void acquireWriteLock() {
+        indexes.acquireWriteLock();
+    }
+
+    @Override
+    public void releaseWriteLock() {
+        indexes.releaseWriteLock();
+    }
+
+    @Override
+    public void clear() {
+        try {
+            acquireWriteLock();
+            indexes.clear();
+            enqueue(batches -> batches.statement(DELETE_ALL).addBatch());
+        } finally {
+            releaseWriteLock();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package ua.kiev.tinedel.widget.widgetservice.repositories;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
+import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
+import ua.kiev.tinedel.widget.widgetservice.rtree.OffHeapRTree;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Widgets and all indexes are kept in direct memory, see {@link OffHeapWidgetStore} and {@link OffHeapRTree}.
+ * Heap holds only a chunk object per megabyte of them, so it stays small and garbage collection pauses do not grow
+ * with the number of widgets. {@link Widget} objects are created only for results.
+ * <p>
+ * Spatial index is ordered by zIndex itself, so shifts update order keys of the shifted widgets in it.
+ * Readers and writers share a read-write lock, as off-heap structures are changed in place.
+ */
+@Service
+@ConditionalOnProperty(name = "widgetservice.repository.type", havingValue = "off-heap")
+public class OffHeapWidgetRepository implements WidgetRepository {
+
+    ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    OffHeapWidgetStore store = new OffHeapWidgetStore();
+    OffHeapRTree spatialIndex = new OffHeapRTree();
+
+    private <T> T read(Supplier<T> query) {
+        try {
+            lock.readLock().lock();
+            return query.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<Widget> getById(UUID id) {
+        return read(() -> widget(store.find(id)));
+    }
+
+    @Override
+    public List<Widget> findAllOrderByZIndexAsc(int offset, int limit) {
+        if (limit <= 0) {
+            return List.of();
+        }
+        return read(() -> {
+            List<Widget> found = new ArrayList<>();
+            store.forEachFromRank(offset, record -> found.add(store.toWidget(record)) && found.size() < limit);
+            return Collections.unmodifiableList(found);
+        });
+    }
+
+    @Override
+    public List<Widget> findAllAfterZIndexOrderByZIndexAsc(int afterZIndex, int limit) {
+        if (limit <= 0 || afterZIndex == Integer.MAX_VALUE) {
+            return List.of();
+        }
+        return read(() -> {
+            List<Widget> found = new ArrayList<>();
+            store.forEachFrom(afterZIndex + 1, record -> found.add(store.toWidget(record)) && found.size() < limit);
+            return Collections.unmodifiableList(found);
+        });
+    }
+
+    @Override
+    public List<Widget> findAllInArea(MBRectangle boundingBox) {
+        return read(() -> {
+            List<Widget> found = new ArrayList<>();
+            spatialIndex.search(boundingBox, record -> found.add(store.toWidget(record)));
+            return found;
+        });
+    }
+
+    @Override
+    public List<Widget> findAllInAreaOrderByZIndex(MBRectangle boundingBox, ZOrder order, int limit) {
+        boolean topMostFirst = order == ZOrder.TOP_MOST_FIRST;
+        return findAllInAreaOrderByZIndexFrom(boundingBox, topMostFirst,
+                topMostFirst ? Long.MAX_VALUE : Long.MIN_VALUE, limit);
+    }
+
+    @Override
+    public List<Widget> findAllInAreaOrderByZIndexAfter(MBRectangle boundingBox, ZOrder order, int afterZIndex,
+                                                        int limit) {
+        boolean topMostFirst = order == ZOrder.TOP_MOST_FIRST;
+        return findAllInAreaOrderByZIndexFrom(boundingBox, topMostFirst,
+                topMostFirst ? (long) afterZIndex - 1 : (long) afterZIndex + 1, limit);
+    }
+
+    private List<Widget> findAllInAreaOrderByZIndexFrom(MBRectangle boundingBox, boolean topMostFirst, long from,
+                                                        int limit) {
+        return read(() -> {
+            List<Widget> found = new ArrayList<>();
+            spatialIndex.searchOrdered(boundingBox, topMostFirst, from, limit,
+                    record -> found.add(store.toWidget(record)));
+            return found;
+        });
+    }
+
+    @Override
+    public List<Widget> findAllAtPointOrderByZIndexDesc(int x, int y, int limit) {
+        return read(() -> {
+            List<Widget> found = new ArrayList<>();
+            spatialIndex.searchAtPointOrdered(x, y, true, limit, record -> found.add(store.toWidget(record)));
+            return found;
+        });
+    }
+
+    @Override
+    public List<Widget> findNearest(int x, int y, int limit) {
+        return read(() -> {
+            List<Widget> found = new ArrayList<>();
+            spatialIndex.searchNearest(x, y, limit, record -> found.add(store.toWidget(record)));
+            return found;
+        });
+    }
+
+    @Override
+    public int countInArea(MBRectangle boundingBox) {
+        return read(() -> spatialIndex.count(boundingBox));
+    }
+
+    @Override
+    public Widget save(Widget widget) {
+        try {
+            acquireWriteLock();
+            if (widget.getId() == null) {
+                widget.setId(UUID.randomUUID());
+            }
+            int sameZIndex = store.findByZIndex(widget.getZIndex());
+            if (sameZIndex != OffHeapWidgetStore.NONE && !store.get(sameZIndex).id().equals(widget.getId())) {
+                throw new DataStoreException("Found another element with same zIndex");
+            }
+
+            remove(widget.getId());
+            StoredWidget stored = StoredWidget.of(widget);
+            add(stored);
+            return stored.toWidget(stored.zIndex);
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    /**
+     * Replaces stored widget with the same id if it keeps its zIndex, record of the widget stays the same.
+     */
+    @Override
+    public Optional<Widget> update(Widget widget) {
+        try {
+            acquireWriteLock();
+            int record = store.find(widget.getId());
+            if (record == OffHeapWidgetStore.NONE || store.zIndex(record) != widget.getZIndex()) {
+                return Optional.empty();
+            }
+            StoredWidget updated = StoredWidget.of(widget);
+            store.replace(record, updated);
+            spatialIndex.update(record, updated.x, updated.y, updated.x + updated.width, updated.y + updated.height,
+                    updated.zIndex);
+            return Optional.of(updated.toWidget(updated.zIndex));
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<Widget> widgets) {
+        try {
+            acquireWriteLock();
+            Set<UUID> ids = widgets.stream().map(Widget::getId).filter(Objects::nonNull).collect(Collectors.toSet());
+            Set<Integer> zIndexes = new HashSet<>();
+            for (Widget widget : widgets) {
+                // widgets being replaced by the same batch will free their zIndex
+                if (!zIndexes.add(widget.getZIndex()) || findByZIndex(widget.getZIndex())
+                        .filter(inDb -> !ids.contains(inDb.getId()))
+                        .isPresent()) {
+                    throw new DataStoreException("Found another element with same zIndex");
+                }
+            }
+
+            ids.forEach(this::remove);
+            for (Widget widget : widgets) {
+                if (widget.getId() == null) {
+                    widget.setId(UUID.randomUUID());
+                }
+                add(StoredWidget.of(widget));
+            }
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    @Override
+    public Optional<Widget> findByZIndex(int zIndex) {
+        return read(() -> widget(store.findByZIndex(zIndex)));
+    }
+
+    @Override
+    public int updateZIndexToMakeSpaceFor(int zIndex) {
+        try {
+            acquireWriteLock();
+            return store.shift(zIndex, record -> spatialIndex.updateOrder(record, store.zIndex(record)));
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    @Override
+    public void deleteById(UUID id) {
+        try {
+            acquireWriteLock();
+            remove(id);
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    private Optional<Widget> widget(int record) {
+        return record == OffHeapWidgetStore.NONE ? Optional.empty() : Optional.of(store.toWidget(record));
+    }
+
+    private void add(StoredWidget widget) {
+        int record = store.add(widget);
+        spatialIndex.add(record, widget.x, widget.y, widget.x + widget.width, widget.y + widget.height,
+                widget.zIndex);
+    }
+
+    private void remove(UUID id) {
+        int record = store.find(id);
+        if (record != OffHeapWidgetStore.NONE) {
+            spatialIndex.delete(record);
+            store.remove(record);
+        }
+    }
+
+    @Override
+    public void acquireWriteLock() {
+        lock.writeLock().lock();
+    }
+
+    @Override
+    public void releaseWriteLock() {
+        lock.writeLock().unlock();
+    }
+
+    @Override
+    public void clear() {
+        try {
+            acquireWriteLock();
+            store.clear();
+            spatialIndex.clear();
+        } finally {
+            releaseWriteLock();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package ua.kiev.tinedel.widget.widgetservice.repositories;
+
+import lombok.experimental.NonFinal;
+import ua.kiev.tinedel.widget.widgetservice.collections.OffHeapRecords;
+import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Widgets of {@link OffHeapWidgetRepository} in {@link OffHeapRecords}, with indexes by id and by zIndex which
+ * are off-heap as well. Widgets are referred to by numbers of their records.
+ * <p>
+ * Record is {@link StoredWidget} binary form followed by the links of the zIndex index, which is a treap threaded
+ * through the records themselves: children, size of the subtree and priority derived from the id. Id index is
+ * an open addressing hash table of record numbers, keys are compared right in the records.
+ * <p>
+ * zIndex in the record is the actual one, shifts change it in place. Not thread-safe.
+ */
+class OffHeapWidgetStore {
+
+    final static int NONE = OffHeapRecords.NONE;
+
+    private final static int LEFT = StoredWidget.BYTES;
+    private final static int RIGHT = LEFT + Integer.BYTES;
+    private final static int SIZE = RIGHT + Integer.BYTES;
+    private final static int PRIORITY = SIZE + Integer.BYTES;
+    private final static int RECORD_BYTES = PRIORITY + Integer.BYTES;
+
+    private final static int INITIAL_BUCKETS = 16;
+
+    OffHeapRecords records = new OffHeapRecords(RECORD_BYTES);
+    @NonFinal int root = NONE;
+    // record numbers plus one, zero for empty buckets
+    @NonFinal OffHeapRecords buckets;
+    @NonFinal int bucketMask;
+    // results of the last split
+    @NonFinal int less;
+    @NonFinal int rest;
+
+    OffHeapWidgetStore() {
+        clear();
+    }
+
+    void clear() {
+        records.clear();
+        root = NONE;
+        buckets = new OffHeapRecords(Integer.BYTES);
+        buckets.ensureCapacity(INITIAL_BUCKETS);
+        bucketMask = INITIAL_BUCKETS - 1;
+    }
+
+    StoredWidget get(int record) {
+        return StoredWidget.readFrom(records, record);
+    }
+
+    Widget toWidget(int record) {
+        return get(record).toWidget(zIndex(record));
+    }
+
+    int zIndex(int record) {
+        return records.getInt(record, StoredWidget.Z_INDEX);
+    }
+
+    int find(UUID id) {
+        long most = id.getMostSignificantBits(), least = id.getLeastSignificantBits();
+        for (int bucket = home(most, least); ; bucket = (bucket + 1) & bucketMask) {
+            int record = buckets.getInt(bucket, 0) - 1;
+            if (record == NONE || records.getLong(record, StoredWidget.ID_MOST) == most
+                    && records.getLong(record, StoredWidget.ID_LEAST) == least) {
+                return record;
+            }
+        }
+    }
+
+    int findByZIndex(int zIndex) {
+        int node = root;
+        while (node != NONE && zIndex(node) != zIndex) {
+            node = records.getInt(node, zIndex < zIndex(node) ? LEFT : RIGHT);
+        }
+        return node;
+    }
+
+    /**
+     * Id and zIndex of the widget must be free.
+     */
+    int add(StoredWidget widget) {
+        int record = records.allocate();
+        widget.writeTo(records, record);
+        records.putInt(record, LEFT, NONE);
+        records.putInt(record, RIGHT, NONE);
+        records.putInt(record, SIZE, 1);
+        records.putInt(record, PRIORITY, (int) hash(widget.idMost, widget.idLeast));
+
+        split(root, widget.zIndex);
+        root = merge(merge(less, record), rest);
+
+        if ((long) (records.size() + 1) * 4 > (long) (bucketMask + 1) * 3) {
+            rehash(2 * (bucketMask + 1));
+        }
+        insertBucket(record);
+        return record;
+    }
+
+    /**
+     * Widget must have the same id and zIndex as the one in the record.
+     */
+    void replace(int record, StoredWidget widget) {
+        widget.writeTo(records, record);
+    }
+
+    void remove(int record) {
+        int zIndex = zIndex(record);
+        split(root, zIndex);
+        int lower = less;
+        split(rest, (long) zIndex + 1);
+        root = merge(lower, rest);
+
+        removeBucket(record);
+        records.free(record);
+    }
+
+    /**
+     * Increments zIndexes of the run of widgets starting at the zIndex, passing each of them to the consumer.
+     * Order of widgets stays the same, so the treap is not restructured.
+     */
+    int shift(int zIndex, IntConsumer shifted) {
+        int[] count = {0};
+        forEachFrom(zIndex, record -> {
+            if (zIndex(record) != zIndex + count[0]) {
+                return false;
+            }
+            records.putInt(record, StoredWidget.Z_INDEX, zIndex + count[0] + 1);
+            shifted.accept(record);
+            count[0]++;
+            return true;
+        });
+        return count[0];
+    }
+
+    /**
+     * Passes records to the consumer in zIndex order, starting from the one at the given rank,
+     * until it returns false.
+     */
+    void forEachFromRank(int rank, IntPredicate consumer) {
+        int[] path = new int[64];
+        int depth = 0;
+        for (int node = root, skip = rank; node != NONE; ) {
+            int leftSize = size(records.getInt(node, LEFT));
+            if (skip <= leftSize) {
+                path = push(path, depth++, node);
+                node = skip == leftSize ? NONE : records.getInt(node, LEFT);
+            } else {
+                skip -= leftSize + 1;
+                node = records.getInt(node, RIGHT);
+            }
+        }
+        walk(path, depth, consumer);
+    }
+
+    /**
+     * Passes records to the consumer in zIndex order, starting from the given zIndex, until it returns false.
+     */
+    void forEachFrom(int zIndex, IntPredicate consumer) {
+        int[] path = new int[64];
+        int depth = 0;
+        for (int node = root; node != NONE; ) {
+            if (zIndex(node) >= zIndex) {
+                path = push(path, depth++, node);
+                node = records.getInt(node, LEFT);
+            } else {
+                node = records.getInt(node, RIGHT);
+            }
+        }
+        walk(path, depth, consumer);
+    }
+
+    // in-order walk from the node on top of the path, which holds the nodes yet to be visited
+    private void walk(int[] path, int depth, IntPredicate consumer) {
+        while (depth > 0) {
+            int node = path[--depth];
+            if (!consumer.test(node)) {
+                return;
+            }
+            for (node = records.getInt(node, RIGHT); node != NONE; node = records.getInt(node, LEFT)) {
+                path = push(path, depth++, node);
+            }
+        }
+    }
+
+    private static int[] push(int[] path, int depth, int node) {
+        if (depth == path.length) {
+            path = Arrays.copyOf(path, 2 * depth);
+        }
+        path[depth] = node;
+        return path;
+    }
+
+    // splits the treap into nodes with zIndex below the key and the rest
+    private void split(int node, long key) {
+        if (node == NONE) {
+            less = NONE;
+            rest = NONE;
+        } else if (zIndex(node) < key) {
+            split(records.getInt(node, RIGHT), key);
+            records.putInt(node, RIGHT, less);
+            resize(node);
+            less = node;
+        } else {
+            split(records.getInt(node, LEFT), key);
+            records.putInt(node, LEFT, rest);
+            resize(node);
+            rest = node;
+        }
+    }
+
+    // all zIndexes of the first treap are below those of the second
+    private int merge(int first, int second) {
+        if (first == NONE) {
+            return second;
+        }
+        if (second == NONE) {
+            return first;
+        }
+        if (records.getInt(first, PRIORITY) > records.getInt(second, PRIORITY)) {
+            records.putInt(first, RIGHT, merge(records.getInt(first, RIGHT), second));
+            resize(first);
+            return first;
+        }
+        records.putInt(second, LEFT, merge(first, records.getInt(second, LEFT)));
+        resize(second);
+        return second;
+    }
+
+    private int size(int node) {
+        return node == NONE ? 0 : records.getInt(node, SIZE);
+    }
+
+    private void resize(int node) {
+        records.putInt(node, SIZE, 1 + size(records.getInt(node, LEFT)) + size(records.getInt(node, RIGHT)));
+    }
+
+    private static long hash(long most, long least) {
+        long h = (most ^ least) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private int home(long most, long least) {
+        return (int) hash(most, least) & bucketMask;
+    }
+
+    private int home(int record) {
+        return home(records.getLong(record, StoredWidget.ID_MOST), records.getLong(record, StoredWidget.ID_LEAST));
+    }
+
+    private void insertBucket(int record) {
+        int bucket = home(record);
+        while (buckets.getInt(bucket, 0) != 0) {
+            bucket = (bucket + 1) & bucketMask;
+        }
+        buckets.putInt(bucket, 0, record + 1);
+    }
+
+    // entries after the removed one are moved back, so that no probe sequence is broken by the gap
+    private void removeBucket(int record) {
+        int gap = home(record);
+        while (buckets.getInt(gap, 0) != record + 1) {
+            gap = (gap + 1) & bucketMask;
+        }
+        for (int bucket = (gap + 1) & bucketMask; buckets.getInt(bucket, 0) != 0; bucket = (bucket + 1) & bucketMask) {
+            int home = home(buckets.getInt(bucket, 0) - 1);
+            // entry may fill the gap if the gap is between its home and its bucket
+            if (((bucket - home) & bucketMask) >= ((bucket - gap) & bucketMask)) {
+                buckets.putInt(gap, 0, buckets.getInt(bucket, 0));
+                gap = bucket;
+            }
+        }
+        buckets.putInt(gap, 0, 0);
+    }
+
+    private void rehash(int capacity) {
+        OffHeapRecords old = buckets;
+        int oldCapacity = bucketMask + 1;
+        buckets = new OffHeapRecords(Integer.BYTES);
+        buckets.ensureCapacity(capacity);
+        bucketMask = capacity - 1;
+        for (int bucket = 0; bucket < oldCapacity; bucket++) {
+            if (old.getInt(bucket, 0) != 0) {
+                insertBucket(old.getInt(bucket, 0) - 1);
+            }
+        }
+    }
+}
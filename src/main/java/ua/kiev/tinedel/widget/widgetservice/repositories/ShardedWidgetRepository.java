@@ -0,0 +1,510 @@
+package ua.kiev.tinedel.widget.widgetservice.repositories;
+
+import lombok.experimental.NonFinal;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
+import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
+import ua.kiev.tinedel.widget.widgetservice.rtree.RTree;
+import ua.kiev.tinedel.widget.widgetservice.rtree.Shape;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Plane is split into square tiles spread over fixed number of shards, each with its own RTree and lock.
+ * Widget belongs to the shard of the tile with its bottom left corner, so widget inside of a box is always
+ * in a shard of one of the tiles intersecting the box. Ids and zIndexes are kept unique by concurrent maps
+ * shared by all shards.
+ * <p>
+ * Changes of single widgets hold the global lock shared, so they run in parallel unless they meet in the same
+ * shard. That includes creates and zIndex changes, which claim a free zIndex in the shared zIndex map. Write lock
+ * of the repository, which is held only when zIndexes have to be shifted, holds the global lock exclusively.
+ * Readers take only the locks of the shards they search.
+ * <p>
+ * Batches and shifts change many widgets holding the write lock of the repository, which also holds the batch
+ * lock exclusively. Reads are validated against it, so that they see either none or all of the changes made
+ * under the write lock, and wait for the write lock to be released when they meet it.
+ * <p>
+ * Shards are guarded by StampedLocks. Counts and searches with small limits first run optimistically without
+ * locking, and their results are thrown away and the search is repeated under the read lock only if the shard
+ * was changed meanwhile.
+ */
+@Service
+@ConditionalOnProperty(name = "widgetservice.repository.type", havingValue = "sharded")
+public class ShardedWidgetRepository implements WidgetRepository {
+
+    // searches returning at most that many widgets are cheap enough to be repeated if optimistic read fails
+    final static int OPTIMISTIC_READ_LIMIT = 100;
+
+    ReentrantReadWriteLock globalLock = new ReentrantReadWriteLock();
+    // held exclusively together with the write lock of the repository, readers validate against it
+    StampedLock batchLock = new StampedLock();
+    @NonFinal long batchStamp;
+    Map<UUID, Widget> idIndex = new ConcurrentHashMap<>();
+    ConcurrentNavigableMap<Integer, Widget> zIndexIndex = new ConcurrentSkipListMap<>();
+    Shard[] shards;
+    int tileSize;
+
+    public ShardedWidgetRepository(@Value("${widgetservice.repository.sharded.shards:16}") int shardCount,
+                                   @Value("${widgetservice.repository.sharded.tile-size:1000}") int tileSize) {
+        if (shardCount < 1 || tileSize < 1) {
+            throw new IllegalArgumentException("Number of shards and tile size must be positive");
+        }
+        this.shards = IntStream.range(0, shardCount).mapToObj(Shard::new).toArray(Shard[]::new);
+        this.tileSize = tileSize;
+    }
+
+    private static class Shard {
+        int index;
+        StampedLock lock = new StampedLock();
+        RTree<Widget> tree = new RTree<>(Shape.WIDGET);
+
+        Shard(int index) {
+            this.index = index;
+        }
+    }
+
+    private Shard shardOf(Widget widget) {
+        return shards[shardIndex(Math.floorDiv(widget.getX(), tileSize), Math.floorDiv(widget.getY(), tileSize))];
+    }
+
+    private int shardIndex(int tileX, int tileY) {
+        return Math.floorMod(31 * tileX + tileY, shards.length);
+    }
+
+    // shards of the tiles intersecting the box
+    private Collection<Shard> shardsFor(MBRectangle box) {
+        int fromX = Math.floorDiv(box.getX1(), tileSize), toX = Math.floorDiv(box.getX2(), tileSize);
+        int fromY = Math.floorDiv(box.getY1(), tileSize), toY = Math.floorDiv(box.getY2(), tileSize);
+        if (((long) toX - fromX + 1) * ((long) toY - fromY + 1) >= shards.length) {
+            return Arrays.asList(shards);
+        }
+
+        Set<Shard> found = new HashSet<>();
+        for (int tileX = fromX; tileX <= toX; tileX++) {
+            for (int tileY = fromY; tileY <= toY; tileY++) {
+                found.add(shards[shardIndex(tileX, tileY)]);
+            }
+        }
+        return found;
+    }
+
+    private void search(Collection<Shard> toSearch, boolean optimistic,
+                        BiConsumer<RTree<Widget>, Consumer<Widget>> search, Consumer<Widget> consumer) {
+        for (Shard shard : toSearch) {
+            List<Widget> found = read(shard, optimistic, tree -> {
+                List<Widget> result = new ArrayList<>();
+                search.accept(tree, result::add);
+                return result;
+            });
+            found.stream().map(ShardedWidgetRepository::copy).forEach(consumer);
+        }
+    }
+
+    private <T> T read(Shard shard, boolean optimistic, Function<RTree<Widget>, T> search) {
+        long stamp = optimistic ? shard.lock.tryOptimisticRead() : 0;
+        if (stamp != 0) {
+            try {
+                T result = search.apply(shard.tree);
+                if (shard.lock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                // tree was seen in the middle of a change, which validation would not confirm anyway
+            }
+        }
+
+        stamp = shard.lock.readLock();
+        try {
+            return search.apply(shard.tree);
+        } finally {
+            shard.lock.unlockRead(stamp);
+        }
+    }
+
+    // stored widgets are never given out, so that callers can not change them behind the indexes
+    private static Widget copy(Widget widget) {
+        return new Widget(widget.getId(), widget.getX(), widget.getY(), widget.getZIndex(), widget.getWidth(),
+                widget.getHeight(), widget.getLastModifiedDate());
+    }
+
+    // reads seeing the state in the middle of changes done under the write lock wait for it to be released
+    private <T> T readWhole(Supplier<T> read) {
+        if (globalLock.isWriteLockedByCurrentThread()) {
+            return read.get();
+        }
+
+        long stamp = batchLock.tryOptimisticRead();
+        if (stamp != 0) {
+            T result = read.get();
+            if (batchLock.validate(stamp)) {
+                return result;
+            }
+        }
+
+        stamp = batchLock.readLock();
+        try {
+            return read.get();
+        } finally {
+            batchLock.unlockRead(stamp);
+        }
+    }
+
+    // shards are always locked in the order of their indexes, so writers locking two of them do not deadlock
+    private List<Shard> lockShards(Widget... widgets) {
+        List<Shard> locked = Arrays.stream(widgets)
+                .filter(Objects::nonNull)
+                .map(this::shardOf)
+                .distinct()
+                .sorted(Comparator.comparingInt(shard -> shard.index))
+                .collect(Collectors.toList());
+        locked.forEach(shard -> shard.lock.asWriteLock().lock());
+        return locked;
+    }
+
+    private void unlockShards(List<Shard> locked) {
+        locked.forEach(shard -> shard.lock.asWriteLock().unlock());
+    }
+
+    @Override
+    public Optional<Widget> getById(UUID id) {
+        return readWhole(() -> Optional.ofNullable(idIndex.get(id)).map(ShardedWidgetRepository::copy));
+    }
+
+    @Override
+    public List<Widget> findAllOrderByZIndexAsc(int offset, int limit) {
+        return readWhole(() -> zIndexIndex.values().stream()
+                .skip(offset).limit(limit).map(ShardedWidgetRepository::copy).collect(Collectors.toUnmodifiableList()));
+    }
+
+    @Override
+    public List<Widget> findAllAfterZIndexOrderByZIndexAsc(int afterZIndex, int limit) {
+        return readWhole(() -> zIndexIndex.tailMap(afterZIndex, false).values().stream()
+                .limit(limit).map(ShardedWidgetRepository::copy).collect(Collectors.toUnmodifiableList()));
+    }
+
+    @Override
+    public List<Widget> findAllInArea(MBRectangle boundingBox) {
+        return readWhole(() -> {
+            List<Widget> found = new ArrayList<>();
+            search(shardsFor(boundingBox), false, (tree, consumer) -> tree.search(boundingBox, consumer), found::add);
+            return found;
+        });
+    }
+
+    @Override
+    public List<Widget> findAllInAreaOrderByZIndex(MBRectangle boundingBox, ZOrder order, int limit) {
+        boolean topMostFirst = order == ZOrder.TOP_MOST_FIRST;
+        return findAllInAreaOrderByZIndexFrom(boundingBox, topMostFirst,
+                topMostFirst ? Long.MAX_VALUE : Long.MIN_VALUE, limit);
+    }
+
+    // shard trees are ordered by zIndex itself
+    @Override
+    public List<Widget> findAllInAreaOrderByZIndexAfter(MBRectangle boundingBox, ZOrder order, int afterZIndex,
+                                                        int limit) {
+        boolean topMostFirst = order == ZOrder.TOP_MOST_FIRST;
+        return findAllInAreaOrderByZIndexFrom(boundingBox, topMostFirst,
+                topMostFirst ? (long) afterZIndex - 1 : (long) afterZIndex + 1, limit);
+    }
+
+    private List<Widget> findAllInAreaOrderByZIndexFrom(MBRectangle boundingBox, boolean topMostFirst, long from,
+                                                        int limit) {
+        List<Widget> found = readWhole(() -> {
+            List<Widget> result = new ArrayList<>();
+            search(shardsFor(boundingBox), limit <= OPTIMISTIC_READ_LIMIT,
+                    (tree, consumer) -> tree.searchOrderedByZIndex(boundingBox, topMostFirst, from, limit, consumer),
+                    result::add);
+            return result;
+        });
+
+        Comparator<Widget> byZIndex = Comparator.comparing(Widget::getZIndex);
+        return found.stream()
+                .sorted(topMostFirst ? byZIndex.reversed() : byZIndex)
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    // widgets covering the point or nearest to it may start in any tile, so all shards are searched
+    @Override
+    public List<Widget> findAllAtPointOrderByZIndexDesc(int x, int y, int limit) {
+        List<Widget> found = readWhole(() -> {
+            List<Widget> result = new ArrayList<>();
+            search(Arrays.asList(shards), limit <= OPTIMISTIC_READ_LIMIT,
+                    (tree, consumer) -> tree.searchAtPointOrderedByZIndex(x, y, true, limit, consumer), result::add);
+            return result;
+        });
+
+        return found.stream()
+                .sorted(Comparator.comparing(Widget::getZIndex).reversed())
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Widget> findNearest(int x, int y, int limit) {
+        List<Widget> found = readWhole(() -> {
+            List<Widget> result = new ArrayList<>();
+            search(Arrays.asList(shards), limit <= OPTIMISTIC_READ_LIMIT,
+                    (tree, consumer) -> tree.searchNearest(x, y, limit, consumer), result::add);
+            return result;
+        });
+
+        return found.stream()
+                .sorted(Comparator.comparingDouble(w -> MBRectangle.distanceSquared(w.getX(), w.getY(),
+                        w.getX() + w.getWidth(), w.getY() + w.getHeight(), x, y)))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public int countInArea(MBRectangle boundingBox) {
+        return readWhole(() -> {
+            int count = 0;
+            for (Shard shard : shardsFor(boundingBox)) {
+                count += read(shard, true, tree -> tree.count(boundingBox));
+            }
+            return count;
+        });
+    }
+
+    /*
+     * Stored widget of an id is replaced only under the lock of its shard. So writers lock the shards first
+     * and then check that the widget they have seen is still stored, starting over otherwise.
+     */
+
+    @Override
+    public Widget save(Widget widget) {
+        try {
+            globalLock.readLock().lock();
+            Widget saved = put(widget);
+            if (saved == null) {
+                throw new DataStoreException("Found another element with same zIndex");
+            }
+            return saved;
+        } finally {
+            globalLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The zIndex is claimed in the zIndex map, so the write lock of the repository is not needed.
+     */
+    @Override
+    public Optional<Widget> saveIfZIndexFree(Widget widget) {
+        try {
+            globalLock.readLock().lock();
+            return Optional.ofNullable(put(widget));
+        } finally {
+            globalLock.readLock().unlock();
+        }
+    }
+
+    // saves widget unless its zIndex is taken by another one, the global lock must be held
+    private Widget put(Widget toSave) {
+        if (toSave.getId() == null) {
+            toSave.setId(UUID.randomUUID());
+        }
+
+        Widget widget = copy(toSave);
+        while (true) {
+            Widget previous = idIndex.get(widget.getId());
+            List<Shard> locked = lockShards(previous, widget);
+            try {
+                // new id is claimed first, as concurrent creates of the same id may lock different shards
+                if (previous == null
+                        ? idIndex.putIfAbsent(widget.getId(), widget) != null
+                        : idIndex.get(widget.getId()) != previous) {
+                    continue;
+                }
+
+                Widget sameZIndex = zIndexIndex.putIfAbsent(widget.getZIndex(), widget);
+                if (sameZIndex != null) {
+                    if (!sameZIndex.getId().equals(widget.getId())) {
+                        if (previous == null) {
+                            idIndex.remove(widget.getId(), widget);
+                        }
+                        return null;
+                    }
+                    zIndexIndex.put(widget.getZIndex(), widget);
+                }
+                if (previous != null) {
+                    if (!previous.getZIndex().equals(widget.getZIndex())) {
+                        zIndexIndex.remove(previous.getZIndex(), previous);
+                    }
+                    shardOf(previous).tree.delete(previous);
+                }
+                idIndex.put(widget.getId(), widget);
+                shardOf(widget).tree.add(widget);
+                return copy(widget);
+            } finally {
+                unlockShards(locked);
+            }
+        }
+    }
+
+    @Override
+    public Optional<Widget> update(Widget toUpdate) {
+        try {
+            globalLock.readLock().lock();
+            Widget widget = copy(toUpdate);
+            while (true) {
+                Widget stored = idIndex.get(widget.getId());
+                if (stored == null || !stored.getZIndex().equals(widget.getZIndex())) {
+                    return Optional.empty();
+                }
+
+                List<Shard> locked = lockShards(stored, widget);
+                try {
+                    if (idIndex.get(widget.getId()) != stored) {
+                        continue;
+                    }
+
+                    zIndexIndex.put(widget.getZIndex(), widget);
+                    idIndex.put(widget.getId(), widget);
+                    Shard from = shardOf(stored);
+                    Shard to = shardOf(widget);
+                    if (from == to) {
+                        from.tree.update(stored, widget);
+                    } else {
+                        from.tree.delete(stored);
+                        to.tree.add(widget);
+                    }
+                    return Optional.of(copy(widget));
+                } finally {
+                    unlockShards(locked);
+                }
+            }
+        } finally {
+            globalLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<Widget> widgets) {
+        try {
+            acquireWriteLock();
+            Set<UUID> ids = widgets.stream().map(Widget::getId).filter(Objects::nonNull).collect(Collectors.toSet());
+            Set<Integer> zIndexes = new HashSet<>();
+            for (Widget widget : widgets) {
+                // widgets being replaced by the same batch will free their zIndex
+                if (!zIndexes.add(widget.getZIndex()) || findByZIndex(widget.getZIndex())
+                        .filter(inDb -> !ids.contains(inDb.getId()))
+                        .isPresent()) {
+                    throw new DataStoreException("Found another element with same zIndex");
+                }
+            }
+
+            ids.forEach(this::deleteById);
+            widgets.forEach(this::save);
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    @Override
+    public Optional<Widget> findByZIndex(int zIndex) {
+        return readWhole(() -> Optional.ofNullable(zIndexIndex.get(zIndex)).map(ShardedWidgetRepository::copy));
+    }
+
+    @Override
+    public int updateZIndexToMakeSpaceFor(int zIndex) {
+        try {
+            int updated = 0;
+            acquireWriteLock();
+            Widget current = zIndexIndex.remove(zIndex);
+            while (current != null) {
+                Widget shifted = current.withZIndex(current.getZIndex() + 1);
+                Widget next = zIndexIndex.put(shifted.getZIndex(), shifted);
+                idIndex.put(shifted.getId(), shifted);
+                List<Shard> locked = lockShards(current);
+                try {
+                    shardOf(current).tree.update(current, shifted);
+                } finally {
+                    unlockShards(locked);
+                }
+                current = next;
+                updated++;
+            }
+            return updated;
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    @Override
+    public void deleteById(UUID id) {
+        try {
+            globalLock.readLock().lock();
+            while (true) {
+                Widget removed = idIndex.get(id);
+                if (removed == null) {
+                    return;
+                }
+
+                List<Shard> locked = lockShards(removed);
+                try {
+                    if (idIndex.get(id) != removed) {
+                        continue;
+                    }
+                    idIndex.remove(id);
+                    zIndexIndex.remove(removed.getZIndex(), removed);
+                    shardOf(removed).tree.delete(removed);
+                    return;
+                } finally {
+                    unlockShards(locked);
+                }
+            }
+        } finally {
+            globalLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void acquireWriteLock() {
+        globalLock.writeLock().lock();
+        if (globalLock.getWriteHoldCount() == 1) {
+            batchStamp = batchLock.writeLock();
+        }
+    }
+
+    @Override
+    public void releaseWriteLock() {
+        if (globalLock.getWriteHoldCount() == 1) {
+            batchLock.unlockWrite(batchStamp);
+        }
+        globalLock.writeLock().unlock();
+    }
+
+    @Override
+    public void clear() {
+        try {
+            acquireWriteLock();
+            idIndex.clear();
+            zIndexIndex.clear();
+            for (Shard shard : shards) {
+                long stamp = shard.lock.writeLock();
+                try {
+                    shard.tree.clear();
+                } finally {
+                    shard.lock.unlockWrite(stamp);
+                }
+            }
+        } finally {
+            releaseWriteLock();
+        }
+    }
+}
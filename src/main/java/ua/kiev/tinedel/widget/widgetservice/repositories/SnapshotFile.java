@@ -0,0 +1,96 @@
+package ua.kiev.tinedel.widget.widgetservice.repositories;
+
+import lombok.Value;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * State of {@link InMemoryWidgetRepository} saved at some change of its {@link WriteAheadLog}: header with
+ * the version of the format, sequence number of the change and number of widgets, followed by fixed-width
+ * {@link StoredWidget} records in stacking order, each with its actual zIndex.
+ * <p>
+ * File is written next to the old one and moved over it, so there is always a complete snapshot.
+ * It is read through memory mapping, so loading costs little more than decoding the records.
+ */
+class SnapshotFile {
+
+    private final static int MAGIC = 0x57534E50;
+    private final static int VERSION = 1;
+    private final static int HEADER_BYTES = 2 * Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private final static int WRITE_BUFFER_SIZE = 1 << 20;
+
+    @Value
+    static class Content {
+        long sequence;
+        List<StoredWidget> widgets;
+    }
+
+    static void write(Path path, long sequence, int count, Iterable<StoredWidget> widgets) throws IOException {
+        Path written = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(written,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(sequence).putInt(count);
+            int left = count;
+            for (StoredWidget widget : widgets) {
+                if (left-- == 0) {
+                    throw new IllegalArgumentException("More widgets than told");
+                }
+                if (buffer.remaining() < StoredWidget.BYTES) {
+                    writeFully(channel, buffer);
+                }
+                widget.writeTo(buffer);
+            }
+            if (left != 0) {
+                throw new IllegalArgumentException("Less widgets than told");
+            }
+            writeFully(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(written, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    static Content read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new DataStoreException("Snapshot " + path + " is truncated");
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (data.getInt() != MAGIC) {
+                throw new DataStoreException(path + " is not a widget snapshot");
+            }
+            int version = data.getInt();
+            if (version != VERSION) {
+                throw new DataStoreException("Snapshot " + path + " has unsupported version " + version);
+            }
+            long sequence = data.getLong();
+            int count = data.getInt();
+            if (count < 0 || data.remaining() != (long) count * StoredWidget.BYTES) {
+                throw new DataStoreException("Snapshot " + path + " is truncated");
+            }
+
+            List<StoredWidget> widgets = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                widgets.add(StoredWidget.readFrom(data));
+            }
+            return new Content(sequence, widgets);
+        }
+    }
+}
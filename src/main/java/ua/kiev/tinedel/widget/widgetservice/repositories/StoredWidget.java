@@ -0,0 +1,143 @@
+package ua.kiev.tinedel.widget.widgetservice.repositories;
+
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.With;
+import lombok.experimental.FieldDefaults;
+import ua.kiev.tinedel.widget.widgetservice.collections.OffHeapRecords;
+import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.rtree.Shape;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Immutable primitive-only form in which {@link InMemoryWidgetRepository} keeps widgets. It takes a fraction
+ * of the memory of {@link Widget} with its boxed coordinates, UUID and Instant, and since callers get fresh
+ * widgets created from it, they can not change stored state.
+ * <p>
+ * zIndex is the one widget was saved with, actual zIndex is kept by the stacking order. Modification date
+ * is kept in nanoseconds since epoch, so it comes back exactly as it was saved.
+ * <p>
+ * The same binary form is used in logs and snapshots, and in records of {@link OffHeapWidgetStore}.
+ */
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PACKAGE)
+final class StoredWidget {
+
+    // size of the binary form
+    final static int BYTES = 3 * Long.BYTES + 5 * Integer.BYTES;
+    // offsets of the fields in the binary form
+    final static int ID_MOST = 0;
+    final static int ID_LEAST = Long.BYTES;
+    final static int X = 2 * Long.BYTES;
+    final static int Y = X + Integer.BYTES;
+    final static int Z_INDEX = Y + Integer.BYTES;
+    final static int WIDTH = Z_INDEX + Integer.BYTES;
+    final static int HEIGHT = WIDTH + Integer.BYTES;
+    final static int LAST_MODIFIED = HEIGHT + Integer.BYTES;
+
+    private final static long NO_DATE = Long.MIN_VALUE;
+    private final static long NANOS_PER_SECOND = 1_000_000_000L;
+
+    /**
+     * Boxes of stored widgets, ordered by zIndex they were saved with.
+     */
+    final static Shape<StoredWidget> SHAPE = new Shape<>() {
+        @Override
+        public int x1(StoredWidget item) {
+            return item.x;
+        }
+
+        @Override
+        public int y1(StoredWidget item) {
+            return item.y;
+        }
+
+        @Override
+        public int x2(StoredWidget item) {
+            return item.x + item.width;
+        }
+
+        @Override
+        public int y2(StoredWidget item) {
+            return item.y + item.height;
+        }
+
+        @Override
+        public long order(StoredWidget item) {
+            return item.zIndex;
+        }
+    };
+
+    long idMost;
+    long idLeast;
+    int x;
+    int y;
+    @With(AccessLevel.PACKAGE)
+    int zIndex;
+    int width;
+    int height;
+    long lastModified;
+
+    /**
+     * Widget must have its id already.
+     */
+    static StoredWidget of(Widget widget) {
+        Instant date = widget.getLastModifiedDate();
+        long lastModified = date == null
+                ? NO_DATE
+                : Math.addExact(Math.multiplyExact(date.getEpochSecond(), NANOS_PER_SECOND), date.getNano());
+        return new StoredWidget(widget.getId().getMostSignificantBits(), widget.getId().getLeastSignificantBits(),
+                widget.getX(), widget.getY(), widget.getZIndex(), widget.getWidth(), widget.getHeight(), lastModified);
+    }
+
+    static StoredWidget readFrom(ByteBuffer buffer) {
+        return new StoredWidget(buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                buffer.getInt(), buffer.getInt(), buffer.getLong());
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putLong(idMost).putLong(idLeast)
+                .putInt(x).putInt(y).putInt(zIndex).putInt(width).putInt(height)
+                .putLong(lastModified);
+    }
+
+    /**
+     * Reads the binary form from the start of the record.
+     */
+    static StoredWidget readFrom(OffHeapRecords records, int record) {
+        return new StoredWidget(records.getLong(record, ID_MOST), records.getLong(record, ID_LEAST),
+                records.getInt(record, X), records.getInt(record, Y), records.getInt(record, Z_INDEX),
+                records.getInt(record, WIDTH), records.getInt(record, HEIGHT), records.getLong(record, LAST_MODIFIED));
+    }
+
+    void writeTo(OffHeapRecords records, int record) {
+        records.putLong(record, ID_MOST, idMost);
+        records.putLong(record, ID_LEAST, idLeast);
+        records.putInt(record, X, x);
+        records.putInt(record, Y, y);
+        records.putInt(record, Z_INDEX, zIndex);
+        records.putInt(record, WIDTH, width);
+        records.putInt(record, HEIGHT, height);
+        records.putLong(record, LAST_MODIFIED, lastModified);
+    }
+
+    UUID id() {
+        return new UUID(idMost, idLeast);
+    }
+
+    Widget toWidget(int actualZIndex) {
+        return Widget.builder()
+                .id(id())
+                .x(x)
+                .y(y)
+                .zIndex(actualZIndex)
+                .width(width)
+                .height(height)
+                .lastModifiedDate(lastModified == NO_DATE ? null : Instant.ofEpochSecond(
+                        Math.floorDiv(lastModified, NANOS_PER_SECOND), Math.floorMod(lastModified, NANOS_PER_SECOND)))
+                .build();
+    }
+}
@@ -1,6 +1,7 @@
 package ua.kiev.tinedel.widget.widgetservice.repositories;
 
 import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
 import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
 
 import java.util.*;
@@ -8,10 +9,37 @@ import java.util.*;
 public interface WidgetRepository {
     Optional<Widget> getById(UUID id);
     List<Widget> findAllOrderByZIndexAsc(int offset, int limit);
+    List<Widget> findAllAfterZIndexOrderByZIndexAsc(int afterZIndex, int limit);
     List<Widget> findAllInArea(MBRectangle boundingBox);
+    List<Widget> findAllInAreaOrderByZIndex(MBRectangle boundingBox, ZOrder order, int limit);
+    List<Widget> findAllInAreaOrderByZIndexAfter(MBRectangle boundingBox, ZOrder order, int afterZIndex, int limit);
+    List<Widget> findAllAtPointOrderByZIndexDesc(int x, int y, int limit);
+    List<Widget> findNearest(int x, int y, int limit);
+    int countInArea(MBRectangle boundingBox);
     Widget save(Widget widget);
+    Optional<Widget> update(Widget widget);
+    void saveAll(Collection<Widget> widgets);
     Optional<Widget> findByZIndex(int zIndex);
     int updateZIndexToMakeSpaceFor(int zIndex);
+
+    /**
+     * Saves widget unless another widget has its zIndex, in which case nothing is changed. Repositories able
+     * to claim the zIndex atomically do it without the write lock.
+     */
+    default Optional<Widget> saveIfZIndexFree(Widget widget) {
+        try {
+            acquireWriteLock();
+            if (findByZIndex(widget.getZIndex())
+                    .filter(sameZIndex -> !sameZIndex.getId().equals(widget.getId()))
+                    .isPresent()) {
+                return Optional.empty();
+            }
+            return Optional.of(save(widget));
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
     void deleteById(UUID id);
     void acquireWriteLock();
     void releaseWriteLock();
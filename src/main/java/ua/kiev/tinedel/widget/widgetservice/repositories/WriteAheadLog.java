@@ -0,0 +1,351 @@
+package ua.kiev.tinedel.widget.widgetservice.repositories;
+
+import lombok.experimental.NonFinal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Binary log of changes of {@link InMemoryWidgetRepository}. Changes are appended to a memory buffer,
+ * which a flusher thread writes to the file and forces to disk. Flusher pauses for the fsync interval
+ * after each force, so that changes made meanwhile are forced together, and writers wait only for the force
+ * of their batch.
+ * <p>
+ * Record is its length, sequence number, type, data of the change and CRC32 of all but the length.
+ * Records are numbered from 1. Torn record at the end of the file, left by a crash in the middle of a write,
+ * is cut off on replay.
+ * <p>
+ * Changes saved in a {@link SnapshotFile} are dropped from the head of the log, by copying the rest of it
+ * to a new file which replaces the log.
+ * <p>
+ * Once the flusher fails, nothing appended is forced to disk anymore, so writers must check that the log is
+ * writable before they make a change.
+ */
+class WriteAheadLog implements Closeable {
+
+    private final static byte SAVE = 1;
+    private final static byte SAVE_ALL = 2;
+    private final static byte SHIFT = 3;
+    private final static byte DELETE = 4;
+    private final static byte CLEAR = 5;
+
+    // length, sequence number and type before the data, CRC after it
+    private final static int HEADER_BYTES = Integer.BYTES + Long.BYTES + 1;
+    private final static int RECORD_OVERHEAD = HEADER_BYTES + Integer.BYTES;
+    private final static int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private final static long MAX_REPLAYED_BYTES = Integer.MAX_VALUE - 8;
+
+    /**
+     * Receives changes read from the log.
+     */
+    interface Target {
+        void save(StoredWidget widget);
+
+        void saveAll(List<StoredWidget> widgets);
+
+        void shift(int zIndex);
+
+        void delete(UUID id);
+
+        void clear();
+    }
+
+    Path path;
+    @NonFinal FileChannel channel;
+    long fsyncIntervalNanos;
+    Thread flusher;
+    // changes not written yet and the buffer to collect next ones into while they are written
+    @NonFinal ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    @NonFinal ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    @NonFinal long appended;
+    // size of the log with all appended changes
+    @NonFinal long appendedBytes;
+    @NonFinal long durable;
+    @NonFinal Exception failure;
+    @NonFinal boolean closed;
+
+    private WriteAheadLog(Path path, FileChannel channel, Duration fsyncInterval, long lastSequence)
+            throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.appendedBytes = channel.size();
+        this.fsyncIntervalNanos = fsyncInterval.toNanos();
+        this.appended = lastSequence;
+        this.durable = lastSequence;
+        this.flusher = new Thread(this::flush, "widget-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Opens the log creating the file if needed, and passes changes in it after the given sequence number
+     * to the target before appending. New changes are numbered after both.
+     */
+    static WriteAheadLog open(Path path, Duration fsyncInterval, long afterSequence, Target target)
+            throws IOException {
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long lastSequence = replay(channel, afterSequence, target);
+            return new WriteAheadLog(path, channel, fsyncInterval, Math.max(afterSequence, lastSequence));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static long replay(FileChannel channel, long afterSequence, Target target) throws IOException {
+        if (channel.size() > MAX_REPLAYED_BYTES) {
+            throw new DataStoreException("Write-ahead log is too large to replay");
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+        while (data.hasRemaining() && channel.read(data, data.position()) >= 0) {
+            // read it all
+        }
+        data.flip();
+
+        long sequence = 0;
+        CRC32 crc = new CRC32();
+        while (data.remaining() >= RECORD_OVERHEAD) {
+            int start = data.position();
+            int length = data.getInt();
+            if (length < Long.BYTES + 1 || length > data.remaining() - Integer.BYTES) {
+                data.position(start);
+                break;
+            }
+            crc.reset();
+            crc.update(data.slice().limit(length));
+            ByteBuffer record = data.slice().limit(length);
+            data.position(data.position() + length);
+            if ((int) crc.getValue() != data.getInt()) {
+                data.position(start);
+                break;
+            }
+
+            sequence = record.getLong();
+            if (sequence > afterSequence) {
+                apply(record, target);
+            }
+        }
+
+        // cut off the torn tail, so that new records follow the last good one
+        channel.truncate(data.position());
+        channel.position(data.position());
+        return sequence;
+    }
+
+    private static void apply(ByteBuffer record, Target target) {
+        byte type = record.get();
+        switch (type) {
+            case SAVE:
+                target.save(StoredWidget.readFrom(record));
+                break;
+            case SAVE_ALL:
+                int count = record.getInt();
+                List<StoredWidget> widgets = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    widgets.add(StoredWidget.readFrom(record));
+                }
+                target.saveAll(widgets);
+                break;
+            case SHIFT:
+                target.shift(record.getInt());
+                break;
+            case DELETE:
+                target.delete(new UUID(record.getLong(), record.getLong()));
+                break;
+            case CLEAR:
+                target.clear();
+                break;
+            default:
+                throw new DataStoreException("Unknown record type " + type + " in write-ahead log");
+        }
+    }
+
+    void appendSave(StoredWidget widget) {
+        append(SAVE, StoredWidget.BYTES, widget::writeTo);
+    }
+
+    void appendSaveAll(List<StoredWidget> widgets) {
+        append(SAVE_ALL, Integer.BYTES + widgets.size() * StoredWidget.BYTES, buffer -> {
+            buffer.putInt(widgets.size());
+            widgets.forEach(widget -> widget.writeTo(buffer));
+        });
+    }
+
+    void appendShift(int zIndex) {
+        append(SHIFT, Integer.BYTES, buffer -> buffer.putInt(zIndex));
+    }
+
+    void appendDelete(UUID id) {
+        append(DELETE, 2 * Long.BYTES,
+                buffer -> buffer.putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits()));
+    }
+
+    void appendClear() {
+        append(CLEAR, 0, buffer -> { });
+    }
+
+    /**
+     * Throws when changes can not be made durable anymore.
+     */
+    synchronized void checkWritable() {
+        if (closed) {
+            throw new DataStoreException("Write-ahead log is closed");
+        }
+        if (failure != null) {
+            throw new DataStoreException("Write-ahead log failed", failure);
+        }
+    }
+
+    // change appended after the flusher failed is kept in memory only, its writer gets the failure on waiting
+    private synchronized void append(byte type, int dataLength, Consumer<ByteBuffer> data) {
+        if (closed) {
+            throw new DataStoreException("Write-ahead log is closed");
+        }
+        if (pending.remaining() < RECORD_OVERHEAD + dataLength) {
+            int size = Math.max(2 * pending.capacity(), pending.position() + RECORD_OVERHEAD + dataLength);
+            pending = ByteBuffer.allocate(size).put(pending.flip());
+        }
+        if (pending.position() == 0) {
+            // flusher may be waiting for something to write
+            notifyAll();
+        }
+
+        int start = pending.position();
+        appendedBytes += RECORD_OVERHEAD + dataLength;
+        pending.putInt(Long.BYTES + 1 + dataLength).putLong(++appended).put(type);
+        data.accept(pending);
+        CRC32 crc = new CRC32();
+        crc.update(pending.duplicate().position(start + Integer.BYTES).limit(pending.position()));
+        pending.putInt((int) crc.getValue());
+    }
+
+    /**
+     * Sequence number of the last appended change.
+     */
+    synchronized long lastAppended() {
+        return appended;
+    }
+
+    /**
+     * Size the log has with the last appended change.
+     */
+    synchronized long appendedBytes() {
+        return appendedBytes;
+    }
+
+    /**
+     * Drops the given number of bytes, which must be the size the log had at some change, from its head.
+     * No changes may be appended meanwhile.
+     */
+    synchronized void dropHead(long bytes) throws IOException {
+        awaitDurable(appended);
+        Path rest = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel copy = FileChannel.open(rest,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long position = bytes; position < appendedBytes; ) {
+                position += channel.transferTo(position, appendedBytes - position, copy);
+            }
+            copy.force(true);
+        }
+        Files.move(rest, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        appendedBytes -= bytes;
+        channel.position(appendedBytes);
+    }
+
+    /**
+     * Waits till the change with the sequence number and all before it are forced to disk.
+     */
+    synchronized void awaitDurable(long sequence) {
+        try {
+            while (durable < sequence && failure == null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataStoreException("Interrupted while waiting for write-ahead log", e);
+        }
+        if (durable < sequence) {
+            throw new DataStoreException("Write-ahead log failed", failure);
+        }
+    }
+
+    private void flush() {
+        try {
+            while (true) {
+                ByteBuffer toWrite;
+                long sequence;
+                FileChannel file;
+                synchronized (this) {
+                    while (pending.position() == 0 && !closed) {
+                        wait();
+                    }
+                    if (pending.position() == 0) {
+                        return;
+                    }
+                    toWrite = pending;
+                    pending = spare;
+                    spare = null;
+                    sequence = appended;
+                    file = channel;
+                }
+
+                toWrite.flip();
+                while (toWrite.hasRemaining()) {
+                    file.write(toWrite);
+                }
+                file.force(false);
+
+                synchronized (this) {
+                    spare = toWrite.clear();
+                    durable = sequence;
+                    notifyAll();
+                    // changes made during the pause are forced together
+                    long until = System.nanoTime() + fsyncIntervalNanos;
+                    for (long left = fsyncIntervalNanos; left > 0 && !closed; left = until - System.nanoTime()) {
+                        wait(left / 1_000_000, (int) (left % 1_000_000));
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException | InterruptedException e) {
+            // waiters and later writers get the failure, rather than wait for the flusher which is gone
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Forces everything appended and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
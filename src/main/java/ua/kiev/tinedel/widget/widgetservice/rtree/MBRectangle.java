@@ -23,10 +23,21 @@ public class MBRectangle {
 
     // strictly
     public boolean containsPoint(int x, int y) {
+        return containsPoint(x1, y1, x2, y2, x, y);
+    }
+
+    public static boolean containsPoint(int x1, int y1, int x2, int y2, int x, int y) {
         return x1 <= x && x <= x2
                 && y1 <= y && y <= y2;
     }
 
+    // squared distance from the point to the closest point of the rectangle, 0 if the point is inside
+    public static double distanceSquared(int x1, int y1, int x2, int y2, int x, int y) {
+        double dx = Math.max(0, Math.max((double) x1 - x, (double) x - x2));
+        double dy = Math.max(0, Math.max((double) y1 - y, (double) y - y2));
+        return dx * dx + dy * dy;
+    }
+
     public boolean intersects(MBRectangle other) {
         if (other == null) return false;
         // main diagonal
@@ -48,7 +59,7 @@ public class MBRectangle {
     }
 
     public long area() {
-        return (x2 - x1) * (y2 - y1);
+        return (long) (x2 - x1) * (y2 - y1);
     }
 
     public MBRectangle append(MBRectangle other) {
@@ -0,0 +1,586 @@
+package ua.kiev.tinedel.widget.widgetservice.rtree;
+
+import lombok.experimental.NonFinal;
+import ua.kiev.tinedel.widget.widgetservice.collections.OffHeapRecords;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * R-tree with nodes kept in {@link OffHeapRecords}, so that the heap holds nothing per node or per item however
+ * large the tree grows. Items are non-negative ints, usually numbers of records holding indexed objects, and their
+ * boxes and order keys are copied into the leaves when they are added. Nodes refer to each other and to items
+ * by their numbers.
+ * <p>
+ * Searches have the same semantics as those of {@link RTree}: areas return items fully contained in them, ordered
+ * searches visit subtrees best first by their order key range, and subtrees inside of counted area are counted by
+ * their stored sizes. Overflown nodes are split by the quadratic split, which needs no sorting of entries, and
+ * underfull ones are dissolved with their items reinserted.
+ * <p>
+ * Every node knows its parent and every item its leaf, so deletion and order change go straight to the leaf and
+ * walk up from there. Not thread-safe.
+ */
+public class OffHeapRTree {
+
+    private final static int NONE = OffHeapRecords.NONE;
+
+    // node header
+    private final static int COUNT = 0;
+    private final static int LEVEL = Integer.BYTES;
+    private final static int PARENT = 2 * Integer.BYTES;
+    private final static int ENTRIES = 4 * Integer.BYTES;
+
+    // node entry: box, order key range, child node or item and number of items in the subtree
+    private final static int X1 = 0;
+    private final static int Y1 = Integer.BYTES;
+    private final static int X2 = 2 * Integer.BYTES;
+    private final static int Y2 = 3 * Integer.BYTES;
+    private final static int MIN_ORDER = 4 * Integer.BYTES;
+    private final static int MAX_ORDER = MIN_ORDER + Long.BYTES;
+    private final static int CHILD = MAX_ORDER + Long.BYTES;
+    private final static int SIZE = CHILD + Integer.BYTES;
+    private final static int ENTRY_BYTES = SIZE + Integer.BYTES;
+
+    // rank of entries which can not satisfy the query
+    private final static double NO_MATCH = Double.POSITIVE_INFINITY;
+
+    int minFill;
+    int maxFill;
+    OffHeapRecords nodes;
+    // leaf of every item, indexed by item
+    OffHeapRecords leaves = new OffHeapRecords(Integer.BYTES);
+    @NonFinal int root;
+    @NonFinal int size;
+
+    // entries of the node being split and groups they go to
+    int[] splitX1;
+    int[] splitY1;
+    int[] splitX2;
+    int[] splitY2;
+    long[] splitMinOrder;
+    long[] splitMaxOrder;
+    int[] splitChild;
+    int[] splitSize;
+    int[] splitGroup;
+
+    public OffHeapRTree() {
+        this(RTree.MINIMUM_FILL, RTree.MAXIMUM_FILL);
+    }
+
+    public OffHeapRTree(int minFill, int maxFill) {
+        if (minFill < 1 || 2 * minFill > maxFill) {
+            throw new IllegalArgumentException("Fill limits must satisfy 1 <= minFill <= maxFill / 2");
+        }
+        this.minFill = minFill;
+        this.maxFill = maxFill;
+        // room for one more entry, which overflows the node before it is split
+        this.nodes = new OffHeapRecords(ENTRIES + (maxFill + 1) * ENTRY_BYTES);
+        this.splitX1 = new int[maxFill + 1];
+        this.splitY1 = new int[maxFill + 1];
+        this.splitX2 = new int[maxFill + 1];
+        this.splitY2 = new int[maxFill + 1];
+        this.splitMinOrder = new long[maxFill + 1];
+        this.splitMaxOrder = new long[maxFill + 1];
+        this.splitChild = new int[maxFill + 1];
+        this.splitSize = new int[maxFill + 1];
+        this.splitGroup = new int[maxFill + 1];
+        this.root = newNode(0);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        nodes.clear();
+        leaves.clear();
+        root = newNode(0);
+        size = 0;
+    }
+
+    /**
+     * Item must not be indexed yet.
+     */
+    public void add(int item, int x1, int y1, int x2, int y2, long order) {
+        leaves.ensureCapacity(item + 1);
+        insert(item, x1, y1, x2, y2, order);
+        size++;
+    }
+
+    /**
+     * Item must be indexed.
+     */
+    public void delete(int item) {
+        int leaf = leaves.getInt(item, 0);
+        removeEntry(leaf, indexOf(leaf, item));
+        size--;
+        condense(leaf);
+    }
+
+    /**
+     * Item must be indexed. It is reinserted, so that leaves do not stretch after items moved far away.
+     */
+    public void update(int item, int x1, int y1, int x2, int y2, long order) {
+        delete(item);
+        add(item, x1, y1, x2, y2, order);
+    }
+
+    /**
+     * Changes order key of indexed item in place, only order ranges on the way up are adjusted.
+     */
+    public void updateOrder(int item, long order) {
+        int leaf = leaves.getInt(item, 0);
+        int i = indexOf(leaf, item);
+        putLong(leaf, i, MIN_ORDER, order);
+        putLong(leaf, i, MAX_ORDER, order);
+        adjust(leaf);
+    }
+
+    /**
+     * Passes every item fully contained in the query to the consumer.
+     */
+    public void search(MBRectangle query, IntConsumer consumer) {
+        search(root, query.getX1(), query.getY1(), query.getX2(), query.getY2(), consumer);
+    }
+
+    private void search(int node, int qx1, int qy1, int qx2, int qy2, IntConsumer consumer) {
+        boolean leaf = level(node) == 0;
+        for (int i = 0, count = count(node); i < count; i++) {
+            if (leaf) {
+                if (contains(qx1, qy1, qx2, qy2, node, i)) {
+                    consumer.accept(getInt(node, i, CHILD));
+                }
+            } else if (intersects(qx1, qy1, qx2, qy2, node, i)) {
+                search(getInt(node, i, CHILD), qx1, qy1, qx2, qy2, consumer);
+            }
+        }
+    }
+
+    /**
+     * Counts items fully contained in the query, subtrees inside of it are counted by their stored sizes.
+     */
+    public int count(MBRectangle query) {
+        return count(root, query.getX1(), query.getY1(), query.getX2(), query.getY2());
+    }
+
+    private int count(int node, int qx1, int qy1, int qx2, int qy2) {
+        boolean leaf = level(node) == 0;
+        int found = 0;
+        for (int i = 0, count = count(node); i < count; i++) {
+            if (contains(qx1, qy1, qx2, qy2, node, i)) {
+                found += getInt(node, i, SIZE);
+            } else if (!leaf && intersects(qx1, qy1, qx2, qy2, node, i)) {
+                found += count(getInt(node, i, CHILD), qx1, qy1, qx2, qy2);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Passes items fully contained in the query to the consumer ordered by their order keys, highest first
+     * if requested, starting from the given key and stopping after limit of them.
+     */
+    public void searchOrdered(MBRectangle query, boolean highestFirst, long from, int limit, IntConsumer consumer) {
+        int qx1 = query.getX1(), qy1 = query.getY1(), qx2 = query.getX2(), qy2 = query.getY2();
+
+        searchBestFirst(limit, consumer, (node, i, leaf) -> {
+            boolean matches = leaf ? contains(qx1, qy1, qx2, qy2, node, i) : intersects(qx1, qy1, qx2, qy2, node, i);
+            boolean reached = highestFirst
+                    ? getLong(node, i, MIN_ORDER) <= from
+                    : from <= getLong(node, i, MAX_ORDER);
+            return matches && reached ? orderRank(node, i, highestFirst) : NO_MATCH;
+        });
+    }
+
+    /**
+     * Passes items covering the point to the consumer ordered by their order keys, highest first if requested,
+     * and stops after limit of them.
+     */
+    public void searchAtPointOrdered(int x, int y, boolean highestFirst, int limit, IntConsumer consumer) {
+        searchBestFirst(limit, consumer, (node, i, leaf) ->
+                MBRectangle.containsPoint(getInt(node, i, X1), getInt(node, i, Y1), getInt(node, i, X2),
+                        getInt(node, i, Y2), x, y)
+                        ? orderRank(node, i, highestFirst)
+                        : NO_MATCH);
+    }
+
+    /**
+     * Passes k items nearest to the point to the consumer, nearest first.
+     */
+    public void searchNearest(int x, int y, int k, IntConsumer consumer) {
+        searchBestFirst(k, consumer, (node, i, leaf) -> MBRectangle.distanceSquared(getInt(node, i, X1),
+                getInt(node, i, Y1), getInt(node, i, X2), getInt(node, i, Y2), x, y));
+    }
+
+    private interface EntryRank {
+        double rank(int node, int i, boolean leaf);
+    }
+
+    private double orderRank(int node, int i, boolean highestFirst) {
+        return highestFirst ? -(double) getLong(node, i, MAX_ORDER) : getLong(node, i, MIN_ORDER);
+    }
+
+    /*
+     * Queue holds nodes and items together, told apart by the lowest bit of their references.
+     */
+    private void searchBestFirst(int limit, IntConsumer consumer, EntryRank rank) {
+        RankedQueue queue = new RankedQueue();
+        queue.add(Double.NEGATIVE_INFINITY, (long) root << 1);
+
+        int found = 0;
+        while (found < limit && !queue.isEmpty()) {
+            long best = queue.poll();
+            if ((best & 1) != 0) {
+                consumer.accept((int) (best >>> 1));
+                found++;
+                continue;
+            }
+
+            int node = (int) (best >>> 1);
+            boolean leaf = level(node) == 0;
+            for (int i = 0, count = count(node); i < count; i++) {
+                double entryRank = rank.rank(node, i, leaf);
+                if (entryRank != NO_MATCH) {
+                    queue.add(entryRank, (long) getInt(node, i, CHILD) << 1 | (leaf ? 1 : 0));
+                }
+            }
+        }
+    }
+
+    private void insert(int item, int x1, int y1, int x2, int y2, long order) {
+        int node = root;
+        while (level(node) > 0) {
+            node = getInt(node, chooseSubtree(node, x1, y1, x2, y2), CHILD);
+        }
+        int i = count(node);
+        putEntry(node, i, x1, y1, x2, y2, order, order, item, 1);
+        putInt(node, COUNT, i + 1);
+        leaves.putInt(item, 0, node);
+        adjust(node);
+    }
+
+    // entry which box needs the least enlargement, then the one with the least area
+    private int chooseSubtree(int node, int x1, int y1, int x2, int y2) {
+        int best = 0;
+        double bestEnlargement = Double.POSITIVE_INFINITY;
+        double bestArea = Double.POSITIVE_INFINITY;
+        for (int i = 0, count = count(node); i < count; i++) {
+            int ex1 = getInt(node, i, X1), ey1 = getInt(node, i, Y1), ex2 = getInt(node, i, X2),
+                    ey2 = getInt(node, i, Y2);
+            double area = area(ex1, ey1, ex2, ey2);
+            double enlargement = area(Math.min(ex1, x1), Math.min(ey1, y1), Math.max(ex2, x2), Math.max(ey2, y2))
+                    - area;
+            if (enlargement < bestEnlargement || enlargement == bestEnlargement && area < bestArea) {
+                best = i;
+                bestEnlargement = enlargement;
+                bestArea = area;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Walks from the changed node up to the root, splitting overflown nodes and recalculating entries of
+     * the parents, until an entry comes out unchanged.
+     */
+    private void adjust(int node) {
+        while (true) {
+            int sibling = count(node) > maxFill ? split(node) : NONE;
+            int parent = getInt(node, PARENT);
+            if (parent == NONE) {
+                if (sibling != NONE) {
+                    root = newNode(level(node) + 1);
+                    appendCover(root, node);
+                    appendCover(root, sibling);
+                }
+                return;
+            }
+
+            boolean changed = putCover(parent, indexOf(parent, node), node);
+            if (sibling != NONE) {
+                appendCover(parent, sibling);
+                changed = true;
+            }
+            if (!changed) {
+                return;
+            }
+            node = parent;
+        }
+    }
+
+    /**
+     * Walks from the node which lost an entry up to the root, dissolving nodes which fell below minimum fill and
+     * recalculating entries of the rest. Items of dissolved nodes are reinserted, root with single child is
+     * replaced by that child.
+     */
+    private void condense(int node) {
+        int[] dissolved = new int[0];
+        while (getInt(node, PARENT) != NONE) {
+            int parent = getInt(node, PARENT);
+            int i = indexOf(parent, node);
+            if (count(node) < minFill) {
+                removeEntry(parent, i);
+                dissolved = Arrays.copyOf(dissolved, dissolved.length + 1);
+                dissolved[dissolved.length - 1] = node;
+            } else {
+                putCover(parent, i, node);
+            }
+            node = parent;
+        }
+        if (count(root) == 0) {
+            putInt(root, LEVEL, 0);
+        }
+
+        for (int subtree : dissolved) {
+            reinsert(subtree);
+        }
+
+        while (level(root) > 0 && count(root) == 1) {
+            int child = getInt(root, 0, CHILD);
+            nodes.free(root);
+            root = child;
+            putInt(root, PARENT, NONE);
+        }
+    }
+
+    // nodes of the subtree are freed only after their entries are read
+    private void reinsert(int node) {
+        for (int i = 0, count = count(node); i < count; i++) {
+            if (level(node) == 0) {
+                insert(getInt(node, i, CHILD), getInt(node, i, X1), getInt(node, i, Y1), getInt(node, i, X2),
+                        getInt(node, i, Y2), getLong(node, i, MIN_ORDER));
+            } else {
+                reinsert(getInt(node, i, CHILD));
+            }
+        }
+        nodes.free(node);
+    }
+
+    /**
+     * Quadratic split: two entries which would waste the most area together start the groups, then entries
+     * with the strongest preference for one of them go first, each to the group which box grows less.
+     * Returns new node with the second group.
+     */
+    private int split(int node) {
+        int count = count(node);
+        for (int i = 0; i < count; i++) {
+            splitX1[i] = getInt(node, i, X1);
+            splitY1[i] = getInt(node, i, Y1);
+            splitX2[i] = getInt(node, i, X2);
+            splitY2[i] = getInt(node, i, Y2);
+            splitMinOrder[i] = getLong(node, i, MIN_ORDER);
+            splitMaxOrder[i] = getLong(node, i, MAX_ORDER);
+            splitChild[i] = getInt(node, i, CHILD);
+            splitSize[i] = getInt(node, i, SIZE);
+            splitGroup[i] = 0;
+        }
+
+        int seedA = 0, seedB = 1;
+        double worstWaste = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            for (int j = i + 1; j < count; j++) {
+                double waste = area(Math.min(splitX1[i], splitX1[j]), Math.min(splitY1[i], splitY1[j]),
+                        Math.max(splitX2[i], splitX2[j]), Math.max(splitY2[i], splitY2[j]))
+                        - area(splitX1[i], splitY1[i], splitX2[i], splitY2[i])
+                        - area(splitX1[j], splitY1[j], splitX2[j], splitY2[j]);
+                if (waste > worstWaste) {
+                    worstWaste = waste;
+                    seedA = i;
+                    seedB = j;
+                }
+            }
+        }
+
+        int[] boxA = {splitX1[seedA], splitY1[seedA], splitX2[seedA], splitY2[seedA]};
+        int[] boxB = {splitX1[seedB], splitY1[seedB], splitX2[seedB], splitY2[seedB]};
+        splitGroup[seedA] = 1;
+        splitGroup[seedB] = 2;
+        int sizeA = 1, sizeB = 1;
+        for (int left = count - 2; left > 0; left--) {
+            if (sizeA + left == minFill || sizeB + left == minFill) {
+                int group = sizeA + left == minFill ? 1 : 2;
+                for (int i = 0; i < count; i++) {
+                    if (splitGroup[i] == 0) {
+                        splitGroup[i] = group;
+                    }
+                }
+                break;
+            }
+
+            int next = NONE;
+            double nextA = 0, nextB = 0;
+            for (int i = 0; i < count; i++) {
+                if (splitGroup[i] == 0) {
+                    double enlargementA = enlargement(boxA, i), enlargementB = enlargement(boxB, i);
+                    if (next == NONE || Math.abs(enlargementA - enlargementB) > Math.abs(nextA - nextB)) {
+                        next = i;
+                        nextA = enlargementA;
+                        nextB = enlargementB;
+                    }
+                }
+            }
+            boolean toA = nextA != nextB
+                    ? nextA < nextB
+                    : area(boxA[0], boxA[1], boxA[2], boxA[3]) != area(boxB[0], boxB[1], boxB[2], boxB[3])
+                    ? area(boxA[0], boxA[1], boxA[2], boxA[3]) < area(boxB[0], boxB[1], boxB[2], boxB[3])
+                    : sizeA <= sizeB;
+            splitGroup[next] = toA ? 1 : 2;
+            extend(toA ? boxA : boxB, next);
+            if (toA) {
+                sizeA++;
+            } else {
+                sizeB++;
+            }
+        }
+
+        int sibling = newNode(level(node));
+        putInt(sibling, PARENT, getInt(node, PARENT));
+        int countA = 0, countB = 0;
+        for (int i = 0; i < count; i++) {
+            int target = splitGroup[i] == 1 ? node : sibling;
+            putEntry(target, splitGroup[i] == 1 ? countA++ : countB++, splitX1[i], splitY1[i], splitX2[i],
+                    splitY2[i], splitMinOrder[i], splitMaxOrder[i], splitChild[i], splitSize[i]);
+            if (target == sibling) {
+                if (level(node) == 0) {
+                    leaves.putInt(splitChild[i], 0, sibling);
+                } else {
+                    putInt(splitChild[i], PARENT, sibling);
+                }
+            }
+        }
+        putInt(node, COUNT, countA);
+        putInt(sibling, COUNT, countB);
+        return sibling;
+    }
+
+    private double enlargement(int[] box, int i) {
+        return area(Math.min(box[0], splitX1[i]), Math.min(box[1], splitY1[i]),
+                Math.max(box[2], splitX2[i]), Math.max(box[3], splitY2[i]))
+                - area(box[0], box[1], box[2], box[3]);
+    }
+
+    private void extend(int[] box, int i) {
+        box[0] = Math.min(box[0], splitX1[i]);
+        box[1] = Math.min(box[1], splitY1[i]);
+        box[2] = Math.max(box[2], splitX2[i]);
+        box[3] = Math.max(box[3], splitY2[i]);
+    }
+
+    private static double area(int x1, int y1, int x2, int y2) {
+        return ((double) x2 - x1) * ((double) y2 - y1);
+    }
+
+    private int newNode(int level) {
+        int node = nodes.allocate();
+        putInt(node, COUNT, 0);
+        putInt(node, LEVEL, level);
+        putInt(node, PARENT, NONE);
+        return node;
+    }
+
+    private void appendCover(int parent, int node) {
+        int i = count(parent);
+        putInt(parent, COUNT, i + 1);
+        putInt(parent, i, CHILD, node);
+        putInt(node, PARENT, parent);
+        putCover(parent, i, node);
+    }
+
+    // sets entry i of the parent to cover the node, tells if the entry changed
+    private boolean putCover(int parent, int i, int node) {
+        int x1 = Integer.MAX_VALUE, y1 = Integer.MAX_VALUE, x2 = Integer.MIN_VALUE, y2 = Integer.MIN_VALUE;
+        long minOrder = Long.MAX_VALUE, maxOrder = Long.MIN_VALUE;
+        int size = 0;
+        for (int k = 0, count = count(node); k < count; k++) {
+            x1 = Math.min(x1, getInt(node, k, X1));
+            y1 = Math.min(y1, getInt(node, k, Y1));
+            x2 = Math.max(x2, getInt(node, k, X2));
+            y2 = Math.max(y2, getInt(node, k, Y2));
+            minOrder = Math.min(minOrder, getLong(node, k, MIN_ORDER));
+            maxOrder = Math.max(maxOrder, getLong(node, k, MAX_ORDER));
+            size += getInt(node, k, SIZE);
+        }
+
+        boolean changed = x1 != getInt(parent, i, X1) || y1 != getInt(parent, i, Y1)
+                || x2 != getInt(parent, i, X2) || y2 != getInt(parent, i, Y2)
+                || minOrder != getLong(parent, i, MIN_ORDER) || maxOrder != getLong(parent, i, MAX_ORDER)
+                || size != getInt(parent, i, SIZE);
+        putEntry(parent, i, x1, y1, x2, y2, minOrder, maxOrder, node, size);
+        return changed;
+    }
+
+    private void putEntry(int node, int i, int x1, int y1, int x2, int y2, long minOrder, long maxOrder,
+                          int child, int size) {
+        putInt(node, i, X1, x1);
+        putInt(node, i, Y1, y1);
+        putInt(node, i, X2, x2);
+        putInt(node, i, Y2, y2);
+        putLong(node, i, MIN_ORDER, minOrder);
+        putLong(node, i, MAX_ORDER, maxOrder);
+        putInt(node, i, CHILD, child);
+        putInt(node, i, SIZE, size);
+    }
+
+    // the last entry takes place of the removed one
+    private void removeEntry(int node, int i) {
+        int last = count(node) - 1;
+        if (i != last) {
+            int child = getInt(node, last, CHILD);
+            putEntry(node, i, getInt(node, last, X1), getInt(node, last, Y1), getInt(node, last, X2),
+                    getInt(node, last, Y2), getLong(node, last, MIN_ORDER), getLong(node, last, MAX_ORDER),
+                    child, getInt(node, last, SIZE));
+        }
+        putInt(node, COUNT, last);
+    }
+
+    private int indexOf(int node, int child) {
+        for (int i = 0, count = count(node); i < count; i++) {
+            if (getInt(node, i, CHILD) == child) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Entry is not found in its node");
+    }
+
+    private boolean contains(int qx1, int qy1, int qx2, int qy2, int node, int i) {
+        return qx1 <= getInt(node, i, X1) && getInt(node, i, X2) <= qx2
+                && qy1 <= getInt(node, i, Y1) && getInt(node, i, Y2) <= qy2;
+    }
+
+    private boolean intersects(int qx1, int qy1, int qx2, int qy2, int node, int i) {
+        return getInt(node, i, X1) <= qx2 && qx1 <= getInt(node, i, X2)
+                && getInt(node, i, Y1) <= qy2 && qy1 <= getInt(node, i, Y2);
+    }
+
+    private int count(int node) {
+        return getInt(node, COUNT);
+    }
+
+    private int level(int node) {
+        return getInt(node, LEVEL);
+    }
+
+    private int getInt(int node, int field) {
+        return nodes.getInt(node, field);
+    }
+
+    private void putInt(int node, int field, int value) {
+        nodes.putInt(node, field, value);
+    }
+
+    private int getInt(int node, int i, int field) {
+        return nodes.getInt(node, ENTRIES + i * ENTRY_BYTES + field);
+    }
+
+    private void putInt(int node, int i, int field, int value) {
+        nodes.putInt(node, ENTRIES + i * ENTRY_BYTES + field, value);
+    }
+
+    private long getLong(int node, int i, int field) {
+        return nodes.getLong(node, ENTRIES + i * ENTRY_BYTES + field);
+    }
+
+    private void putLong(int node, int i, int field, long value) {
+        nodes.putLong(node, ENTRIES + i * ENTRY_BYTES + field, value);
+    }
+}
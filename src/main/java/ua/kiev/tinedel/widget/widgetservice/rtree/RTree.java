@@ -1,268 +1,1050 @@
 package ua.kiev.tinedel.widget.widgetservice.rtree;
 
 import lombok.experimental.NonFinal;
-import ua.kiev.tinedel.widget.widgetservice.models.Widget;
 
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
-public class RTree {
+/**
+ * R*-tree over widget bounding boxes. Widgets may be indexed in any form, their boxes and order keys are
+ * taken from {@link Shape} of the tree.
+ * <p>
+ * Leaves are on level 0 and all of them are on the same depth. Every node except root holds from minFill to maxFill
+ * entries. Overflown node first tries to give away part of its entries by reinserting them (once per level per
+ * insertion) and is split only if reinsertion did not help.
+ * <p>
+ * Nodes keep bounding boxes of their entries in parallel int arrays, so scans during search and insertion
+ * run over contiguous primitive memory instead of chasing pointers to widgets and rectangles.
+ * Range of order keys of every subtree is kept the same way, which allows to find top-most or bottom-most widgets
+ * in area without visiting all the others. So are the sizes of subtrees, which allows to count widgets in area
+ * without visiting subtrees fully inside of it.
+ * <p>
+ * Order key is usually zIndex, but may be any other key which follows the same order, e.g. one which does not
+ * change when zIndexes are shifted.
+ * <p>
+ * Every node knows its parent and every indexed widget knows its leaf, so deletion and order refresh go straight
+ * to the leaf and walk up from there. Widgets are identified by reference, as they may be mutable and do not
+ * necessarily have ids yet.
+ * <p>
+ * Read only {@link #snapshot() snapshots} of the tree can be taken at any moment. Every node remembers the owner
+ * it was created for, and nodes which may be seen through a snapshot are copied together with their path
+ * to the root before being changed. So snapshot costs nothing to take and change costs only copies of the nodes
+ * on the changed paths.
+ */
+public class RTree<T> {
 
-    public final static int MINIMUM_FILL = 5;
-    public final static int MAXIMUM_FILL = 100;
+    public final static int MINIMUM_FILL = 20;
+    public final static int MAXIMUM_FILL = 50;
 
-    @NonFinal Node root = new NonLeafNode();
+    // share of entries of overflown node which are reinserted instead of split, 30% is recommended for R*-tree
+    private final static double REINSERT_SHARE = 0.3;
+    // number of children with the least area enlargement for which overlap enlargement is checked
+    private final static int OVERLAP_CANDIDATES = 16;
 
-    public List<Widget> find(MBRectangle query) {
-        return root.find(query);
+    int minFill;
+    int maxFill;
+    Shape<T> shape;
+
+    @NonFinal Node root;
+    @NonFinal int height = 1;
+    @NonFinal int size = 0;
+    // null for snapshots, which can not be changed
+    Map<T, Node> leaves;
+    // nodes created for other owner may be seen through snapshots
+    @NonFinal Object owner = new Object();
+
+    public RTree(Shape<T> shape) {
+        this(MINIMUM_FILL, MAXIMUM_FILL, shape);
     }
 
-    public void add(Widget w) {
-        root.add(w);
+    /**
+     * Boxes and order keys are read only when widgets are added or updated, order keys must be exact as doubles.
+     */
+    public RTree(int minFill, int maxFill, Shape<T> shape) {
+        if (minFill < 1 || 2 * minFill > maxFill) {
+            throw new IllegalArgumentException("Fill limits must satisfy 1 <= minFill <= maxFill / 2");
+        }
+        this.minFill = minFill;
+        this.maxFill = maxFill;
+        this.shape = shape;
+        this.leaves = new IdentityHashMap<>();
+        this.root = new Node(true, maxFill);
     }
 
-    public void delete(Widget w) {
-        root.delete(w);
+    private RTree(RTree<T> source) {
+        this.minFill = source.minFill;
+        this.maxFill = source.maxFill;
+        this.shape = source.shape;
+        this.leaves = null;
+        this.root = source.root;
+        this.height = source.height;
+        this.size = source.size;
     }
 
-    public void validate(int expectedSize) {
-        if (expectedSize != size()) {
-            throw new RuntimeException("Some elements were lost");
+    /**
+     * Returns read only view of the tree as it is now. The tree copies nodes shared with the view before changing
+     * them, so the view never changes and, once safely published, can be searched concurrently with changes
+     * of the tree without any locking.
+     */
+    public RTree<T> snapshot() {
+        checkNotSnapshot();
+        owner = new Object();
+        return new RTree<>(this);
+    }
+
+    private void checkNotSnapshot() {
+        if (leaves == null) {
+            throw new UnsupportedOperationException("Snapshot of the tree can not be changed");
+        }
+    }
+
+    // returns node which can be changed, which is either node itself or its copy replacing it in the tree
+    private Node editable(Node node) {
+        if (node.owner == owner) {
+            return node;
         }
 
-        root.validate();
+        Node copy = new Node(node);
+        if (node.parent == null) {
+            root = copy;
+        } else {
+            Node parent = editable(node.parent);
+            parent.items[parent.indexOf(node)] = copy;
+            copy.parent = parent;
+        }
+        for (int i = 0; i < copy.count; i++) {
+            copy.adopt(i);
+        }
+        return copy;
     }
 
-    public int size() {
-        return root.size();
+    public List<T> find(MBRectangle query) {
+        List<T> found = new ArrayList<>();
+        search(query, found::add);
+        return Collections.unmodifiableList(found);
     }
 
-    public void clear() {
-        root = new NonLeafNode();
+    /**
+     * Passes every widget fully contained in the query to the consumer. Nothing is allocated during traversal,
+     * so it is preferred over {@link #find(MBRectangle)} on hot paths.
+     */
+    public void search(MBRectangle query, Consumer<T> consumer) {
+        search(query.getX1(), query.getY1(), query.getX2(), query.getY2(), consumer);
+    }
+
+    public void search(int x1, int y1, int x2, int y2, Consumer<T> consumer) {
+        root.search(x1, y1, x2, y2, consumer);
+    }
+
+    /**
+     * Counts widgets fully contained in the query. Subtrees which boxes are inside of the query are counted
+     * by their stored sizes without descending into them.
+     */
+    public int count(MBRectangle query) {
+        return root.count(query.getX1(), query.getY1(), query.getX2(), query.getY2());
+    }
+
+    /**
+     * Passes widgets fully contained in the query to the consumer ordered by zIndex, top-most first if requested,
+     * and stops after limit of them. Subtrees are visited best first by their zIndex range, so widgets which
+     * are not going to be returned mostly stay unvisited.
+     */
+    public void searchOrderedByZIndex(MBRectangle query, boolean topMostFirst, int limit, Consumer<T> consumer) {
+        searchOrderedByZIndex(query, topMostFirst, topMostFirst ? Long.MAX_VALUE : Long.MIN_VALUE, limit, consumer);
+    }
+
+    /**
+     * The same as {@link #searchOrderedByZIndex(MBRectangle, boolean, int, Consumer)}, but starts from the given
+     * order key: widgets which keys are below it, or above it for top-most first, are skipped together with
+     * subtrees holding only such widgets. Passing the key next to the last one found resumes the search.
+     */
+    public void searchOrderedByZIndex(MBRectangle query, boolean topMostFirst, long from, int limit,
+                                      Consumer<T> consumer) {
+        int qx1 = query.getX1(), qy1 = query.getY1(), qx2 = query.getX2(), qy2 = query.getY2();
+
+        searchBestFirst(limit, consumer, (node, i) -> {
+            boolean matches = node.leaf
+                    ? qx1 <= node.x1[i] && node.x2[i] <= qx2 && qy1 <= node.y1[i] && node.y2[i] <= qy2
+                    : node.x1[i] <= qx2 && qx1 <= node.x2[i] && node.y1[i] <= qy2 && qy1 <= node.y2[i];
+            boolean reached = topMostFirst ? node.minOrder[i] <= from : from <= node.maxOrder[i];
+            return matches && reached ? orderRank(node, i, topMostFirst) : NO_MATCH;
+        });
     }
 
-    private abstract static class Node {
-        @NonFinal
-        protected MBRectangle mbr;
+    /**
+     * Stabbing query: passes widgets covering the point to the consumer ordered by zIndex, top-most first
+     * if requested, and stops after limit of them.
+     */
+    public void searchAtPointOrderedByZIndex(int x, int y, boolean topMostFirst, int limit, Consumer<T> consumer) {
+        searchBestFirst(limit, consumer, (node, i) ->
+                MBRectangle.containsPoint(node.x1[i], node.y1[i], node.x2[i], node.y2[i], x, y)
+                        ? orderRank(node, i, topMostFirst)
+                        : NO_MATCH);
+    }
+
+    /**
+     * Passes k widgets nearest to the point to the consumer, nearest first. Distance to widget is the distance
+     * to the closest point of its box, so it is 0 for widgets covering the point.
+     */
+    public void searchNearest(int x, int y, int k, Consumer<T> consumer) {
+        searchBestFirst(k, consumer, (node, i) ->
+                MBRectangle.distanceSquared(node.x1[i], node.y1[i], node.x2[i], node.y2[i], x, y));
+    }
+
+    // rank of entries which can not satisfy the query
+    private final static double NO_MATCH = Double.POSITIVE_INFINITY;
+
+    /**
+     * Rank of entry i of the node, entries with lower rank are passed to the consumer first. Rank of non leaf entry
+     * must not be greater than rank of any widget in the subtree. Returns NO_MATCH if neither the entry
+     * nor for non leaf entry any of its widgets satisfy the query.
+     */
+    private interface EntryRank {
+        double rank(RTree<?>.Node node, int i);
+    }
 
-        public Node(MBRectangle mbr) {
-            this.mbr = mbr;
+    private static double orderRank(RTree<?>.Node node, int i, boolean topMostFirst) {
+        return topMostFirst ? -(double) node.maxOrder[i] : node.minOrder[i];
+    }
+
+    /*
+     * Queue holds entries of expanded nodes, referred to by the number of the node in the list of expanded ones
+     * and the index of the entry in the node, so that nothing is allocated per entry.
+     */
+    @SuppressWarnings("unchecked")
+    private void searchBestFirst(int limit, Consumer<T> consumer, EntryRank rank) {
+        List<Node> expanded = new ArrayList<>();
+        RankedQueue queue = new RankedQueue();
+        expand(root, rank, expanded, queue);
+
+        int found = 0;
+        while (found < limit && !queue.isEmpty()) {
+            long best = queue.poll();
+            Node node = expanded.get((int) (best >>> 32));
+            int i = (int) best;
+            if (node.leaf) {
+                consumer.accept((T) node.items[i]);
+                found++;
+            } else {
+                expand(node.child(i), rank, expanded, queue);
+            }
         }
+    }
 
-        public Node() {
-            this(null);
+    private void expand(Node node, EntryRank rank, List<Node> expanded, RankedQueue queue) {
+        long ref = (long) expanded.size() << 32;
+        expanded.add(node);
+        for (int i = 0; i < node.count; i++) {
+            double entryRank = rank.rank(node, i);
+            if (entryRank != NO_MATCH) {
+                queue.add(entryRank, ref | i);
+            }
+        }
+    }
+
+    public void add(T w) {
+        checkNotSnapshot();
+        insert(entry(w), 0, new BitSet());
+        size++;
+    }
+
+    /**
+     * Replaces indexed widget with its updated version, which may also be the same instance changed in place.
+     * While updated widget still intersects box of its leaf, as it does when widget is dragged, it stays in
+     * the same leaf and only boxes on the way up are adjusted. Otherwise it is reinserted, so that leaves do not
+     * stretch after widgets moved far away. Widget which is not indexed yet is just added.
+     */
+    public void update(T old, T updated) {
+        checkNotSnapshot();
+        Node leaf = leaves.get(old);
+        if (leaf == null) {
+            add(updated);
+            return;
         }
 
-        public abstract List<Widget> find(MBRectangle query);
+        MBREntry entry = entry(updated);
+        Node parent = leaf.parent;
+        if (parent != null) {
+            int slot = parent.indexOf(leaf);
+            if (entry.x1 > parent.x2[slot] || parent.x1[slot] > entry.x2
+                    || entry.y1 > parent.y2[slot] || parent.y1[slot] > entry.y2) {
+                delete(old);
+                add(updated);
+                return;
+            }
+        }
+
+        leaf = editable(leaf);
+        leaves.remove(old);
+        leaf.set(leaf.indexOf(old), entry);
+        for (Node node = leaf; node.parent != null; node = node.parent) {
+            node.parent.updateBox(node.parent.indexOf(node));
+        }
+    }
 
-        public abstract void add(Widget w);
+    /**
+     * Order key of widget is stored in the tree, so it has to be refreshed after the key of indexed widget was changed.
+     * Widgets seen through snapshots should not be changed in place, {@link #update} with a copy is used for them.
+     */
+    public void refreshOrder(T w) {
+        checkNotSnapshot();
+        if (leaves.containsKey(w)) {
+            update(w, w);
+        }
+    }
 
-        public abstract void delete(Widget w);
+    /**
+     * Builds fully packed tree using Sort-Tile-Recursive algorithm. Much faster than adding widgets one by one
+     * and gives better packed nodes, so should be used whenever whole index is (re)built.
+     */
+    public static <T> RTree<T> bulkLoad(Collection<T> widgets, Shape<T> shape) {
+        RTree<T> tree = new RTree<>(shape);
+        if (widgets.isEmpty()) {
+            return tree;
+        }
 
-        public abstract Node fixOverflow();
+        List<RTree<T>.Node> level = tree.tile(widgets.stream().map(tree::entry).collect(Collectors.toList()), true);
 
-        public abstract int size();
+        while (level.size() > 1) {
+            level = tree.tile(level.stream().map(MBREntry::new).collect(Collectors.toList()), false);
+            tree.height++;
+        }
 
-        public abstract void validate();
+        tree.root = level.get(0);
+        tree.size = widgets.size();
+        return tree;
     }
 
-    private static class NonLeafNode extends Node {
+    // slices and nodes are evenly sized, so none of them ends up below minimum fill
+    private List<Node> tile(List<MBREntry> entries, boolean leaves) {
+        int nodeCount = (entries.size() + maxFill - 1) / maxFill;
+        int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+
+        sortByCenter(entries, true);
 
-        Node[] children = new Node[9];
+        List<Node> nodes = new ArrayList<>(nodeCount);
+        for (List<MBREntry> slice : evenlySplit(entries, sliceCount)) {
+            sortByCenter(slice, false);
 
-        public NonLeafNode() {
-            for (int i = 0; i < 9; i++) {
-                children[i] = new LeafNode();
+            for (List<MBREntry> nodeEntries : evenlySplit(slice, (slice.size() + maxFill - 1) / maxFill)) {
+                Node node = new Node(leaves, maxFill);
+                nodeEntries.forEach(node::add);
+                nodes.add(node);
             }
         }
+        return nodes;
+    }
+
+    /*
+     * Stable sort by centers of boxes along x or y. Centers and positions are packed into longs, so that millions
+     * of entries are sorted as primitives rather than through a comparator jumping between objects.
+     */
+    private static void sortByCenter(List<MBREntry> entries, boolean alongX) {
+        long[] keys = new long[entries.size()];
+        for (int i = 0; i < keys.length; i++) {
+            MBREntry e = entries.get(i);
+            int center = (int) (alongX ? ((long) e.x1 + e.x2) >> 1 : ((long) e.y1 + e.y2) >> 1);
+            // flipped sign bits make the signed order of keys the order of centers, then of positions
+            keys[i] = ((long) (center ^ Integer.MIN_VALUE) << 32 | i) ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(keys);
+
+        MBREntry[] sorted = new MBREntry[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            sorted[i] = entries.get((int) keys[i]);
+        }
+        for (int i = 0; i < sorted.length; i++) {
+            entries.set(i, sorted[i]);
+        }
+    }
 
-        public NonLeafNode(Node[] seed) {
-            if (seed.length != 9) {
-                throw new RuntimeException("Overfill fix error. Must produce 9 child nodes");
+    private static List<List<MBREntry>> evenlySplit(List<MBREntry> entries, int parts) {
+        List<List<MBREntry>> result = new ArrayList<>(parts);
+        int start = 0;
+        for (int i = 0; i < parts; i++) {
+            int end = (int) ((long) entries.size() * (i + 1) / parts);
+            result.add(entries.subList(start, end));
+            start = end;
+        }
+        return result;
+    }
+
+    /**
+     * Removes exactly the given instance of widget, equal widgets which were not added to the tree are ignored.
+     */
+    public void delete(T w) {
+        checkNotSnapshot();
+        Node leaf = leaves.get(w);
+        if (leaf == null) {
+            return;
+        }
+        leaf = editable(leaf);
+        leaves.remove(w);
+        leaf.removeAt(leaf.indexOf(w));
+        size--;
+        condense(leaf);
+    }
+
+    /**
+     * Walks from the node up to the root, removing nodes which fell below minimum fill and recalculating boxes
+     * of the rest. Entries of removed nodes are reinserted on their levels, root with single child is replaced
+     * by that child.
+     */
+    private void condense(Node node) {
+        List<MBREntry> orphans = new ArrayList<>();
+        List<Integer> orphanLevels = new ArrayList<>();
+
+        for (int level = 0; node.parent != null; level++) {
+            Node parent = node.parent;
+            int i = parent.indexOf(node);
+            if (node.count < minFill) {
+                parent.removeAt(i);
+                for (int k = 0; k < node.count; k++) {
+                    orphans.add(node.entry(k));
+                    orphanLevels.add(level);
+                    if (node.leaf) {
+                        leaves.remove(node.items[k]);
+                    }
+                }
+            } else {
+                parent.updateBox(i);
             }
+            node = parent;
+        }
+
+        // upper levels first, so that lower entries do not grow the tree under them
+        for (int k = orphans.size() - 1; k >= 0; k--) {
+            insert(orphans.get(k), orphanLevels.get(k), new BitSet());
+        }
 
-            System.arraycopy(seed, 0, children, 0, seed.length);
-            updateMbr();
+        while (!root.leaf && root.count == 1) {
+            root = root.child(0);
+            root.parent = null;
+            height--;
         }
+    }
 
-        @Override
-        public List<Widget> find(MBRectangle query) {
-            return Arrays.stream(children)
-                    .filter(child -> child.mbr != null)
-                    .filter(child -> query.intersects(child.mbr) || query.contains(child.mbr) || child.mbr.contains(query))
-                    .flatMap(child -> child.find(query).stream())
-                    .collect(Collectors.toUnmodifiableList());
+    public void validate(int expectedSize) {
+        if (expectedSize != size || expectedSize != root.size() || expectedSize != leaves.size()) {
+            throw new RuntimeException("Some elements were lost");
+        }
+        if (root.parent != null) {
+            throw new RuntimeException("Root has a parent");
         }
 
-        @Override
-        public void add(Widget w) {
-            MBRectangle toAdd = MBRectangle.from(w);
+        root.validate(height - 1, maxFill);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int height() {
+        return height;
+    }
 
-            int chosen = choseChild(toAdd);
-            children[chosen].add(w);
-            children[chosen] = children[chosen].fixOverflow();
-            mbr = Optional.ofNullable(mbr).map(m -> m.append(toAdd)).orElse(toAdd);
+    public void clear() {
+        checkNotSnapshot();
+        root = new Node(true, maxFill);
+        height = 1;
+        size = 0;
+        leaves.clear();
+    }
+
+    /**
+     * Inserts entry into node on given level. Levels where overflow was already treated by reinsertion
+     * during current insertion are collected in overflowTreated, next overflow on such level causes a split.
+     */
+    private void insert(MBREntry entry, int level, BitSet overflowTreated) {
+        @SuppressWarnings("unchecked")
+        Node[] path = (Node[]) new RTree<?>.Node[height - level];
+        // index of path[depth + 1] among entries of path[depth]
+        int[] slots = new int[height - level];
+
+        Node node = editable(root);
+        for (int depth = 0; depth < path.length - 1; depth++) {
+            path[depth] = node;
+            int chosen = chooseSubtree(node, entry, height - 2 - depth == 0);
+            node.enlarge(chosen, entry);
+            node.sizes[chosen] += entry.size;
+            slots[depth] = chosen;
+            node = editable(node.child(chosen));
         }
+        path[path.length - 1] = node;
 
-        public int choseChild(MBRectangle toAdd) {
+        node.add(entry);
 
-            int minDeltaAreaIndex = -1;
-            long minDeltaArea = Long.MAX_VALUE;
-            long minArea = Integer.MAX_VALUE;
+        for (int depth = path.length - 1; depth >= 0; depth--) {
+            Node overflown = path[depth];
+            if (overflown.count <= maxFill) {
+                return;
+            }
 
-            long addingArea = toAdd.area();
+            int overflownLevel = height - 1 - depth;
+            if (depth > 0 && !overflowTreated.get(overflownLevel)) {
+                overflowTreated.set(overflownLevel);
+                List<MBREntry> removed = removeFarthest(overflown);
+                for (int i = depth; i > 0; i--) {
+                    path[i - 1].updateBox(slots[i - 1]);
+                }
+                // close reinsert, starting from entries nearest to the center
+                for (int i = removed.size() - 1; i >= 0; i--) {
+                    insert(removed.get(i), overflownLevel, overflowTreated);
+                }
+                return;
+            }
+
+            Node sibling = split(overflown);
+            if (depth == 0) {
+                root = new Node(false, maxFill);
+                root.add(overflown);
+                root.add(sibling);
+                height++;
+            } else {
+                path[depth - 1].updateBox(slots[depth - 1]);
+                path[depth - 1].add(sibling);
+            }
+        }
+    }
 
-            for (int i = 0; i < children.length; i++) {
-                Node child = children[i];
+    // leaf level children are chosen by least overlap enlargement, upper levels by least area enlargement
+    private static int chooseSubtree(RTree<?>.Node node, MBREntry toAdd, boolean childrenAreLeaves) {
+        int count = node.count;
+        int[] x1 = node.x1, y1 = node.y1, x2 = node.x2, y2 = node.y2;
 
-                // if contains put it there
-                if (Optional.ofNullable(child.mbr).map(c -> c.contains(toAdd)).orElse(false)) {
-                    return i;
+        // child already covering the entry does not grow at all, so the smallest of them is the best choice
+        int smallestCovering = -1;
+        long smallestCoveringArea = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (x1[i] <= toAdd.x1 && toAdd.x2 <= x2[i] && y1[i] <= toAdd.y1 && toAdd.y2 <= y2[i]) {
+                long area = area(x1[i], y1[i], x2[i], y2[i]);
+                if (area < smallestCoveringArea) {
+                    smallestCovering = i;
+                    smallestCoveringArea = area;
                 }
+            }
+        }
+        if (smallestCovering >= 0) {
+            return smallestCovering;
+        }
+
+        // overlap enlargement is quadratic, so as in original R*-tree it is only calculated
+        // for few candidates with the least area enlargement, kept ordered by (area enlargement, area)
+        int candidatesLimit = childrenAreLeaves ? Math.min(OVERLAP_CANDIDATES, count) : 1;
+        int[] candidates = new int[candidatesLimit];
+        long[] candidateAreaDeltas = new long[candidatesLimit];
+        long[] candidateAreas = new long[candidatesLimit];
+        int candidatesCount = 0;
 
-                long newArea = Optional.ofNullable(child.mbr).map(c -> c.append(toAdd).area()).orElse(addingArea);
-                long oldArea = Optional.ofNullable(child.mbr).map(MBRectangle::area).orElse(0L);
+        for (int i = 0; i < count; i++) {
+            long area = area(x1[i], y1[i], x2[i], y2[i]);
+            long areaDelta = area(Math.min(x1[i], toAdd.x1), Math.min(y1[i], toAdd.y1),
+                    Math.max(x2[i], toAdd.x2), Math.max(y2[i], toAdd.y2)) - area;
+
+            int pos = candidatesCount;
+            while (pos > 0 && (areaDelta < candidateAreaDeltas[pos - 1]
+                    || areaDelta == candidateAreaDeltas[pos - 1] && area < candidateAreas[pos - 1])) {
+                pos--;
+            }
+            if (pos < candidatesLimit) {
+                int toMove = Math.min(candidatesCount, candidatesLimit - 1) - pos;
+                System.arraycopy(candidates, pos, candidates, pos + 1, toMove);
+                System.arraycopy(candidateAreaDeltas, pos, candidateAreaDeltas, pos + 1, toMove);
+                System.arraycopy(candidateAreas, pos, candidateAreas, pos + 1, toMove);
+                candidates[pos] = i;
+                candidateAreaDeltas[pos] = areaDelta;
+                candidateAreas[pos] = area;
+                candidatesCount = Math.min(candidatesCount + 1, candidatesLimit);
+            }
+        }
+
+        if (!childrenAreLeaves) {
+            return candidates[0];
+        }
 
-                if (newArea - oldArea < minDeltaArea) {
-                    minDeltaArea = newArea - oldArea;
-                    minArea = oldArea;
-                    minDeltaAreaIndex = i;
-                } else if (newArea - oldArea == minDeltaArea && oldArea < minArea) {
-                    minArea = oldArea;
-                    minDeltaAreaIndex = i;
+        int chosen = -1;
+        long minOverlapDelta = Long.MAX_VALUE;
+        for (int c = 0; c < candidatesCount; c++) {
+            int i = candidates[c];
+            int ex1 = Math.min(x1[i], toAdd.x1);
+            int ey1 = Math.min(y1[i], toAdd.y1);
+            int ex2 = Math.max(x2[i], toAdd.x2);
+            int ey2 = Math.max(y2[i], toAdd.y2);
+
+            long overlapDelta = 0;
+            for (int j = 0; j < count && overlapDelta < minOverlapDelta; j++) {
+                if (j != i) {
+                    overlapDelta += overlap(ex1, ey1, ex2, ey2, x1[j], y1[j], x2[j], y2[j])
+                            - overlap(x1[i], y1[i], x2[i], y2[i], x1[j], y1[j], x2[j], y2[j]);
                 }
             }
-            return minDeltaAreaIndex;
+
+            // candidates are already ordered by area enlargement and area, so only strictly better overlap wins
+            if (overlapDelta < minOverlapDelta) {
+                chosen = i;
+                minOverlapDelta = overlapDelta;
+            }
         }
+        return chosen;
+    }
+
+    // removes entries which centers are the farthest from the center of node, sorted farthest first
+    private List<MBREntry> removeFarthest(Node node) {
+        int count = node.count;
+        long centerX = (long) node.minX() + node.maxX();
+        long centerY = (long) node.minY() + node.maxY();
+
+        double[] distances = new double[count];
+        Integer[] byDistance = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            distances[i] = Math.hypot((long) node.x1[i] + node.x2[i] - centerX, (long) node.y1[i] + node.y2[i] - centerY);
+            byDistance[i] = i;
+        }
+        Arrays.sort(byDistance, Comparator.comparingDouble((Integer i) -> distances[i]).reversed());
+        int[] order = Arrays.stream(byDistance).mapToInt(Integer::intValue).toArray();
+
+        int toRemove = Math.max(1, (int) (REINSERT_SHARE * maxFill));
+        List<MBREntry> removed = new ArrayList<>(toRemove);
+        for (int k = 0; k < toRemove; k++) {
+            removed.add(node.entry(order[k]));
+        }
+        node.retain(order, toRemove, count);
+        return removed;
+    }
+
+    private static final int SORT_BY_X1 = 0;
+    private static final int SORT_BY_X2 = 1;
+    private static final int SORT_BY_Y1 = 2;
+    private static final int SORT_BY_Y2 = 3;
 
-        @Override
-        public void delete(Widget w) {
-            MBRectangle query = MBRectangle.from(w);
-            Arrays.stream(children)
-                    .filter(child -> child.mbr != null)
-                    .filter(child -> child.mbr.intersects(query) || child.mbr.contains(query) || query.contains(child.mbr))
-                    .forEach(n -> n.delete(w));
+    /**
+     * R*-tree split. Axis is chosen by the least sum of margins of all possible distributions, then distribution
+     * along the axis with the least overlap (and the least area on tie) is taken.
+     * Node keeps the first group, second group is moved to the new sibling which is returned.
+     */
+    private Node split(Node node) {
+        int count = node.count;
+        Distributions distributions = new Distributions(count);
 
-            updateMbr();
+        long xMargins = distributions.sort(node, SORT_BY_X1).sumOfMargins()
+                + distributions.sort(node, SORT_BY_X2).sumOfMargins();
+        long yMargins = distributions.sort(node, SORT_BY_Y1).sumOfMargins()
+                + distributions.sort(node, SORT_BY_Y2).sumOfMargins();
+        int[] axisSorts = xMargins <= yMargins ? new int[]{SORT_BY_X1, SORT_BY_X2} : new int[]{SORT_BY_Y1, SORT_BY_Y2};
 
+        int bestSort = -1;
+        int bestIndex = -1;
+        long minOverlap = Long.MAX_VALUE;
+        long minArea = Long.MAX_VALUE;
+
+        for (int sort : axisSorts) {
+            distributions.sort(node, sort);
+            for (int k = minFill; k <= count - minFill; k++) {
+                long overlap = distributions.overlap(k);
+                long area = distributions.area(k);
+                if (overlap < minOverlap || overlap == minOverlap && area < minArea) {
+                    minOverlap = overlap;
+                    minArea = area;
+                    bestSort = sort;
+                    bestIndex = k;
+                }
+            }
         }
 
-        public void updateMbr() {
-            mbr = Arrays.stream(children).filter(n -> n.mbr != null)
-                    .map(n -> n.mbr)
-                    .reduce(null,
-                            (a, b) -> Optional.ofNullable(a).map(nna -> nna.append(b)).orElse(b),
-                            (a, b) -> Optional.ofNullable(a).map(nna -> nna.append(b)).orElse(b));
+        int[] order = distributions.sort(node, bestSort).order();
+        Node sibling = new Node(node.leaf, maxFill);
+        for (int k = bestIndex; k < count; k++) {
+            sibling.add(node.entry(order[k]));
         }
+        node.retain(order, 0, bestIndex);
+        return sibling;
+    }
 
-        @Override
-        public Node fixOverflow() {
-            return this;
+    /**
+     * Bounding boxes of the first k and of the rest entries of node ordered by one of coordinates, for every k.
+     */
+    private class Distributions {
+        long[] keys;
+        int[] prefixX1, prefixY1, prefixX2, prefixY2;
+        int[] suffixX1, suffixY1, suffixX2, suffixY2;
+
+        Distributions(int count) {
+            keys = new long[count];
+            prefixX1 = new int[count];
+            prefixY1 = new int[count];
+            prefixX2 = new int[count];
+            prefixY2 = new int[count];
+            suffixX1 = new int[count];
+            suffixY1 = new int[count];
+            suffixX2 = new int[count];
+            suffixY2 = new int[count];
         }
 
-        @Override
-        public int size() {
-            return Arrays.stream(children).mapToInt(Node::size).sum();
+        Distributions sort(Node node, int sortBy) {
+            int[] coordinate = sortBy == SORT_BY_X1 ? node.x1 : sortBy == SORT_BY_X2 ? node.x2
+                    : sortBy == SORT_BY_Y1 ? node.y1 : node.y2;
+            int count = keys.length;
+            // coordinate in high bits and entry index in low ones, so primitive sort can be used
+            for (int i = 0; i < count; i++) {
+                keys[i] = ((long) coordinate[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+
+            int x1 = Integer.MAX_VALUE, y1 = Integer.MAX_VALUE, x2 = Integer.MIN_VALUE, y2 = Integer.MIN_VALUE;
+            for (int k = 0; k < count; k++) {
+                int i = (int) keys[k];
+                prefixX1[k] = x1 = Math.min(x1, node.x1[i]);
+                prefixY1[k] = y1 = Math.min(y1, node.y1[i]);
+                prefixX2[k] = x2 = Math.max(x2, node.x2[i]);
+                prefixY2[k] = y2 = Math.max(y2, node.y2[i]);
+            }
+
+            x1 = Integer.MAX_VALUE;
+            y1 = Integer.MAX_VALUE;
+            x2 = Integer.MIN_VALUE;
+            y2 = Integer.MIN_VALUE;
+            for (int k = count - 1; k >= 0; k--) {
+                int i = (int) keys[k];
+                suffixX1[k] = x1 = Math.min(x1, node.x1[i]);
+                suffixY1[k] = y1 = Math.min(y1, node.y1[i]);
+                suffixX2[k] = x2 = Math.max(x2, node.x2[i]);
+                suffixY2[k] = y2 = Math.max(y2, node.y2[i]);
+            }
+            return this;
         }
 
-        @Override
-        public void validate() {
-            final List<Node> nonCompliantChildren = Arrays.stream(children).filter(c -> !mbr.contains(c.mbr))
-                    .collect(Collectors.toUnmodifiableList());
+        int[] order() {
+            int[] order = new int[keys.length];
+            for (int k = 0; k < keys.length; k++) {
+                order[k] = (int) keys[k];
+            }
+            return order;
+        }
 
-            if (!nonCompliantChildren.isEmpty()) {
-                throw new RuntimeException("One of the node's child is not in node's mbr");
+        long sumOfMargins() {
+            long sum = 0;
+            for (int k = minFill; k <= keys.length - minFill; k++) {
+                sum += (long) prefixX2[k - 1] - prefixX1[k - 1] + prefixY2[k - 1] - prefixY1[k - 1]
+                        + suffixX2[k] - suffixX1[k] + suffixY2[k] - suffixY1[k];
             }
+            return sum;
+        }
+
+        // first group is [0, k), second is [k, count)
+        long overlap(int k) {
+            return RTree.overlap(prefixX1[k - 1], prefixY1[k - 1], prefixX2[k - 1], prefixY2[k - 1],
+                    suffixX1[k], suffixY1[k], suffixX2[k], suffixY2[k]);
+        }
+
+        long area(int k) {
+            return RTree.area(prefixX1[k - 1], prefixY1[k - 1], prefixX2[k - 1], prefixY2[k - 1])
+                    + RTree.area(suffixX1[k], suffixY1[k], suffixX2[k], suffixY2[k]);
+        }
+    }
+
+    private static long area(int x1, int y1, int x2, int y2) {
+        return (long) (x2 - x1) * (y2 - y1);
+    }
+
+    private static long overlap(int ax1, int ay1, int ax2, int ay2, int bx1, int by1, int bx2, int by2) {
+        long width = (long) Math.min(ax2, bx2) - Math.max(ax1, bx1);
+        long height = (long) Math.min(ay2, by2) - Math.max(ay1, by1);
+        return width > 0 && height > 0 ? width * height : 0;
+    }
+
+    private MBREntry entry(T widget) {
+        long key = shape.order(widget);
+        return new MBREntry(widget, shape.x1(widget), shape.y1(widget), shape.x2(widget), shape.y2(widget),
+                key, key, 1);
+    }
+
+    // either widget or node with its bounding box, order key range and size, used when entries travel between nodes
+    private static class MBREntry {
+        Object item;
+        int x1, y1, x2, y2;
+        long minOrder, maxOrder;
+        int size;
+
+        MBREntry(RTree<?>.Node node) {
+            this(node, node.minX(), node.minY(), node.maxX(), node.maxY(), node.minOrder(), node.maxOrder(),
+                    node.size());
+        }
+
+        MBREntry(Object item, int x1, int y1, int x2, int y2, long minOrder, long maxOrder, int size) {
+            this.item = item;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.minOrder = minOrder;
+            this.maxOrder = maxOrder;
+            this.size = size;
         }
     }
 
-    private static class LeafNode extends Node {
+    /**
+     * Node keeps its entries in struct-of-arrays form: box of entry i is (x1[i], y1[i], x2[i], y2[i])
+     * and items[i] is either widget for leaves or child node otherwise. Order keys of entry i are within
+     * [minOrder[i], maxOrder[i]], for widgets both are the key of the widget. sizes[i] is number of widgets
+     * in entry i, which is always 1 for leaves. Own box of node is stored in its parent.
+     * Arrays have one spare slot to hold the entry which overflows the node until overflow is treated.
+     * Node is registered as leaf of its widgets or as parent of its child nodes whenever entry is set in it.
+     */
+    private class Node {
+        boolean leaf;
+        int[] x1, y1, x2, y2;
+        long[] minOrder, maxOrder;
+        int[] sizes;
+        Object[] items;
+        Object owner;
+        @NonFinal int count;
+        // parent is used by the writer only, so it may be changed even in nodes shared with snapshots
+        @NonFinal Node parent;
 
-        List<Widget> content = new ArrayList<>();
+        Node(boolean leaf, int maxFill) {
+            this.leaf = leaf;
+            this.owner = RTree.this.owner;
+            x1 = new int[maxFill + 1];
+            y1 = new int[maxFill + 1];
+            x2 = new int[maxFill + 1];
+            y2 = new int[maxFill + 1];
+            minOrder = new long[maxFill + 1];
+            maxOrder = new long[maxFill + 1];
+            sizes = new int[maxFill + 1];
+            items = new Object[maxFill + 1];
+        }
 
-        public LeafNode(MBRectangle mbr) {
-            super(mbr);
+        Node(Node source) {
+            leaf = source.leaf;
+            owner = RTree.this.owner;
+            x1 = source.x1.clone();
+            y1 = source.y1.clone();
+            x2 = source.x2.clone();
+            y2 = source.y2.clone();
+            minOrder = source.minOrder.clone();
+            maxOrder = source.maxOrder.clone();
+            sizes = source.sizes.clone();
+            items = source.items.clone();
+            count = source.count;
+            parent = source.parent;
         }
 
-        public LeafNode() {
-            super();
+        void add(MBREntry entry) {
+            set(count++, entry);
         }
 
-        @Override
-        public List<Widget> find(MBRectangle query) {
-            return content.stream().filter(w -> query.contains(MBRectangle.from(w)))
-                    .collect(Collectors.toUnmodifiableList());
+        void set(int i, MBREntry entry) {
+            x1[i] = entry.x1;
+            y1[i] = entry.y1;
+            x2[i] = entry.x2;
+            y2[i] = entry.y2;
+            minOrder[i] = entry.minOrder;
+            maxOrder[i] = entry.maxOrder;
+            sizes[i] = entry.size;
+            items[i] = entry.item;
+            adopt(i);
         }
 
-        @Override
-        public void add(Widget w) {
-            content.add(w);
-            MBRectangle toAppend = MBRectangle.from(w);
-            mbr = Optional.ofNullable(mbr).map(e -> e.append(toAppend)).orElse(toAppend);
+        @SuppressWarnings("unchecked")
+        Node child(int i) {
+            return (Node) items[i];
         }
 
-        @Override
-        public void delete(Widget w) {
-            content.remove(w);
-            if (content.isEmpty()) {
-                mbr = null;
+        // registers node as leaf of widget i or as parent of child i
+        @SuppressWarnings("unchecked")
+        void adopt(int i) {
+            if (leaf) {
+                leaves.put((T) items[i], this);
             } else {
-                int minx = Integer.MAX_VALUE;
-                int miny = Integer.MAX_VALUE;
-                int maxx = Integer.MIN_VALUE;
-                int maxy = Integer.MIN_VALUE;
-
-                for (Widget widget : content) {
-                    if (widget.getX() < minx) minx = widget.getX();
-                    if (widget.getY() < miny) miny = widget.getY();
-                    if (widget.getX() + widget.getWidth() > maxx) maxx = widget.getX() + widget.getWidth();
-                    if (widget.getY() + widget.getHeight() > maxy) maxy = widget.getY() + widget.getHeight();
-                }
+                child(i).parent = this;
+            }
+        }
 
-                mbr = new MBRectangle(minx, miny, maxx, maxy);
+        void add(Node child) {
+            add(new MBREntry(child));
+        }
+
+        int indexOf(Object item) {
+            for (int i = 0; i < count; i++) {
+                if (items[i] == item) {
+                    return i;
+                }
             }
+            throw new IllegalStateException("Entry is not in the node");
         }
 
-        @Override
-        public Node fixOverflow() {
-            if (content.size() < MAXIMUM_FILL) {
-                return this;
+        MBREntry entry(int i) {
+            return new MBREntry(items[i], x1[i], y1[i], x2[i], y2[i], minOrder[i], maxOrder[i], sizes[i]);
+        }
+
+        // keeps only entries with indexes order[from..to) in that order
+        void retain(int[] order, int from, int to) {
+            int[] ox1 = x1.clone(), oy1 = y1.clone(), ox2 = x2.clone(), oy2 = y2.clone();
+            long[] ominOrder = minOrder.clone(), omaxOrder = maxOrder.clone();
+            int[] osizes = sizes.clone();
+            Object[] oitems = items.clone();
+            Arrays.fill(items, null);
+            count = 0;
+            for (int k = from; k < to; k++) {
+                int i = order[k];
+                add(new MBREntry(oitems[i], ox1[i], oy1[i], ox2[i], oy2[i], ominOrder[i], omaxOrder[i], osizes[i]));
             }
-            return split();
         }
 
-        @Override
-        public int size() {
-            return content.size();
+        void removeAt(int i) {
+            count--;
+            x1[i] = x1[count];
+            y1[i] = y1[count];
+            x2[i] = x2[count];
+            y2[i] = y2[count];
+            minOrder[i] = minOrder[count];
+            maxOrder[i] = maxOrder[count];
+            sizes[i] = sizes[count];
+            items[i] = items[count];
+            items[count] = null;
+        }
+
+        void enlarge(int i, MBREntry entry) {
+            x1[i] = Math.min(x1[i], entry.x1);
+            y1[i] = Math.min(y1[i], entry.y1);
+            x2[i] = Math.max(x2[i], entry.x2);
+            y2[i] = Math.max(y2[i], entry.y2);
+            minOrder[i] = Math.min(minOrder[i], entry.minOrder);
+            maxOrder[i] = Math.max(maxOrder[i], entry.maxOrder);
+        }
+
+        // recalculates box, order key range and size of child i from its entries
+        void updateBox(int i) {
+            Node child = child(i);
+            x1[i] = child.minX();
+            y1[i] = child.minY();
+            x2[i] = child.maxX();
+            y2[i] = child.maxY();
+            minOrder[i] = child.minOrder();
+            maxOrder[i] = child.maxOrder();
+            sizes[i] = child.size();
+        }
+
+        int minX() {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < count; i++) min = Math.min(min, x1[i]);
+            return min;
         }
 
-        @Override
-        public void validate() {
-            final List<MBRectangle> notCompliantContent = content.stream().map(MBRectangle::from)
-                    .filter(cmbr -> !mbr.contains(cmbr)).collect(Collectors.toUnmodifiableList());
+        int minY() {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < count; i++) min = Math.min(min, y1[i]);
+            return min;
+        }
+
+        int maxX() {
+            int max = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) max = Math.max(max, x2[i]);
+            return max;
+        }
+
+        int maxY() {
+            int max = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) max = Math.max(max, y2[i]);
+            return max;
+        }
+
+        long minOrder() {
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) min = Math.min(min, minOrder[i]);
+            return min;
+        }
+
+        long maxOrder() {
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < count; i++) max = Math.max(max, maxOrder[i]);
+            return max;
+        }
 
-            if (!notCompliantContent.isEmpty()) {
-                throw new RuntimeException("Leaf node contains widget out of mbr");
+        @SuppressWarnings("unchecked")
+        void search(int qx1, int qy1, int qx2, int qy2, Consumer<T> consumer) {
+            if (leaf) {
+                for (int i = 0; i < count; i++) {
+                    if (qx1 <= x1[i] && x2[i] <= qx2 && qy1 <= y1[i] && y2[i] <= qy2) {
+                        consumer.accept((T) items[i]);
+                    }
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    if (x1[i] <= qx2 && qx1 <= x2[i] && y1[i] <= qy2 && qy1 <= y2[i]) {
+                        child(i).search(qx1, qy1, qx2, qy2, consumer);
+                    }
+                }
             }
         }
 
-        public Node split() {
-            NonLeafNode nlf = new NonLeafNode(findMostDistinctWidgets(content));
-            content.forEach(nlf::add);
-            return nlf;
+        int size() {
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                size += sizes[i];
+            }
+            return size;
         }
 
-        public Node[] findMostDistinctWidgets(List<Widget> content) {
-            final List<Widget> sortedByX = content.stream().sorted(Comparator.comparing(Widget::getX))
-                    .collect(Collectors.toUnmodifiableList());
-            return IntStream.range(0, 9)
-                    .map(i -> i * MAXIMUM_FILL / 9)
-                    .mapToObj(sortedByX::get)
-                    .map(w -> new LeafNode(MBRectangle.from(w)))
-                    .toArray(Node[]::new);
+        int count(int qx1, int qy1, int qx2, int qy2) {
+            int found = 0;
+            for (int i = 0; i < count; i++) {
+                if (qx1 <= x1[i] && x2[i] <= qx2 && qy1 <= y1[i] && y2[i] <= qy2) {
+                    found += sizes[i];
+                } else if (!leaf && x1[i] <= qx2 && qx1 <= x2[i] && y1[i] <= qy2 && qy1 <= y2[i]) {
+                    found += child(i).count(qx1, qy1, qx2, qy2);
+                }
+            }
+            return found;
         }
-    }
 
+        @SuppressWarnings("unchecked")
+        void validate(int level, int maxFill) {
+            if (count > maxFill) {
+                throw new RuntimeException("Node is overflown");
+            }
+            if (parent != null && count < minFill) {
+                throw new RuntimeException("Node is underfilled");
+            }
+            if (leaf != (level == 0)) {
+                throw new RuntimeException("Tree is not balanced");
+            }
 
+            for (int i = 0; i < count; i++) {
+                if (leaf) {
+                    T widget = (T) items[i];
+                    if (x1[i] != shape.x1(widget) || y1[i] != shape.y1(widget)
+                            || x2[i] != shape.x2(widget) || y2[i] != shape.y2(widget)) {
+                        throw new RuntimeException("Leaf node contains widget out of mbr");
+                    }
+                    if (minOrder[i] != shape.order(widget) || maxOrder[i] != shape.order(widget)) {
+                        throw new RuntimeException("Leaf node contains widget with outdated order key");
+                    }
+                    if (sizes[i] != 1) {
+                        throw new RuntimeException("Leaf node has wrong widget count");
+                    }
+                    if (leaves.get(widget) != this) {
+                        throw new RuntimeException("Widget does not know its leaf");
+                    }
+                } else {
+                    Node child = child(i);
+                    if (x1[i] != child.minX() || y1[i] != child.minY()
+                            || x2[i] != child.maxX() || y2[i] != child.maxY()) {
+                        throw new RuntimeException("One of the node's child is not in node's mbr");
+                    }
+                    if (minOrder[i] != child.minOrder() || maxOrder[i] != child.maxOrder()) {
+                        throw new RuntimeException("One of the node's child is not in node's order key range");
+                    }
+                    if (sizes[i] != child.size()) {
+                        throw new RuntimeException("Node has wrong size of one of the children");
+                    }
+                    if (child.parent != this) {
+                        throw new RuntimeException("Child does not know its parent");
+                    }
+                    child.validate(level - 1, maxFill);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,56 @@
+package ua.kiev.tinedel.widget.widgetservice.rtree;
+
+import lombok.experimental.NonFinal;
+
+import java.util.Arrays;
+
+/**
+ * Binary heap of long references by their rank, lowest first, used by best first searches of the trees. Ranks and
+ * references are kept in primitive arrays, so that nothing is allocated per queued entry.
+ */
+class RankedQueue {
+
+    @NonFinal double[] ranks = new double[64];
+    @NonFinal long[] refs = new long[64];
+    @NonFinal int size;
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void add(double rank, long ref) {
+        if (size == ranks.length) {
+            ranks = Arrays.copyOf(ranks, 2 * size);
+            refs = Arrays.copyOf(refs, 2 * size);
+        }
+        int i = size++;
+        while (i > 0 && ranks[(i - 1) / 2] > rank) {
+            ranks[i] = ranks[(i - 1) / 2];
+            refs[i] = refs[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        ranks[i] = rank;
+        refs[i] = ref;
+    }
+
+    long poll() {
+        long top = refs[0];
+        double rank = ranks[--size];
+        long ref = refs[size];
+        int i = 0;
+        for (int child = 1; child < size; child = 2 * i + 1) {
+            if (child + 1 < size && ranks[child + 1] < ranks[child]) {
+                child++;
+            }
+            if (ranks[child] >= rank) {
+                break;
+            }
+            ranks[i] = ranks[child];
+            refs[i] = refs[child];
+            i = child;
+        }
+        ranks[i] = rank;
+        refs[i] = ref;
+        return top;
+    }
+}
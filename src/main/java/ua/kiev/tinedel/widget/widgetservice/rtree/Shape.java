@@ -0,0 +1,84 @@
+package ua.kiev.tinedel.widget.widgetservice.rtree;
+
+import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+
+import java.util.function.ToLongFunction;
+
+/**
+ * Tells {@link RTree} bounding box and order key of indexed item.
+ */
+public interface Shape<T> {
+
+    int x1(T item);
+
+    int y1(T item);
+
+    int x2(T item);
+
+    int y2(T item);
+
+    long order(T item);
+
+    /**
+     * Widgets ordered by zIndex.
+     */
+    Shape<Widget> WIDGET = new Shape<>() {
+        @Override
+        public int x1(Widget item) {
+            return item.getX();
+        }
+
+        @Override
+        public int y1(Widget item) {
+            return item.getY();
+        }
+
+        @Override
+        public int x2(Widget item) {
+            return item.getX() + item.getWidth();
+        }
+
+        @Override
+        public int y2(Widget item) {
+            return item.getY() + item.getHeight();
+        }
+
+        @Override
+        public long order(Widget item) {
+            return item.getZIndex();
+        }
+    };
+
+    /**
+     * The same boxes with other order keys. Keys must be exact as doubles.
+     */
+    default Shape<T> orderedBy(ToLongFunction<T> order) {
+        Shape<T> boxes = this;
+        return new Shape<>() {
+            @Override
+            public int x1(T item) {
+                return boxes.x1(item);
+            }
+
+            @Override
+            public int y1(T item) {
+                return boxes.y1(item);
+            }
+
+            @Override
+            public int x2(T item) {
+                return boxes.x2(item);
+            }
+
+            @Override
+            public int y2(T item) {
+                return boxes.y2(item);
+            }
+
+            @Override
+            public long order(T item) {
+                return order.applyAsLong(item);
+            }
+        };
+    }
+}
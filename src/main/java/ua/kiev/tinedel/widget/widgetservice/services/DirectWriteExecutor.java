@@ -0,0 +1,19 @@
+package ua.kiev.tinedel.widget.widgetservice.services;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.function.Supplier;
+
+/**
+ * Runs changes in the calling thread, so concurrent writers meet on the write lock of the repository.
+ */
+@Service
+@ConditionalOnProperty(name = "widgetservice.writes.mode", havingValue = "direct", matchIfMissing = true)
+public class DirectWriteExecutor implements WriteExecutor {
+
+    @Override
+    public <T> T execute(Supplier<T> change) {
+        return change.get();
+    }
+}
@@ -0,0 +1,175 @@
+package ua.kiev.tinedel.widget.widgetservice.services;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.experimental.NonFinal;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import ua.kiev.tinedel.widget.widgetservice.repositories.WidgetRepository;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Changes are put into a bounded ring buffer and applied by a single writer thread. Writer takes whatever
+ * has piled up, up to max batch size, and applies it holding the write lock of the repository once, so that
+ * indexes are published once per batch and callers do not queue on the lock under bursts. Callers wait for
+ * their changes to be published, and wait for free space in the buffer when it is full.
+ * <p>
+ * Failure of a change does not affect the others of the same batch. Failure to publish the batch, e.g. when
+ * the repository can not make it durable, is passed to callers of all its changes, and the writer goes on.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "widgetservice.writes.mode", havingValue = "pipelined")
+public class PipelinedWriteExecutor implements WriteExecutor {
+
+    WidgetRepository repository;
+    BlockingQueue<Write<?>> queue;
+    int maxBatchSize;
+    Thread writer;
+    // put into the queue on stop, so that the writer waiting for changes wakes up without being interrupted
+    Write<Void> wakeUp = new Write<>(() -> null);
+    @NonFinal volatile boolean stopped;
+
+    public PipelinedWriteExecutor(WidgetRepository repository,
+                                  @Value("${widgetservice.writes.pipelined.capacity:1024}") int capacity,
+                                  @Value("${widgetservice.writes.pipelined.max-batch-size:256}") int maxBatchSize) {
+        if (capacity < 1 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("Capacity and batch size must be positive");
+        }
+        this.repository = repository;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatchSize = maxBatchSize;
+        this.writer = new Thread(this::run, "widget-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @RequiredArgsConstructor
+    private static class Write<T> {
+        Supplier<T> change;
+        CompletableFuture<T> result = new CompletableFuture<>();
+        @NonFinal T value;
+        @NonFinal Throwable failure;
+
+        void apply() {
+            try {
+                value = change.get();
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+
+        // the change may be published, but callers can not rely on it
+        void fail(Throwable e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        void complete() {
+            if (failure == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(failure);
+            }
+        }
+    }
+
+    @Override
+    public <T> T execute(Supplier<T> change) {
+        if (Thread.currentThread() == writer) {
+            // change made by another change is a part of it
+            return change.get();
+        }
+
+        Write<T> write = new Write<>(change);
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the writer", e);
+        }
+        if (stopped) {
+            // writer may have drained the queue already
+            failPending();
+        }
+
+        try {
+            return write.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void run() {
+        List<Write<?>> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (!stopped) {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatchSize - 1);
+                try {
+                    apply(batch);
+                } catch (Throwable e) {
+                    // callers got the failure already, and writer dying would leave later callers waiting forever
+                    log.error("Can not publish batch of {} changes", batch.size(), e);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // not interrupted by anybody but the JVM on exit
+        } finally {
+            stopped = true;
+            failPending();
+        }
+    }
+
+    private void apply(List<Write<?>> batch) {
+        try {
+            repository.acquireWriteLock();
+            try {
+                batch.forEach(Write::apply);
+            } finally {
+                repository.releaseWriteLock();
+            }
+        } catch (RuntimeException | Error e) {
+            batch.forEach(write -> write.fail(e));
+            throw e;
+        } finally {
+            // completed only when published, so callers read their own writes
+            batch.forEach(Write::complete);
+        }
+    }
+
+    private void failPending() {
+        List<Write<?>> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        pending.forEach(write -> write.result.completeExceptionally(new IllegalStateException("Writer is stopped")));
+    }
+
+    /**
+     * Waits for the writer to finish the batch it is applying, changes queued after it fail. Writer is not
+     * interrupted, as it may be waiting for its batch to be made durable.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        stopped = true;
+        // writer does not wait for changes when the queue is full
+        queue.offer(wakeUp);
+        writer.join();
+    }
+}
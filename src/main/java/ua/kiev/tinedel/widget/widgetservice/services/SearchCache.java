@@ -0,0 +1,237 @@
+package ua.kiev.tinedel.widget.widgetservice.services;
+
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.NonFinal;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
+import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Least recently used results of searches in bounding boxes, so that popular viewports are not searched again
+ * until a change touches them.
+ * <p>
+ * Search returns widgets fully contained in the box, top most or bottom most ones up to the limit. So a change
+ * of a widget affects the cached result only when the widget is in it, or when the box contains the widget
+ * as it is after the change, and shift of zIndexes affects only results holding shifted widgets. Everything
+ * else stays cached.
+ * <p>
+ * Search done concurrently with a change may have seen the state before it, so its result is not cached when
+ * one of the changes made since the search started affects it. That holds only if the cache learns about changes
+ * once readers can see them, so changes made under the write lock of the repository are collected in
+ * {@link Changes} and published after the lock is released.
+ * <p>
+ * Cached results are found without locking, changes and caching of new results are serialized. Besides the number
+ * of results, the cache is bounded by the number of widgets in them, as results of searches without a limit may
+ * hold the whole plane. Results holding more widgets than that are not cached at all.
+ */
+@Service
+public class SearchCache {
+
+    // changes remembered to check results of concurrent searches against them
+    private final static int RECENT_CHANGES = 64;
+    final static int MAX_WIDGETS = 100_000;
+
+    int size;
+    int maxWidgets;
+    Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    // guarded by the cache, as well as the changes of entries
+    Deque<Change> recent = new ArrayDeque<>(RECENT_CHANGES);
+    @NonFinal long widgets;
+    @NonFinal volatile long version;
+    // time of use of entries, least recently used ones are evicted first
+    AtomicLong clock = new AtomicLong();
+
+    public SearchCache(int size) {
+        this(size, MAX_WIDGETS);
+    }
+
+    @Autowired
+    public SearchCache(@Value("${widgetservice.search-cache.size:1024}") int size,
+                       @Value("${widgetservice.search-cache.max-widgets:" + MAX_WIDGETS + "}") int maxWidgets) {
+        if (size < 0 || maxWidgets < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative");
+        }
+        this.size = size;
+        this.maxWidgets = maxWidgets;
+    }
+
+    @Data
+    private static class Key {
+        MBRectangle boundingBox;
+        ZOrder order;
+        int limit;
+    }
+
+    @RequiredArgsConstructor
+    private static class Entry {
+        MBRectangle boundingBox;
+        List<Widget> widgets;
+        Set<UUID> ids;
+        int maxZIndex;
+        @NonFinal volatile long used;
+
+        Entry(MBRectangle boundingBox, List<Widget> widgets) {
+            this(boundingBox, widgets,
+                    widgets.stream().map(Widget::getId).collect(Collectors.toSet()),
+                    widgets.stream().mapToInt(Widget::getZIndex).max().orElse(Integer.MIN_VALUE));
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class Change {
+        UUID id;
+        // widget after the change, null when it was deleted or zIndexes were shifted
+        MBRectangle box;
+        // zIndexes from this one were shifted, when id is null
+        int shiftedFrom;
+
+        boolean affects(Entry entry) {
+            if (id == null) {
+                return entry.maxZIndex >= shiftedFrom;
+            }
+            return entry.ids.contains(id) || entry.boundingBox.contains(box);
+        }
+    }
+
+    /**
+     * Returns cached result of the search or runs it, caching the result.
+     */
+    public List<Widget> find(MBRectangle boundingBox, ZOrder order, int limit, Supplier<List<Widget>> search) {
+        if (size == 0) {
+            return search.get();
+        }
+        Key key = new Key(boundingBox, order, limit);
+        Entry cached = entries.get(key);
+        if (cached != null) {
+            cached.used = clock.incrementAndGet();
+            return cached.widgets;
+        }
+
+        long started = version;
+        List<Widget> found = Collections.unmodifiableList(search.get());
+        if (found.size() <= maxWidgets) {
+            put(key, new Entry(boundingBox, found), started);
+        }
+        return found;
+    }
+
+    private synchronized void put(Key key, Entry entry, long started) {
+        if (!isUnaffectedSince(started, entry)) {
+            return;
+        }
+        entry.used = clock.incrementAndGet();
+        Entry replaced = entries.put(key, entry);
+        widgets += entry.widgets.size() - (replaced == null ? 0 : replaced.widgets.size());
+        while (entries.size() > size || widgets > maxWidgets) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    // cache is small, and it is done only when a search missed it, so the scan costs less than the search
+    private void evictLeastRecentlyUsed() {
+        Map.Entry<Key, Entry> eldest = null;
+        for (Map.Entry<Key, Entry> candidate : entries.entrySet()) {
+            if (eldest == null || candidate.getValue().used < eldest.getValue().used) {
+                eldest = candidate;
+            }
+        }
+        remove(eldest.getKey(), eldest.getValue());
+    }
+
+    private void remove(Key key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            widgets -= entry.widgets.size();
+        }
+    }
+
+    private boolean isUnaffectedSince(long started, Entry entry) {
+        long missed = version - started;
+        if (missed > recent.size()) {
+            return false;
+        }
+        Iterator<Change> changes = recent.descendingIterator();
+        for (long i = 0; i < missed; i++) {
+            if (changes.next().affects(entry)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Changes made by one write, kept until they are visible to readers.
+     */
+    public class Changes {
+        List<Change> pending = new ArrayList<>();
+        @NonFinal boolean published;
+
+        public void saved(Widget widget) {
+            add(new Change(widget.getId(), MBRectangle.from(widget), 0));
+        }
+
+        public void deleted(UUID id) {
+            add(new Change(id, null, 0));
+        }
+
+        public void shifted(int zIndex) {
+            add(new Change(null, null, zIndex));
+        }
+
+        // changes made after publishing, e.g. by a write which failed to publish, are passed on at once
+        private synchronized void add(Change change) {
+            if (published) {
+                changed(List.of(change));
+            } else {
+                pending.add(change);
+            }
+        }
+
+        /**
+         * Must be called once the changes are visible to readers, i.e. after the write lock is released.
+         */
+        public synchronized void publish() {
+            published = true;
+            changed(pending);
+            pending.clear();
+        }
+    }
+
+    public Changes changes() {
+        return new Changes();
+    }
+
+    private synchronized void changed(List<Change> changes) {
+        if (size == 0) {
+            return;
+        }
+        for (Change change : changes) {
+            entries.forEach((key, entry) -> {
+                if (change.affects(entry)) {
+                    remove(key, entry);
+                }
+            });
+            if (recent.size() == RECENT_CHANGES) {
+                recent.removeFirst();
+            }
+            recent.addLast(change);
+            version++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        widgets = 0;
+        recent.clear();
+        version++;
+    }
+}
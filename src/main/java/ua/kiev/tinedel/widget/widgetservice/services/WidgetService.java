@@ -3,42 +3,196 @@ package ua.kiev.tinedel.widget.widgetservice.services;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.WidgetBatch;
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
 import ua.kiev.tinedel.widget.widgetservice.repositories.WidgetRepository;
 import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
 
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
 public class WidgetService {
+
+    // limit of searches which are not limited by the caller
+    public final static int NO_LIMIT = Integer.MAX_VALUE;
+
     WidgetRepository repository;
+    WriteExecutor writes;
+    SearchCache searchCache;
+
+    /**
+     * Changes made by one write. The search cache learns about them once they are visible, which is when
+     * the executor is done, and they are undone in reverse order when the write fails half way.
+     */
+    @RequiredArgsConstructor
+    private static class Write {
+        SearchCache.Changes changes;
+        Deque<Runnable> undo = new ArrayDeque<>();
+    }
 
     public Widget save(Widget widget) {
+        Write write = new Write(searchCache.changes());
         try {
-            repository.acquireWriteLock();
+            return writes.execute(() -> saveNow(widget, write));
+        } finally {
+            write.changes.publish();
+        }
+    }
 
-            // remove widget first to avoid unnecessary zindex increments
-            if(widget.getId() != null) {
-                repository.deleteById(widget.getId());
+    private Widget saveNow(Widget widget, Write write) {
+        if (widget.getId() != null) {
+            // nothing has to be shifted when zIndex did not change, so such update is done by repository
+            // at once, without holding the write lock for the whole save
+            Optional<Widget> updated = repository.update(widget.withLastModifiedDate(Instant.now()));
+            if (updated.isPresent()) {
+                write.changes.saved(updated.get());
+                return updated.get();
             }
+        }
 
-            if (repository.findByZIndex(widget.getZIndex())
-                    .filter(sameZIndex -> !sameZIndex.getId().equals(widget.getId()))
-                    .isPresent()) {
-                repository.updateZIndexToMakeSpaceFor(widget.getZIndex());
-            }
+        // likewise nothing has to be shifted when zIndex is free
+        Optional<Widget> saved = repository.saveIfZIndexFree(widget.withLastModifiedDate(Instant.now()));
+        if (saved.isPresent()) {
+            write.changes.saved(saved.get());
+            return saved.get();
+        }
+
+        try {
+            repository.acquireWriteLock();
+            return undoneOnFailure(write, () -> place(widget.withLastModifiedDate(Instant.now()), write));
+        } finally {
+            repository.releaseWriteLock();
+        }
+    }
 
-            return repository.save(widget.withLastModifiedDate(Instant.now()));
+    /**
+     * Applies the whole batch holding the write lock once, so readers see either none or all of it. If an item
+     * fails, the items applied before it are undone before the lock is released, unless the repository refuses
+     * the undoing writes too, e.g. once its write-ahead log failed.
+     * Returns updated and created widgets in this order as they are after the batch, since widgets saved
+     * later may have shifted the earlier ones.
+     */
+    public List<Widget> applyBatch(WidgetBatch batch) {
+        Write write = new Write(searchCache.changes());
+        try {
+            return writes.execute(() -> applyBatchNow(batch, write));
+        } finally {
+            write.changes.publish();
+        }
+    }
+
+    private List<Widget> applyBatchNow(WidgetBatch batch, Write write) {
+        Instant now = Instant.now();
+        try {
+            repository.acquireWriteLock();
+            return undoneOnFailure(write, () -> {
+                batch.getDelete().forEach(id -> delete(id, write));
+
+                List<UUID> saved = new ArrayList<>(batch.getUpdate().size() + batch.getCreate().size());
+                for (Widget widget : batch.getUpdate()) {
+                    Widget changed = widget.withLastModifiedDate(now);
+                    saved.add(update(changed, write).orElseGet(() -> place(changed, write)).getId());
+                }
+                for (Widget widget : batch.getCreate()) {
+                    saved.add(place(widget.withLastModifiedDate(now), write).getId());
+                }
+
+                return saved.stream()
+                        .map(repository::getById)
+                        .flatMap(Optional::stream)
+                        .collect(Collectors.toUnmodifiableList());
+            });
         } finally {
             repository.releaseWriteLock();
         }
     }
 
+    // the write lock must be held
+    private <T> T undoneOnFailure(Write write, Supplier<T> change) {
+        try {
+            return change.get();
+        } catch (RuntimeException | Error e) {
+            try {
+                while (!write.undo.isEmpty()) {
+                    write.undo.pop().run();
+                }
+            } catch (RuntimeException undoFailure) {
+                e.addSuppressed(undoFailure);
+            }
+            throw e;
+        }
+    }
+
+    // the write lock must be held
+    private Optional<Widget> update(Widget widget, Write write) {
+        Optional<Widget> previous = repository.getById(widget.getId());
+        Optional<Widget> updated = repository.update(widget);
+        if (updated.isPresent()) {
+            Widget replaced = previous.orElseThrow();
+            write.changes.saved(updated.get());
+            write.undo.push(() -> restore(replaced, write));
+        }
+        return updated;
+    }
+
+    // the write lock must be held
+    private Widget place(Widget widget, Write write) {
+        // remove widget first to avoid unnecessary zindex increments
+        if(widget.getId() != null) {
+            delete(widget.getId(), write);
+        }
+
+        if (repository.findByZIndex(widget.getZIndex())
+                .filter(sameZIndex -> !sameZIndex.getId().equals(widget.getId()))
+                .isPresent()) {
+            int shifted = repository.updateZIndexToMakeSpaceFor(widget.getZIndex());
+            write.changes.shifted(widget.getZIndex());
+            write.undo.push(() -> unshift(widget.getZIndex(), shifted, write));
+        }
+
+        Widget saved = repository.save(widget);
+        write.changes.saved(saved);
+        write.undo.push(() -> {
+            repository.deleteById(saved.getId());
+            write.changes.deleted(saved.getId());
+        });
+        return saved;
+    }
+
+    private void delete(UUID id, Write write) {
+        Optional<Widget> previous = repository.getById(id);
+        repository.deleteById(id);
+        write.changes.deleted(id);
+        previous.ifPresent(deleted -> write.undo.push(() -> restore(deleted, write)));
+    }
+
+    private void restore(Widget previous, Write write) {
+        repository.save(previous);
+        write.changes.saved(previous);
+    }
+
+    // run of widgets shifted from the zIndex is just above it, as changes made after the shift are undone already
+    private void unshift(int zIndex, int shifted, Write write) {
+        if (shifted == 0) {
+            return;
+        }
+        repository.saveAll(repository.findAllAfterZIndexOrderByZIndexAsc(zIndex, shifted).stream()
+                .map(widget -> widget.withZIndex(widget.getZIndex() - 1))
+                .collect(Collectors.toList()));
+        write.changes.shifted(zIndex);
+    }
+
     public Optional<Widget> getById(UUID id) {
         return repository.getById(id);
     }
@@ -48,13 +202,69 @@ public class WidgetService {
         return repository.findAllOrderByZIndexAsc(offset, pageSize);
     }
 
-    public List<Widget> findInBoundingBox(MBRectangle boundingBox) {
-        return repository.findAllInArea(boundingBox).stream()
-                .sorted(Comparator.comparing(Widget::getZIndex))
-                .collect(Collectors.toUnmodifiableList());
+    public List<Widget> findAllAfter(int afterZIndex, int limit) {
+        return repository.findAllAfterZIndexOrderByZIndexAsc(afterZIndex, limit);
+    }
+
+    /**
+     * Results are cached until a change touches them, continuations are searched every time. Searching best first
+     * pays off only when the search stops at the limit, so without a limit widgets are collected and sorted.
+     */
+    public List<Widget> findInBoundingBox(MBRectangle boundingBox, ZOrder order, int limit) {
+        return searchCache.find(boundingBox, order, limit, () -> limit == NO_LIMIT
+                ? sortedByZIndex(repository.findAllInArea(boundingBox), order)
+                : repository.findAllInAreaOrderByZIndex(boundingBox, order, limit));
+    }
+
+    private static List<Widget> sortedByZIndex(List<Widget> widgets, ZOrder order) {
+        Comparator<Widget> byZIndex = Comparator.comparing(Widget::getZIndex);
+        List<Widget> sorted = new ArrayList<>(widgets);
+        sorted.sort(order == ZOrder.TOP_MOST_FIRST ? byZIndex.reversed() : byZIndex);
+        return sorted;
+    }
+
+    /**
+     * Continues search in the bounding box past the given zIndex in the requested order.
+     */
+    public List<Widget> findInBoundingBoxAfter(MBRectangle boundingBox, ZOrder order, int afterZIndex, int limit) {
+        return Collections.unmodifiableList(
+                repository.findAllInAreaOrderByZIndexAfter(boundingBox, order, afterZIndex, limit));
+    }
+
+    /**
+     * Continues search in the bounding box past the given widget at its current zIndex, so that zIndexes shifted
+     * since it was found do not make the search skip or repeat widgets. The zIndex it was found at is used
+     * if it was deleted since then.
+     */
+    public List<Widget> findInBoundingBoxAfter(MBRectangle boundingBox, ZOrder order, UUID afterId, int afterZIndex,
+                                               int limit) {
+        int zIndex = repository.getById(afterId).map(Widget::getZIndex).orElse(afterZIndex);
+        return findInBoundingBoxAfter(boundingBox, order, zIndex, limit);
+    }
+
+    public int countInBoundingBox(MBRectangle boundingBox) {
+        return repository.countInArea(boundingBox);
+    }
+
+    public List<Widget> findAtPoint(int x, int y, int limit) {
+        return Collections.unmodifiableList(repository.findAllAtPointOrderByZIndexDesc(x, y, limit));
+    }
+
+    public List<Widget> findNearest(int x, int y, int count) {
+        return Collections.unmodifiableList(repository.findNearest(x, y, count));
     }
 
     public void deleteById(UUID id) {
-        repository.deleteById(id);
+        Write write = new Write(searchCache.changes());
+        try {
+            // nothing to undo after the only change
+            writes.execute(() -> {
+                repository.deleteById(id);
+                write.changes.deleted(id);
+                return null;
+            });
+        } finally {
+            write.changes.publish();
+        }
     }
 }
@@ -0,0 +1,16 @@
+package ua.kiev.tinedel.widget.widgetservice.services;
+
+import java.util.function.Supplier;
+
+/**
+ * Runs changes of the repository for {@link WidgetService}. Changes take the write lock of the repository
+ * themselves when they need it, executor may run them holding it already.
+ */
+public interface WriteExecutor {
+
+    /**
+     * Runs the change and returns its result once it is visible to readers, exceptions of the change are
+     * thrown to the caller as they are.
+     */
+    <T> T execute(Supplier<T> change);
+}
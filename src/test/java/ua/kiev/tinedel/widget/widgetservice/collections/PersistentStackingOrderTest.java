@@ -0,0 +1,144 @@
+package ua.kiev.tinedel.widget.widgetservice.collections;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PersistentStackingOrderTest {
+
+    static final Random RANDOM = new Random();
+
+    @Test
+    void behavesAsStackWithShifts() {
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Map<String, Long> labels = new HashMap<>();
+        PersistentStackingOrder<String> stack = PersistentStackingOrder.empty();
+
+        for (int i = 0; i < 5000; i++) {
+            int level = RANDOM.nextInt(500);
+            if (RANDOM.nextInt(3) == 0) {
+                labels.remove(expected.remove(level));
+                stack = stack.remove(level);
+            } else {
+                int run = 0;
+                while (expected.containsKey(level + run)) {
+                    run++;
+                }
+                assertThat(stack.runLength(level)).isEqualTo(run);
+                for (int k = level + run; k > level; k--) {
+                    expected.put(k, expected.get(k - 1));
+                }
+                stack = stack.shift(level);
+
+                String value = "v" + i;
+                expected.put(level, value);
+                stack = stack.insert(level, value, labels::put);
+                labels.put(value, stack.entry(level).getLabel());
+            }
+        }
+
+        assertThat(stack.size()).isEqualTo(expected.size());
+        for (int level = -1; level <= 1000; level++) {
+            assertThat(stack.get(level)).isEqualTo(expected.get(level));
+        }
+        assertThat(values(stack.entries())).containsExactlyElementsOf(expected.values());
+        assertThat(values(stack.entriesFrom(250))).containsExactlyElementsOf(expected.tailMap(250).values());
+        List<String> all = new ArrayList<>(expected.values());
+        for (int rank = 0; rank <= all.size() + 1; rank += 37) {
+            assertThat(values(stack.entriesFromRank(rank)))
+                    .containsExactlyElementsOf(all.subList(Math.min(rank, all.size()), all.size()));
+        }
+        assertConsistent(stack, labels);
+    }
+
+    @Test
+    void labelsAreSpreadWhenThereIsNoGapLeft() {
+        Map<String, Long> labels = new HashMap<>();
+        PersistentStackingOrder<String> stack = PersistentStackingOrder.empty();
+
+        // always putting new value to the bottom halves the gap every time
+        for (int i = 0; i < 3000; i++) {
+            stack = stack.shift(0).insert(0, "v" + i, labels::put);
+            labels.put("v" + i, stack.entry(0).getLabel());
+        }
+
+        assertThat(stack.runLength(0)).isEqualTo(3000);
+        assertThat(stack.get(2999)).isEqualTo("v0");
+        assertConsistent(stack, labels);
+    }
+
+    @Test
+    void stackBuiltFromSortedValuesTakesFurtherChanges() {
+        List<Integer> levels = new ArrayList<>();
+        for (int level = -3000; level < 3000; level += 1 + RANDOM.nextInt(3)) {
+            levels.add(level);
+        }
+        Map<String, Long> labels = new HashMap<>();
+        PersistentStackingOrder<String> stack = PersistentStackingOrder.ofSorted(
+                levels.stream().map(level -> "v" + level).collect(Collectors.toList()),
+                value -> Integer.parseInt(value.substring(1)));
+        stack.entries().forEach(entry -> labels.put(entry.getValue(), entry.getLabel()));
+
+        assertThat(stack.size()).isEqualTo(levels.size());
+        assertThat(stack.get(levels.get(10))).isEqualTo("v" + levels.get(10));
+        for (int i = 0; i < 1000; i++) {
+            stack = stack.shift(0).insert(0, "n" + i, labels::put);
+            labels.put("n" + i, stack.entry(0).getLabel());
+        }
+        assertThat(stack.size()).isEqualTo(levels.size() + 1000);
+        assertConsistent(stack, labels);
+        assertThatThrownBy(() -> PersistentStackingOrder.ofSorted(List.of("a", "b"), value -> 1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void oldVersionsStayUnchanged() {
+        PersistentStackingOrder<String> stack = PersistentStackingOrder.<String>empty()
+                .insert(1, "a", (v, l) -> { })
+                .insert(2, "b", (v, l) -> { });
+        PersistentStackingOrder<String> shifted = stack.shift(1).insert(1, "c", (v, l) -> { }).set(3, "d");
+
+        assertThat(values(stack.entries())).containsExactly("a", "b");
+        assertThat(stack.entry(2).getLevel()).isEqualTo(2);
+        assertThat(values(shifted.entries())).containsExactly("c", "a", "d");
+        assertThat(shifted.entryOf(stack.entry(1).getLabel()).getLevel()).isEqualTo(2);
+        assertThat(shifted.shift(5)).isSameAs(shifted);
+        assertThat(shifted.remove(5)).isSameAs(shifted);
+    }
+
+    @Test
+    void occupiedAndFreeLevelsAreChecked() {
+        PersistentStackingOrder<String> stack = PersistentStackingOrder.<String>empty().insert(1, "a", (v, l) -> { });
+
+        assertThatThrownBy(() -> stack.insert(1, "b", (v, l) -> { })).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> stack.set(2, "b")).isInstanceOf(IllegalArgumentException.class);
+        assertThat(stack.entryOf(-1)).isNull();
+    }
+
+    // labels follow levels and are the ones last reported for each value
+    private static void assertConsistent(PersistentStackingOrder<String> stack, Map<String, Long> labels) {
+        long previous = -PersistentStackingOrder.LABEL_BOUND;
+        for (PersistentStackingOrder.Entry<String> entry : stack.entries()) {
+            assertThat(entry.getLabel()).isGreaterThan(previous).isLessThan(PersistentStackingOrder.LABEL_BOUND);
+            assertThat(entry.getLabel()).isEqualTo(labels.get(entry.getValue()));
+            assertThat(stack.entryOf(entry.getLabel())).isEqualTo(entry);
+            previous = entry.getLabel();
+        }
+    }
+
+    private static List<String> values(Iterable<PersistentStackingOrder.Entry<String>> entries) {
+        return StreamSupport.stream(entries.spliterator(), false)
+                .map(PersistentStackingOrder.Entry::getValue)
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+}
@@ -0,0 +1,105 @@
+package ua.kiev.tinedel.widget.widgetservice.collections;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PersistentUuidLongMapTest {
+
+    static final Random RANDOM = new Random();
+
+    @Test
+    void behavesAsMap() {
+        List<UUID> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            keys.add(UUID.randomUUID());
+        }
+        Map<UUID, Long> expected = new HashMap<>();
+        PersistentUuidLongMap map = PersistentUuidLongMap.empty();
+
+        for (int i = 0; i < 20000; i++) {
+            UUID key = keys.get(RANDOM.nextInt(keys.size()));
+            if (RANDOM.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, (long) i);
+                map = map.put(key, i);
+            }
+        }
+
+        assertThat(map.size()).isEqualTo(expected.size());
+        for (UUID key : keys) {
+            assertThat(map.get(key)).isEqualTo(expected.getOrDefault(key, PersistentUuidLongMap.NO_VALUE));
+            assertThat(map.containsKey(key)).isEqualTo(expected.containsKey(key));
+        }
+    }
+
+    @Test
+    void keysWithTheSameHashAreKeptApart() {
+        // hash depends on xor of the halves only
+        List<UUID> keys = new ArrayList<>();
+        for (long i = 0; i < 5; i++) {
+            keys.add(new UUID(i, i));
+        }
+        PersistentUuidLongMap map = PersistentUuidLongMap.empty();
+        for (int i = 0; i < keys.size(); i++) {
+            map = map.put(keys.get(i), i).put(keys.get(i), i * 10);
+        }
+
+        for (int i = 0; i < keys.size(); i++) {
+            assertThat(map.get(keys.get(i))).isEqualTo(i * 10);
+        }
+        assertThat(map.get(new UUID(7, 7))).isEqualTo(PersistentUuidLongMap.NO_VALUE);
+
+        for (int i = 0; i < keys.size(); i++) {
+            map = map.remove(keys.get(i));
+            assertThat(map.size()).isEqualTo(keys.size() - i - 1);
+            for (int k = i + 1; k < keys.size(); k++) {
+                assertThat(map.get(keys.get(k))).isEqualTo(k * 10);
+            }
+        }
+    }
+
+    @Test
+    void oldVersionsStayUnchanged() {
+        List<UUID> keys = new ArrayList<>();
+        List<PersistentUuidLongMap> versions = new ArrayList<>();
+        PersistentUuidLongMap map = PersistentUuidLongMap.empty();
+        for (int i = 0; i < 100; i++) {
+            versions.add(map);
+            keys.add(UUID.randomUUID());
+            map = map.put(keys.get(i), i);
+        }
+        map = map.remove(keys.get(0)).put(keys.get(1), -1);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(versions.get(i).size()).isEqualTo(i);
+            for (int k = 0; k < 100; k++) {
+                assertThat(versions.get(i).containsKey(keys.get(k))).isEqualTo(k < i);
+            }
+        }
+        assertThat(map.containsKey(keys.get(0))).isFalse();
+        assertThat(map.get(keys.get(1))).isEqualTo(-1);
+    }
+
+    @Test
+    void emptyMapHasNothing() {
+        PersistentUuidLongMap map = PersistentUuidLongMap.empty();
+        UUID key = UUID.randomUUID();
+
+        assertThat(map.isEmpty()).isTrue();
+        assertThat(map.remove(key)).isSameAs(map);
+        assertThat(map.put(key, 1).isEmpty()).isFalse();
+        assertThatThrownBy(() -> map.put(key, PersistentUuidLongMap.NO_VALUE))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,15 @@
+package ua.kiev.tinedel.widget.widgetservice.integration;
+
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * Same API tests, run against the repository writing to an in-memory H2 database.
+ */
+@SpringBootTest(properties = {
+        "widgetservice.repository.type=jdbc",
+        "widgetservice.repository.jdbc.url=jdbc:h2:mem:widgets;DB_CLOSE_DELAY=-1"
+})
+@AutoConfigureMockMvc
+public class JdbcWidgetControllerIT extends WidgetControllerIT {
+}
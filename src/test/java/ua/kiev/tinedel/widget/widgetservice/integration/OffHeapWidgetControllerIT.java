@@ -0,0 +1,12 @@
+package ua.kiev.tinedel.widget.widgetservice.integration;
+
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * Same API tests, run against the off-heap repository.
+ */
+@SpringBootTest(properties = "widgetservice.repository.type=off-heap")
+@AutoConfigureMockMvc
+public class OffHeapWidgetControllerIT extends WidgetControllerIT {
+}
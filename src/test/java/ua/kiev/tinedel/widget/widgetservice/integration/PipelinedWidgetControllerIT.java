@@ -0,0 +1,12 @@
+package ua.kiev.tinedel.widget.widgetservice.integration;
+
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * Same API tests, with changes applied by the single writer thread.
+ */
+@SpringBootTest(properties = "widgetservice.writes.mode=pipelined")
+@AutoConfigureMockMvc
+public class PipelinedWidgetControllerIT extends WidgetControllerIT {
+}
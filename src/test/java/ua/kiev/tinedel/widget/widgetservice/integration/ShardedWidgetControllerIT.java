@@ -0,0 +1,17 @@
+package ua.kiev.tinedel.widget.widgetservice.integration;
+
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * Same API tests, run against the sharded repository with tiles small enough for test widgets to spread
+ * over several shards.
+ */
+@SpringBootTest(properties = {
+        "widgetservice.repository.type=sharded",
+        "widgetservice.repository.sharded.shards=4",
+        "widgetservice.repository.sharded.tile-size=20"
+})
+@AutoConfigureMockMvc
+public class ShardedWidgetControllerIT extends WidgetControllerIT {
+}
@@ -11,8 +11,12 @@ import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMock
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import ua.kiev.tinedel.widget.widgetservice.controllers.WidgetController;
 import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.WidgetBatch;
 import ua.kiev.tinedel.widget.widgetservice.repositories.WidgetRepository;
+import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
+import ua.kiev.tinedel.widget.widgetservice.services.SearchCache;
 
 import java.util.Arrays;
 import java.util.Comparator;
@@ -36,6 +40,10 @@ public class WidgetControllerIT {
     @NonFinal
     WidgetRepository repository;
 
+    @Autowired
+    @NonFinal
+    SearchCache searchCache;
+
     @Autowired
     @NonFinal
     ObjectMapper objectMapper;
@@ -43,6 +51,7 @@ public class WidgetControllerIT {
     @BeforeEach
     void setUp() {
         repository.clear();
+        searchCache.clear();
     }
 
     @Test
@@ -101,6 +110,32 @@ public class WidgetControllerIT {
                 .andExpect(jsonPath("$").isEmpty());
     }
 
+    @Test
+    @SneakyThrows
+    void widgetsAfterZIndexAreReturnedOnGet() {
+        List<Widget> widgets = Arrays.stream(new int[]{-1, 0, 1, 2, 4})
+                .mapToObj(it -> buildWidget(null).setZIndex(it))
+                .collect(Collectors.toList());
+
+        widgets.forEach(repository::save);
+
+        mockMvc.perform(get("/widgets?after=0&limit=2"))
+                .andExpect(status().isOk())
+                .andExpect(content().json(objectMapper.writeValueAsString(widgets.subList(2, 4)), true));
+        mockMvc.perform(get("/widgets?after=2&limit=2"))
+                .andExpect(status().isOk())
+                .andExpect(content().json(objectMapper.writeValueAsString(widgets.subList(4, 5)), true));
+    }
+
+    @Test
+    @SneakyThrows
+    void pageSizeIsNotTakenTogetherWithAfter() {
+        mockMvc.perform(get("/widgets?after=0&pageSize=2"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/widgets?pageSize=2&limit=2"))
+                .andExpect(status().isBadRequest());
+    }
+
     @Test
     @SneakyThrows
     void pageSizeAndNumberAreValidated() {
@@ -191,6 +226,56 @@ public class WidgetControllerIT {
                 .andExpect(content().json(objectMapper.writeValueAsString(widgets), true));
     }
 
+    @Test
+    @SneakyThrows
+    void batchAppliesDeletesUpdatesAndCreates() {
+        List<Widget> widgets = Arrays.stream(new int[]{0, 1, 2})
+                .mapToObj(it -> buildWidget(null).setZIndex(it))
+                .collect(Collectors.toList());
+
+        widgets.forEach(repository::save);
+
+        WidgetBatch batch = new WidgetBatch()
+                .setDelete(List.of(widgets.get(0).getId()))
+                .setUpdate(List.of(widgets.get(2).withX(50)))
+                .setCreate(List.of(buildWidget(null).setZIndex(1), buildWidget(null).setZIndex(5)));
+
+        String resp = mockMvc.perform(
+                post("/widgets/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(batch)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].zindex").value(Matchers.contains(3, 1, 5)))
+                .andExpect(jsonPath("$[0].x").value(50))
+                .andReturn().getResponse().getContentAsString();
+
+        Widget[] applied = objectMapper.readValue(resp, Widget[].class);
+
+        mockMvc.perform(get("/widgets"))
+                .andExpect(status().isOk())
+                .andExpect(content().json(objectMapper.writeValueAsString(List.of(
+                        applied[1], widgets.get(1).setZIndex(2), applied[0], applied[2])), true));
+    }
+
+    @Test
+    @SneakyThrows
+    void batchIsValidatedAsAWhole() {
+        Widget kept = repository.save(buildWidget(null));
+        WidgetBatch batch = new WidgetBatch()
+                .setDelete(List.of(kept.getId()))
+                .setCreate(List.of(buildWidget(UUID.randomUUID())));
+
+        mockMvc.perform(
+                post("/widgets/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(batch)))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.violations[*].fieldName").value(Matchers.contains("create[0].id")));
+
+        mockMvc.perform(get("/widgets/{id}", kept.getId()))
+                .andExpect(status().isOk());
+    }
+
     @Test
     @SneakyThrows
     void getWithMissingWidgetFails() {
@@ -212,6 +297,173 @@ public class WidgetControllerIT {
                 .andExpect(content().json(objectMapper.writeValueAsString(widget)));
     }
 
+    @Test
+    @SneakyThrows
+    void searchReturnsWidgetsInBoxOrderedByZIndex() {
+        List<Widget> widgets = Arrays.stream(new int[]{-1, 0, 1, 2, 4})
+                .mapToObj(it -> buildWidget(null).setZIndex(it).setX(it * 10))
+                .collect(Collectors.toList());
+
+        widgets.forEach(repository::save);
+
+        mockMvc.perform(post("/widgets/search")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new MBRectangle(0, 0, 30, 10))))
+                .andExpect(status().isOk())
+                .andExpect(content().json(objectMapper.writeValueAsString(widgets.subList(1, 4)), true));
+    }
+
+    @Test
+    @SneakyThrows
+    void searchRespectsOrderAndLimit() {
+        List<Widget> widgets = Arrays.stream(new int[]{-1, 0, 1, 2, 4})
+                .mapToObj(it -> buildWidget(null).setZIndex(it))
+                .collect(Collectors.toList());
+
+        widgets.forEach(repository::save);
+
+        mockMvc.perform(post("/widgets/search?order=TOP_MOST_FIRST&limit=2")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new MBRectangle(0, 0, 10, 10))))
+                .andExpect(status().isOk())
+                .andExpect(content().json(objectMapper.writeValueAsString(List.of(widgets.get(4), widgets.get(3))), true));
+    }
+
+    @Test
+    @SneakyThrows
+    void searchResumesFromContinuationToken() {
+        List<Widget> widgets = Arrays.stream(new int[]{-1, 0, 1, 2, 4})
+                .mapToObj(it -> buildWidget(null).setZIndex(it))
+                .collect(Collectors.toList());
+
+        widgets.forEach(repository::save);
+
+        String token = mockMvc.perform(post("/widgets/search?order=TOP_MOST_FIRST&limit=2")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new MBRectangle(0, 0, 10, 10))))
+                .andExpect(status().isOk())
+                .andExpect(content().json(objectMapper.writeValueAsString(List.of(widgets.get(4), widgets.get(3))), true))
+                .andReturn().getResponse().getHeader(WidgetController.CONTINUATION_TOKEN_HEADER);
+
+        token = mockMvc.perform(post("/widgets/search?order=TOP_MOST_FIRST&limit=2&token=" + token)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new MBRectangle(0, 0, 10, 10))))
+                .andExpect(status().isOk())
+                .andExpect(content().json(objectMapper.writeValueAsString(List.of(widgets.get(2), widgets.get(1))), true))
+                .andReturn().getResponse().getHeader(WidgetController.CONTINUATION_TOKEN_HEADER);
+
+        mockMvc.perform(post("/widgets/search?order=TOP_MOST_FIRST&limit=2&token=" + token)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new MBRectangle(0, 0, 10, 10))))
+                .andExpect(status().isOk())
+                .andExpect(content().json(objectMapper.writeValueAsString(List.of(widgets.get(0))), true))
+                .andExpect(header().doesNotExist(WidgetController.CONTINUATION_TOKEN_HEADER));
+
+        mockMvc.perform(post("/widgets/search?order=BOTTOM_MOST_FIRST&limit=2&token=" + token)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new MBRectangle(0, 0, 10, 10))))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @SneakyThrows
+    void searchResumesFromContinuationToken_whenZIndexesAreShiftedBetweenPages() {
+        List<Widget> widgets = Arrays.stream(new int[]{-1, 0, 1, 2, 4})
+                .mapToObj(it -> buildWidget(null).setZIndex(it))
+                .collect(Collectors.toList());
+
+        widgets.forEach(repository::save);
+
+        String token = mockMvc.perform(post("/widgets/search?order=TOP_MOST_FIRST&limit=2")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new MBRectangle(0, 0, 10, 10))))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(WidgetController.CONTINUATION_TOKEN_HEADER);
+
+        // shifts widgets from zIndex 0 up to 2 by one
+        mockMvc.perform(post("/widgets")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(buildWidget(null).setX(100))))
+                .andExpect(status().isOk());
+        widgets.get(1).setZIndex(1);
+        widgets.get(2).setZIndex(2);
+
+        mockMvc.perform(post("/widgets/search?order=TOP_MOST_FIRST&limit=2&token=" + token)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new MBRectangle(0, 0, 10, 10))))
+                .andExpect(status().isOk())
+                .andExpect(content().json(
+                        objectMapper.writeValueAsString(List.of(widgets.get(2), widgets.get(1))), true));
+    }
+
+    @Test
+    @SneakyThrows
+    void malformedContinuationTokenIsRejected() {
+        mockMvc.perform(post("/widgets/search?token=garbage")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new MBRectangle(0, 0, 10, 10))))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @SneakyThrows
+    void countReturnsNumberOfWidgetsInBox() {
+        Arrays.stream(new int[]{-1, 0, 1, 2, 4})
+                .mapToObj(it -> buildWidget(null).setZIndex(it).setX(it * 10))
+                .forEach(repository::save);
+
+        mockMvc.perform(post("/widgets/search/count")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new MBRectangle(0, 0, 30, 10))))
+                .andExpect(status().isOk())
+                .andExpect(content().string("3"));
+    }
+
+    @Test
+    @SneakyThrows
+    void searchLimitIsValidated() {
+        mockMvc.perform(post("/widgets/search?limit=0")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new MBRectangle(0, 0, 10, 10))))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.violations[*].fieldName").value(Matchers.containsInAnyOrder(
+                        getFieldsFullNames(new String[]{"limit"}, FIND_WIDGET_PARAMETERS_PREFIX)
+                )));
+    }
+
+    @Test
+    @SneakyThrows
+    void widgetsAtPointAreReturnedTopMostFirst() {
+        List<Widget> widgets = Arrays.stream(new int[]{-1, 0, 1, 2, 4})
+                .mapToObj(it -> buildWidget(null).setZIndex(it).setX(it))
+                .collect(Collectors.toList());
+
+        widgets.forEach(repository::save);
+
+        mockMvc.perform(get("/widgets/at?x=1&y=5"))
+                .andExpect(status().isOk())
+                .andExpect(content().json(objectMapper.writeValueAsString(List.of(widgets.get(2))), true));
+
+        mockMvc.perform(get("/widgets/at?x=1&y=5&limit=10"))
+                .andExpect(status().isOk())
+                .andExpect(content().json(objectMapper.writeValueAsString(
+                        List.of(widgets.get(2), widgets.get(1), widgets.get(0))), true));
+    }
+
+    @Test
+    @SneakyThrows
+    void nearestWidgetsAreReturnedClosestFirst() {
+        List<Widget> widgets = Arrays.stream(new int[]{-1, 0, 1, 2, 4})
+                .mapToObj(it -> buildWidget(null).setZIndex(it).setX(it * 100))
+                .collect(Collectors.toList());
+
+        widgets.forEach(repository::save);
+
+        mockMvc.perform(get("/widgets/nearest?x=190&y=5&k=2"))
+                .andExpect(status().isOk())
+                .andExpect(content().json(objectMapper.writeValueAsString(List.of(widgets.get(3), widgets.get(2))), true));
+    }
+
     static final String POST_FIELD_PREFIX = "create.widget.";
     static final String FIND_WIDGET_PARAMETERS_PREFIX = "findWidgets.";
     static final String PUT_FIELD_PREFIX = "update.widget.";
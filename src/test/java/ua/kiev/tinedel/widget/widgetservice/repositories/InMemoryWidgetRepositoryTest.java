@@ -1,11 +1,21 @@
 package ua.kiev.tinedel.widget.widgetservice.repositories;
 
+import lombok.SneakyThrows;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import ua.kiev.tinedel.widget.widgetservice.models.Widget;
-
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
+import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
+
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -109,6 +119,76 @@ class InMemoryWidgetRepositoryTest {
                 .map(Widget::getZIndex)).containsSequence(-1, 1, 2, 3, 4);
     }
 
+    @Test
+    void whenWidgetIsUpdated_itIsFoundOnNewPlaceOnly() {
+        Widget w = buildWidget(UUID.randomUUID());
+        Widget other = buildWidget(UUID.randomUUID()).setZIndex(1).setX(100);
+
+        WidgetRepository wr = new InMemoryWidgetRepository();
+        wr.save(w);
+        wr.save(other);
+
+        Widget moved = w.withX(50);
+        assertThat(wr.update(moved)).contains(moved);
+
+        assertThat(wr.getById(w.getId())).contains(moved);
+        assertThat(wr.findByZIndex(0)).contains(moved);
+        assertThat(wr.findAllInArea(new MBRectangle(0, 0, 10, 10))).isEmpty();
+        assertThat(wr.findAllInArea(new MBRectangle(50, 0, 60, 10))).containsExactly(moved);
+    }
+
+    @Test
+    void whenWidgetIsUpdated_changedZIndexesAndMissingWidgetsAreNotUpdated() {
+        Widget w = buildWidget(UUID.randomUUID());
+
+        WidgetRepository wr = new InMemoryWidgetRepository();
+        wr.save(w);
+
+        assertThat(wr.update(w.withZIndex(1))).isEmpty();
+        assertThat(wr.update(buildWidget(UUID.randomUUID()))).isEmpty();
+        assertThat(wr.findByZIndex(0)).contains(w);
+        assertThat(wr.findByZIndex(1)).isEmpty();
+    }
+
+    @Test
+    @SneakyThrows
+    void whenWriteLockIsHeld_changesAreSeenByWriterOnly() {
+        Widget before = buildWidget(UUID.randomUUID());
+        Widget after = buildWidget(UUID.randomUUID()).setZIndex(1);
+
+        WidgetRepository wr = new InMemoryWidgetRepository();
+        wr.save(before);
+        try {
+            wr.acquireWriteLock();
+            wr.deleteById(before.getId());
+            wr.save(after);
+
+            assertThat(wr.findAllOrderByZIndexAsc(0, 10)).containsExactly(after);
+            // readers do not wait for the writer and see the last published state
+            assertThat(CompletableFuture.supplyAsync(() -> wr.findAllOrderByZIndexAsc(0, 10)).get())
+                    .containsExactly(before);
+            assertThat(CompletableFuture.supplyAsync(() -> wr.findAllInArea(new MBRectangle(0, 0, 10, 10))).get())
+                    .containsExactly(before);
+        } finally {
+            wr.releaseWriteLock();
+        }
+
+        assertThat(CompletableFuture.supplyAsync(() -> wr.getById(after.getId())).get()).contains(after);
+        assertThat(CompletableFuture.supplyAsync(() -> wr.getById(before.getId())).get()).isEmpty();
+    }
+
+    @Test
+    void whenZIndexesAreShifted_publishedWidgetsAreNotChanged() {
+        Widget widget = buildWidget(UUID.randomUUID());
+
+        WidgetRepository wr = new InMemoryWidgetRepository();
+        wr.save(widget);
+        wr.updateZIndexToMakeSpaceFor(0);
+
+        assertThat(widget.getZIndex()).isZero();
+        assertThat(wr.getById(widget.getId()).map(Widget::getZIndex)).contains(1);
+    }
+
     @Test
     void whenWidgetIsRemoved_itCanNotBeFound() {
         Widget w = buildWidget(UUID.randomUUID());
@@ -147,4 +227,253 @@ class InMemoryWidgetRepositoryTest {
                 .hasSize(2)
                 .containsSequence(0, 1);
     }
-}
\ No newline at end of file
+
+    @Test
+    void whenWidgetsAreSavedInBulk_theyCanBeFoundEverywhere() {
+        List<Widget> widgets = Arrays.stream(new int[]{-1, 0, 1, 2, 4})
+                .mapToObj(it -> buildWidget(null).setZIndex(it).setX(it * 20))
+                .collect(Collectors.toList());
+
+        WidgetRepository wr = new InMemoryWidgetRepository();
+        wr.save(buildWidget(null).setZIndex(10).setX(100));
+        wr.saveAll(widgets);
+
+        assertThat(wr.findAllOrderByZIndexAsc(0, 10).stream().map(Widget::getZIndex))
+                .containsExactly(-1, 0, 1, 2, 4, 10);
+        assertThat(wr.findAllInArea(new MBRectangle(-20, 0, 15, 10)))
+                .containsExactlyInAnyOrder(widgets.get(0), widgets.get(1));
+        widgets.forEach(w -> assertThat(wr.getById(w.getId())).contains(w));
+    }
+
+    @Test
+    void whenWidgetsAreSavedInBulkWithSwappedZIndexes_noConflictIsReported() {
+        Widget first = buildWidget(UUID.randomUUID()).setZIndex(1);
+        Widget second = buildWidget(UUID.randomUUID()).setZIndex(2);
+
+        WidgetRepository wr = new InMemoryWidgetRepository();
+        wr.save(first);
+        wr.save(second);
+        wr.saveAll(List.of(first.withZIndex(2), second.withZIndex(1)));
+
+        assertThat(wr.findAllOrderByZIndexAsc(0, 10).stream().map(Widget::getId))
+                .containsExactly(second.getId(), first.getId());
+    }
+
+    @Test
+    void whenWidgetsAreSavedInBulkWithConflictingZIndex_exceptionIsThrownAndNothingSaved() {
+        WidgetRepository wr = new InMemoryWidgetRepository();
+        wr.save(buildWidget(UUID.randomUUID()).setZIndex(1));
+
+        assertThatThrownBy(() -> wr.saveAll(List.of(buildWidget(null).setZIndex(0), buildWidget(null).setZIndex(1))))
+                .isInstanceOf(DataStoreException.class);
+        assertThatThrownBy(() -> wr.saveAll(List.of(buildWidget(null).setZIndex(5), buildWidget(null).setZIndex(5))))
+                .isInstanceOf(DataStoreException.class);
+        assertThat(wr.findAllOrderByZIndexAsc(0, 10)).hasSize(1);
+    }
+
+    @Test
+    void whenZIndexesAreShifted_areaSearchOrderFollows() {
+        List<Widget> widgets = Arrays.stream(new int[]{-1, 0, 1, 2, 4})
+                .mapToObj(it -> buildWidget(UUID.randomUUID()).setZIndex(it))
+                .collect(Collectors.toList());
+
+        WidgetRepository wr = new InMemoryWidgetRepository();
+        widgets.forEach(wr::save);
+        wr.updateZIndexToMakeSpaceFor(0);
+        Widget inserted = wr.save(buildWidget(UUID.randomUUID()).setZIndex(0));
+
+        assertThat(wr.findAllInAreaOrderByZIndex(new MBRectangle(0, 0, 10, 10), ZOrder.TOP_MOST_FIRST, 3)
+                .stream().map(Widget::getZIndex))
+                .containsExactly(4, 3, 2);
+        assertThat(wr.findAllInAreaOrderByZIndex(new MBRectangle(0, 0, 10, 10), ZOrder.BOTTOM_MOST_FIRST, 2))
+                .containsExactly(widgets.get(0), inserted);
+    }
+
+    @Test
+    void whenWidgetsAreAlwaysPutToTheBottom_allIndexesKeepTheSameOrder() {
+        WidgetRepository wr = new InMemoryWidgetRepository();
+        for (int i = 0; i < 2000; i++) {
+            wr.updateZIndexToMakeSpaceFor(0);
+            wr.save(buildWidget(UUID.randomUUID()).setZIndex(0));
+        }
+
+        List<Widget> ordered = wr.findAllOrderByZIndexAsc(0, 2000);
+        assertThat(ordered.stream().map(Widget::getZIndex)).isSorted().doesNotHaveDuplicates();
+        assertThat(wr.findAllInAreaOrderByZIndex(new MBRectangle(0, 0, 10, 10), ZOrder.BOTTOM_MOST_FIRST, 2000))
+                .containsExactlyElementsOf(ordered);
+        assertThat(wr.getById(ordered.get(1999).getId())).contains(ordered.get(1999));
+    }
+
+    @Test
+    void whenSearchingAfterZIndex_searchContinuesPastIt() {
+        List<Widget> widgets = Arrays.stream(new int[]{-1, 0, 1, 2, 4})
+                .mapToObj(it -> buildWidget(UUID.randomUUID()).setZIndex(it))
+                .collect(Collectors.toList());
+
+        WidgetRepository wr = new InMemoryWidgetRepository();
+        widgets.forEach(wr::save);
+        MBRectangle box = new MBRectangle(0, 0, 10, 10);
+
+        assertThat(wr.findAllAfterZIndexOrderByZIndexAsc(0, 2)).containsExactly(widgets.get(2), widgets.get(3));
+        assertThat(wr.findAllAfterZIndexOrderByZIndexAsc(Integer.MAX_VALUE, 2)).isEmpty();
+        assertThat(wr.findAllInAreaOrderByZIndexAfter(box, ZOrder.BOTTOM_MOST_FIRST, 1, 5))
+                .containsExactly(widgets.get(3), widgets.get(4));
+        assertThat(wr.findAllInAreaOrderByZIndexAfter(box, ZOrder.TOP_MOST_FIRST, 3, 2))
+                .containsExactly(widgets.get(3), widgets.get(2));
+        assertThat(wr.findAllInAreaOrderByZIndexAfter(box, ZOrder.TOP_MOST_FIRST, -1, 2)).isEmpty();
+        assertThat(wr.findAllInAreaOrderByZIndexAfter(box, ZOrder.BOTTOM_MOST_FIRST, Integer.MAX_VALUE, 2)).isEmpty();
+    }
+
+    @Test
+    void whenCountingInArea_onlyContainedWidgetsAreCounted() {
+        List<Widget> widgets = Arrays.stream(new int[]{-1, 0, 1, 2, 4})
+                .mapToObj(it -> buildWidget(UUID.randomUUID()).setZIndex(it).setX(it * 10))
+                .collect(Collectors.toList());
+
+        WidgetRepository wr = new InMemoryWidgetRepository();
+        widgets.forEach(wr::save);
+
+        assertThat(wr.countInArea(new MBRectangle(0, 0, 30, 10))).isEqualTo(3);
+        assertThat(wr.countInArea(new MBRectangle(-10, 0, 50, 10))).isEqualTo(5);
+        assertThat(wr.countInArea(new MBRectangle(0, 0, 5, 5))).isZero();
+    }
+
+    @Test
+    void whenSearchingAtPoint_coveringWidgetsAreFoundTopMostFirst() {
+        Widget bottom = buildWidget(UUID.randomUUID()).setZIndex(1);
+        Widget top = buildWidget(UUID.randomUUID()).setZIndex(2).setX(5);
+        Widget aside = buildWidget(UUID.randomUUID()).setZIndex(3).setX(20);
+
+        WidgetRepository wr = new InMemoryWidgetRepository();
+        List.of(bottom, top, aside).forEach(wr::save);
+
+        assertThat(wr.findAllAtPointOrderByZIndexDesc(7, 7, 10)).containsExactly(top, bottom);
+        assertThat(wr.findAllAtPointOrderByZIndexDesc(7, 7, 1)).containsExactly(top);
+        assertThat(wr.findAllAtPointOrderByZIndexDesc(17, 7, 10)).isEmpty();
+    }
+
+    @Test
+    void whenSearchingNearest_closestWidgetsAreFoundFirst() {
+        Widget near = buildWidget(UUID.randomUUID()).setZIndex(1).setX(20);
+        Widget far = buildWidget(UUID.randomUUID()).setZIndex(2).setX(-50);
+        Widget middle = buildWidget(UUID.randomUUID()).setZIndex(3).setY(-30);
+
+        WidgetRepository wr = new InMemoryWidgetRepository();
+        List.of(near, far, middle).forEach(wr::save);
+
+        assertThat(wr.findNearest(5, 5, 2)).containsExactly(near, middle);
+        assertThat(wr.findNearest(5, 5, 10)).containsExactly(near, middle, far);
+    }
+
+    @Test
+    @SneakyThrows
+    void whenWriteAheadLogIsGiven_stateIsRestoredFromIt(@TempDir Path dir) {
+        Path wal = dir.resolve("widgets.wal");
+        InMemoryWidgetRepository wr =
+                new InMemoryWidgetRepository(wal.toString(), Duration.ofMillis(1), "", Duration.ZERO);
+        wr.save(buildWidget(UUID.randomUUID()).setX(-5));
+        wr.clear();
+        List<Widget> widgets = Arrays.stream(new int[]{0, 1, 2, 5})
+                .mapToObj(z -> buildWidget(null).setZIndex(z))
+                .collect(Collectors.toList());
+        wr.saveAll(widgets);
+        wr.updateZIndexToMakeSpaceFor(0);
+        wr.updateZIndexToMakeSpaceFor(4);
+        wr.save(buildWidget(null));
+        wr.update(widgets.get(3).withX(40));
+        wr.deleteById(widgets.get(1).getId());
+        wr.deleteById(UUID.randomUUID());
+        List<Widget> expected = wr.findAllOrderByZIndexAsc(0, 10);
+        wr.close();
+
+        InMemoryWidgetRepository restored =
+                new InMemoryWidgetRepository(wal.toString(), Duration.ofMillis(1), "", Duration.ZERO);
+        assertThat(restored.findAllOrderByZIndexAsc(0, 10)).containsExactlyElementsOf(expected)
+                .extracting(Widget::getLastModifiedDate)
+                .containsExactlyElementsOf(expected.stream().map(Widget::getLastModifiedDate)
+                        .collect(Collectors.toList()));
+        assertThat(restored.findAllInArea(new MBRectangle(40, 0, 50, 10))).containsExactly(expected.get(3));
+
+        restored.save(buildWidget(null).setZIndex(10));
+        restored.close();
+        InMemoryWidgetRepository reopened =
+                new InMemoryWidgetRepository(wal.toString(), Duration.ZERO, "", Duration.ZERO);
+        assertThat(reopened.findAllOrderByZIndexAsc(0, 10)).hasSize(expected.size() + 1);
+    }
+
+    @Test
+    @SneakyThrows
+    void whenSnapshotIsGiven_stateIsLoadedFromIt_andOnlyLaterChangesAreReplayed(@TempDir Path dir) {
+        String wal = dir.resolve("widgets.wal").toString();
+        String snapshot = dir.resolve("widgets.snapshot").toString();
+        InMemoryWidgetRepository wr = new InMemoryWidgetRepository(wal, Duration.ZERO, snapshot, Duration.ofHours(1));
+        wr.saveAll(Arrays.stream(new int[]{0, 1, 2, 7})
+                .mapToObj(z -> buildWidget(null).setZIndex(z).setX(10 * z))
+                .collect(Collectors.toList()));
+        wr.updateZIndexToMakeSpaceFor(0);
+        wr.writeSnapshot();
+        long logged = Files.size(Path.of(wal));
+        wr.save(buildWidget(null));
+        assertThat(Files.size(Path.of(wal))).isGreaterThan(logged);
+        List<Widget> expected = wr.findAllOrderByZIndexAsc(0, 10);
+
+        // as if the process died, the snapshot is behind the log
+        InMemoryWidgetRepository restored =
+                new InMemoryWidgetRepository(wal, Duration.ZERO, snapshot, Duration.ofHours(1));
+        assertThat(restored.findAllOrderByZIndexAsc(0, 10)).containsExactlyElementsOf(expected);
+        assertThat(restored.findAllInArea(new MBRectangle(65, 0, 85, 10))).containsExactly(expected.get(4));
+        assertThat(restored.getById(expected.get(2).getId())).contains(expected.get(2));
+        restored.updateZIndexToMakeSpaceFor(0);
+        restored.close();
+
+        assertThat(Files.size(Path.of(wal))).isZero();
+        assertThat(new InMemoryWidgetRepository(wal, Duration.ZERO, snapshot, Duration.ofHours(1))
+                .findAllOrderByZIndexAsc(0, 10)).extracting(Widget::getZIndex).containsExactly(1, 2, 3, 4, 7);
+    }
+
+    @Test
+    @SneakyThrows
+    void whenWriteAheadLogIsClosedOrFailed_writesAreRefusedBeforeAnythingChanges(@TempDir Path dir) {
+        InMemoryWidgetRepository closed = new InMemoryWidgetRepository(
+                dir.resolve("closed.wal").toString(), Duration.ZERO, "", Duration.ZERO);
+        Widget saved = closed.save(buildWidget(null));
+        closed.close();
+
+        assertThatThrownBy(() -> closed.save(buildWidget(null).setZIndex(1))).isInstanceOf(DataStoreException.class);
+        assertThatThrownBy(() -> closed.update(saved.withX(5))).isInstanceOf(DataStoreException.class);
+        assertThatThrownBy(() -> closed.saveAll(List.of(buildWidget(null).setZIndex(2))))
+                .isInstanceOf(DataStoreException.class);
+        assertThatThrownBy(() -> closed.updateZIndexToMakeSpaceFor(0)).isInstanceOf(DataStoreException.class);
+        assertThatThrownBy(() -> closed.deleteById(saved.getId())).isInstanceOf(DataStoreException.class);
+        assertThatThrownBy(closed::clear).isInstanceOf(DataStoreException.class);
+        assertThat(closed.findAllOrderByZIndexAsc(0, 10)).containsExactly(saved);
+
+        InMemoryWidgetRepository failed = new InMemoryWidgetRepository(
+                dir.resolve("failed.wal").toString(), Duration.ZERO, "", Duration.ZERO);
+        failed.save(buildWidget(null));
+        // the file is closed under the flusher, so the next force fails
+        Field walField = InMemoryWidgetRepository.class.getDeclaredField("wal");
+        walField.setAccessible(true);
+        Field channelField = WriteAheadLog.class.getDeclaredField("channel");
+        channelField.setAccessible(true);
+        ((FileChannel) channelField.get(walField.get(failed))).close();
+
+        assertThatThrownBy(() -> failed.save(buildWidget(null).setZIndex(1)))
+                .isInstanceOf(DataStoreException.class)
+                .hasMessage("Write-ahead log failed");
+        Widget refused = buildWidget(UUID.randomUUID()).setZIndex(2);
+        assertThatThrownBy(() -> failed.save(refused)).isInstanceOf(DataStoreException.class);
+        assertThat(failed.getById(refused.getId())).isEmpty();
+        assertThat(failed.findAllOrderByZIndexAsc(0, 10)).hasSize(2);
+    }
+
+    @Test
+    @SneakyThrows
+    void whenSnapshotIsBroken_repositoryDoesNotStart(@TempDir Path dir) {
+        Path snapshot = dir.resolve("widgets.snapshot");
+        Files.write(snapshot, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20});
+
+        assertThatThrownBy(() -> new InMemoryWidgetRepository("", Duration.ZERO, snapshot.toString(), Duration.ZERO))
+                .isInstanceOf(DataStoreException.class);
+    }
+}
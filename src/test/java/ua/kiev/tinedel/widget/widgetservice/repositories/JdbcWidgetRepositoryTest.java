@@ -0,0 +1,131 @@
+package ua.kiev.tinedel.widget.widgetservice.repositories;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
+import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static ua.kiev.tinedel.widget.widgetservice.utils.DataGenerator.buildWidget;
+
+class JdbcWidgetRepositoryTest {
+
+    private static JdbcWidgetRepository open(Path dir, Duration flushInterval) {
+        return new JdbcWidgetRepository("jdbc:h2:" + dir.resolve("widgets"), "sa", "", flushInterval);
+    }
+
+    @SneakyThrows
+    private static int countRows(Path dir) {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:" + dir.resolve("widgets"), "sa", "");
+             Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery("SELECT COUNT(*) FROM widgets")) {
+            rows.next();
+            return rows.getInt(1);
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    void whenRepositoryIsReopened_indexesAreLoadedFromDatabase(@TempDir Path dir) {
+        JdbcWidgetRepository wr = open(dir, Duration.ofMillis(10));
+        List<Widget> widgets = IntStream.range(0, 10)
+                .mapToObj(i -> buildWidget(null).setX(i * 10).setZIndex(i))
+                .collect(Collectors.toList());
+        wr.saveAll(widgets);
+        wr.save(buildWidget(null).setZIndex(20).setLastModifiedDate(null));
+        wr.updateZIndexToMakeSpaceFor(3);
+        wr.save(buildWidget(null).setZIndex(3));
+        wr.update(wr.findByZIndex(0).orElseThrow().withX(500));
+        wr.deleteById(widgets.get(1).getId());
+        wr.deleteById(UUID.randomUUID());
+        List<Widget> expected = wr.findAllOrderByZIndexAsc(0, 100);
+        wr.close();
+
+        JdbcWidgetRepository reopened = open(dir, Duration.ofMillis(10));
+        assertThat(reopened.findAllOrderByZIndexAsc(0, 100)).containsExactlyElementsOf(expected)
+                .extracting(Widget::getLastModifiedDate)
+                .containsExactlyElementsOf(expected.stream().map(Widget::getLastModifiedDate)
+                        .collect(Collectors.toList()));
+        assertThat(reopened.findAllInArea(new MBRectangle(490, 0, 520, 20))).containsExactly(expected.get(0));
+        assertThat(reopened.findAllInAreaOrderByZIndex(new MBRectangle(0, 0, 100, 10), ZOrder.TOP_MOST_FIRST, 1)
+                .get(0).getZIndex()).isEqualTo(20);
+
+        reopened.clear();
+        reopened.close();
+        assertThat(countRows(dir)).isZero();
+    }
+
+    @Test
+    @SneakyThrows
+    void changesAreWrittenBehindWithoutWaitingForClose(@TempDir Path dir) {
+        JdbcWidgetRepository wr = open(dir, Duration.ofMillis(1));
+        wr.save(buildWidget(null));
+
+        long until = System.currentTimeMillis() + 5000;
+        while (countRows(dir) == 0 && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertThat(countRows(dir)).isEqualTo(1);
+        assertThat(wr.getById(wr.findByZIndex(0).orElseThrow().getId())).isPresent();
+        assertThat(wr.findAllAfterZIndexOrderByZIndexAsc(-1, 10)).hasSize(1);
+        assertThat(wr.findAllInAreaOrderByZIndexAfter(new MBRectangle(0, 0, 10, 10), ZOrder.TOP_MOST_FIRST, 1, 1))
+                .hasSize(1);
+        assertThat(wr.findAllAtPointOrderByZIndexDesc(5, 5, 1)).hasSize(1);
+        assertThat(wr.findNearest(5, 5, 1)).hasSize(1);
+        assertThat(wr.countInArea(new MBRectangle(0, 0, 10, 10))).isEqualTo(1);
+
+        wr.close();
+        assertThatThrownBy(() -> wr.save(buildWidget(null).setZIndex(1))).isInstanceOf(DataStoreException.class);
+    }
+
+    @Test
+    @SneakyThrows
+    void whenWriteFails_changesAreRetriedOnNewConnectionWithSchema() {
+        String url = "jdbc:h2:mem:" + UUID.randomUUID();
+        JdbcWidgetRepository wr = new JdbcWidgetRepository(url, "sa", "", Duration.ofMillis(1));
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE widgets");
+        }
+        Widget saved = wr.save(buildWidget(null));
+
+        // failed write closes the only connection, which drops the in-memory database
+        String select = "SELECT COUNT(*) FROM widgets WHERE id = '" + saved.getId() + "'";
+        long until = System.currentTimeMillis() + 5000;
+        int written = 0;
+        while (written == 0 && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+            try (Connection connection = DriverManager.getConnection(url + ";IFEXISTS=TRUE", "sa", "");
+                 Statement statement = connection.createStatement();
+                 ResultSet rows = statement.executeQuery(select)) {
+                rows.next();
+                written = rows.getInt(1);
+            } catch (SQLException e) {
+                // not created again yet
+            }
+        }
+        assertThat(written).isEqualTo(1);
+        wr.close();
+    }
+
+    @Test
+    void whenDatabaseCanNotBeOpened_repositoryDoesNotStart(@TempDir Path dir) {
+        assertThatThrownBy(() -> new JdbcWidgetRepository("jdbc:unknown:" + dir, "sa", "", Duration.ofMillis(1)))
+                .isInstanceOf(DataStoreException.class);
+    }
+}
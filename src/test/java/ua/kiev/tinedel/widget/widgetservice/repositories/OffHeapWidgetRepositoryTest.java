@@ -0,0 +1,144 @@
+package ua.kiev.tinedel.widget.widgetservice.repositories;
+
+import org.junit.jupiter.api.Test;
+import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
+import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static ua.kiev.tinedel.widget.widgetservice.utils.DataGenerator.buildWidget;
+
+class OffHeapWidgetRepositoryTest {
+
+    static final Random RANDOM = new Random();
+
+    // 10 by 10 grid of widgets 10 units apart
+    private List<Widget> saveGrid(WidgetRepository wr) {
+        List<Widget> widgets = IntStream.range(0, 100)
+                .mapToObj(i -> buildWidget(null).setX(i % 10 * 10).setY(i / 10 * 10).setZIndex(i))
+                .collect(Collectors.toList());
+        widgets.forEach(wr::save);
+        return widgets;
+    }
+
+    @Test
+    void whenSearching_storedWidgetsAreFound() {
+        WidgetRepository wr = new OffHeapWidgetRepository();
+        List<Widget> widgets = saveGrid(wr);
+
+        MBRectangle box = new MBRectangle(10, 10, 40, 30);
+        List<Widget> inBox = widgets.stream()
+                .filter(w -> box.contains(MBRectangle.from(w)))
+                .collect(Collectors.toList());
+
+        assertThat(wr.getById(widgets.get(5).getId())).contains(widgets.get(5));
+        assertThat(wr.findAllInArea(box)).containsExactlyInAnyOrderElementsOf(inBox);
+        assertThat(wr.countInArea(box)).isEqualTo(inBox.size());
+        assertThat(wr.findAllInAreaOrderByZIndex(box, ZOrder.TOP_MOST_FIRST, 2))
+                .containsExactly(inBox.get(inBox.size() - 1), inBox.get(inBox.size() - 2));
+        assertThat(wr.findAllInAreaOrderByZIndex(new MBRectangle(-1000, -1000, 1000, 1000),
+                ZOrder.BOTTOM_MOST_FIRST, 3))
+                .containsExactly(widgets.get(0), widgets.get(1), widgets.get(2));
+        assertThat(wr.findAllAtPointOrderByZIndexDesc(20, 20, 10))
+                .containsExactly(widgets.get(22), widgets.get(21), widgets.get(12), widgets.get(11));
+        assertThat(wr.findNearest(55, 75, 1)).containsExactly(widgets.get(75));
+        assertThat(wr.findAllOrderByZIndexAsc(10, 2)).containsExactly(widgets.get(10), widgets.get(11));
+        assertThat(wr.findAllOrderByZIndexAsc(99, 5)).containsExactly(widgets.get(99));
+        assertThat(wr.findAllOrderByZIndexAsc(0, 0)).isEmpty();
+        assertThat(wr.findAllAfterZIndexOrderByZIndexAsc(10, 2)).containsExactly(widgets.get(11), widgets.get(12));
+        assertThat(wr.findAllAfterZIndexOrderByZIndexAsc(Integer.MAX_VALUE, 2)).isEmpty();
+        assertThat(wr.findAllInAreaOrderByZIndexAfter(box, ZOrder.TOP_MOST_FIRST,
+                inBox.get(inBox.size() - 2).getZIndex(), 1))
+                .containsExactly(inBox.get(inBox.size() - 3));
+    }
+
+    @Test
+    void whenSavingUpdatingAndDeleting_indexesStayConsistent() {
+        WidgetRepository wr = new OffHeapWidgetRepository();
+        List<Widget> widgets = saveGrid(wr);
+
+        assertThatThrownBy(() -> wr.save(buildWidget(null).setZIndex(5))).isInstanceOf(DataStoreException.class);
+
+        Widget moved = widgets.get(0).withX(500).withY(500);
+        assertThat(wr.update(moved)).contains(moved);
+        assertThat(wr.update(moved.withZIndex(1000))).isEmpty();
+        assertThat(wr.update(buildWidget(UUID.randomUUID()))).isEmpty();
+        assertThat(wr.findAllInArea(new MBRectangle(490, 490, 520, 520))).containsExactly(moved);
+
+        Widget resaved = wr.save(widgets.get(1).withX(300).withZIndex(-1));
+        assertThat(wr.findByZIndex(1)).isEmpty();
+        assertThat(wr.findByZIndex(-1)).contains(resaved);
+
+        wr.deleteById(widgets.get(2).getId());
+        wr.deleteById(UUID.randomUUID());
+        assertThat(wr.getById(widgets.get(2).getId())).isEmpty();
+        assertThat(wr.countInArea(new MBRectangle(0, 0, 600, 600))).isEqualTo(99);
+
+        assertThat(wr.updateZIndexToMakeSpaceFor(3)).isEqualTo(97);
+        assertThat(wr.findAllOrderByZIndexAsc(0, 100).stream().map(Widget::getZIndex).limit(4))
+                .containsExactly(-1, 0, 4, 5);
+        assertThat(wr.findAllAtPointOrderByZIndexDesc(35, 5, 1).get(0).getZIndex()).isEqualTo(4);
+
+        wr.saveAll(List.of(moved.withZIndex(1), widgets.get(3).withZIndex(0), buildWidget(null).setZIndex(200)));
+        assertThat(wr.findByZIndex(1).map(Widget::getId)).contains(moved.getId());
+        assertThat(wr.findAllOrderByZIndexAsc(0, 1000)).hasSize(100);
+        assertThatThrownBy(() -> wr.saveAll(List.of(buildWidget(null).setZIndex(5))))
+                .isInstanceOf(DataStoreException.class);
+
+        wr.clear();
+        assertThat(wr.findAllInArea(new MBRectangle(0, 0, 600, 600))).isEmpty();
+        assertThat(wr.findAllOrderByZIndexAsc(0, 100)).isEmpty();
+        assertThat(wr.getById(moved.getId())).isEmpty();
+    }
+
+    @Test
+    void whenChangedAtRandom_repositoryAgreesWithInMemoryOne() {
+        WidgetRepository offHeap = new OffHeapWidgetRepository();
+        WidgetRepository inMemory = new InMemoryWidgetRepository();
+        List<UUID> ids = new ArrayList<>();
+
+        for (int step = 0; step < 3000; step++) {
+            int action = RANDOM.nextInt(10);
+            if (action < 5 || ids.isEmpty()) {
+                Widget widget = buildWidget(UUID.randomUUID()).setZIndex(RANDOM.nextInt(500))
+                        .setX(RANDOM.nextInt(1000)).setY(RANDOM.nextInt(1000));
+                if (inMemory.findByZIndex(widget.getZIndex()).isPresent()) {
+                    offHeap.updateZIndexToMakeSpaceFor(widget.getZIndex());
+                    inMemory.updateZIndexToMakeSpaceFor(widget.getZIndex());
+                }
+                offHeap.save(widget.withX(widget.getX()));
+                inMemory.save(widget);
+                ids.add(widget.getId());
+            } else if (action < 8) {
+                UUID id = ids.get(RANDOM.nextInt(ids.size()));
+                Widget moved = inMemory.getById(id).orElseThrow()
+                        .withX(RANDOM.nextInt(1000)).withY(RANDOM.nextInt(1000));
+                assertThat(offHeap.update(moved)).isEqualTo(inMemory.update(moved));
+            } else {
+                UUID id = ids.remove(RANDOM.nextInt(ids.size()));
+                offHeap.deleteById(id);
+                inMemory.deleteById(id);
+            }
+        }
+
+        assertThat(offHeap.findAllOrderByZIndexAsc(0, 5000))
+                .containsExactlyElementsOf(inMemory.findAllOrderByZIndexAsc(0, 5000));
+        for (int k = 0; k < 20; k++) {
+            int x = RANDOM.nextInt(1000), y = RANDOM.nextInt(1000);
+            MBRectangle box = new MBRectangle(x, y, x + RANDOM.nextInt(500), y + RANDOM.nextInt(500));
+            assertThat(offHeap.findAllInArea(box)).containsExactlyInAnyOrderElementsOf(inMemory.findAllInArea(box));
+            assertThat(offHeap.findAllInAreaOrderByZIndex(box, ZOrder.TOP_MOST_FIRST, 10))
+                    .containsExactlyElementsOf(inMemory.findAllInAreaOrderByZIndex(box, ZOrder.TOP_MOST_FIRST, 10));
+            assertThat(offHeap.findAllAtPointOrderByZIndexDesc(x, y, 5))
+                    .containsExactlyElementsOf(inMemory.findAllAtPointOrderByZIndexDesc(x, y, 5));
+        }
+    }
+}
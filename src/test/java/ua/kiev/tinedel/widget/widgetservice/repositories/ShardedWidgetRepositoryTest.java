@@ -0,0 +1,276 @@
+package ua.kiev.tinedel.widget.widgetservice.repositories;
+
+import org.junit.jupiter.api.Test;
+import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
+import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static ua.kiev.tinedel.widget.widgetservice.utils.DataGenerator.buildWidget;
+
+class ShardedWidgetRepositoryTest {
+
+    static final Random RANDOM = new Random();
+
+    // 10 by 10 grid of widgets 10 units apart, spread over tiles of 15 units
+    private List<Widget> saveGrid(WidgetRepository wr) {
+        List<Widget> widgets = IntStream.range(0, 100)
+                .mapToObj(i -> buildWidget(null).setX(i % 10 * 10).setY(i / 10 * 10).setZIndex(i))
+                .collect(Collectors.toList());
+        widgets.forEach(wr::save);
+        return widgets;
+    }
+
+    @Test
+    void whenSearchingAcrossShards_resultsAreMerged() {
+        WidgetRepository wr = new ShardedWidgetRepository(5, 15);
+        List<Widget> widgets = saveGrid(wr);
+
+        MBRectangle box = new MBRectangle(10, 10, 40, 30);
+        List<Widget> inBox = widgets.stream()
+                .filter(w -> box.contains(MBRectangle.from(w)))
+                .collect(Collectors.toList());
+
+        assertThat(wr.findAllInArea(box)).containsExactlyInAnyOrderElementsOf(inBox);
+        assertThat(wr.countInArea(box)).isEqualTo(inBox.size());
+        assertThat(wr.findAllInAreaOrderByZIndex(box, ZOrder.TOP_MOST_FIRST, 2))
+                .containsExactly(inBox.get(inBox.size() - 1), inBox.get(inBox.size() - 2));
+        assertThat(wr.findAllInAreaOrderByZIndex(new MBRectangle(-1000, -1000, 1000, 1000), ZOrder.BOTTOM_MOST_FIRST, 3))
+                .containsExactly(widgets.get(0), widgets.get(1), widgets.get(2));
+        assertThat(wr.findAllAtPointOrderByZIndexDesc(15, 15, 10)).containsExactly(widgets.get(11));
+        assertThat(wr.findAllAtPointOrderByZIndexDesc(20, 20, 10))
+                .containsExactly(widgets.get(22), widgets.get(21), widgets.get(12), widgets.get(11));
+        assertThat(wr.findNearest(55, 75, 1)).containsExactly(widgets.get(75));
+        assertThat(wr.findAllOrderByZIndexAsc(10, 2)).containsExactly(widgets.get(10), widgets.get(11));
+        assertThat(wr.findAllAfterZIndexOrderByZIndexAsc(10, 2)).containsExactly(widgets.get(11), widgets.get(12));
+        assertThat(wr.findAllInAreaOrderByZIndexAfter(box, ZOrder.TOP_MOST_FIRST,
+                inBox.get(inBox.size() - 2).getZIndex(), 1))
+                .containsExactly(inBox.get(inBox.size() - 3));
+    }
+
+    @Test
+    void whenWidgetIsUpdated_itMovesBetweenShards() {
+        WidgetRepository wr = new ShardedWidgetRepository(5, 15);
+        List<Widget> widgets = saveGrid(wr);
+
+        Widget moved = widgets.get(0).withX(500).withY(500);
+        assertThat(wr.update(moved)).contains(moved);
+        assertThat(wr.update(moved.withZIndex(1000))).isEmpty();
+        assertThat(wr.update(buildWidget(UUID.randomUUID()))).isEmpty();
+
+        assertThat(wr.getById(moved.getId())).contains(moved);
+        assertThat(wr.findByZIndex(0)).contains(moved);
+        assertThat(wr.findAllInArea(new MBRectangle(0, 0, 10, 10))).isEmpty();
+        assertThat(wr.findAllInArea(new MBRectangle(490, 490, 520, 520))).containsExactly(moved);
+    }
+
+    @Test
+    void whenSavingAndDeleting_indexesStayConsistent() {
+        WidgetRepository wr = new ShardedWidgetRepository(5, 15);
+        List<Widget> widgets = saveGrid(wr);
+
+        assertThatThrownBy(() -> wr.save(buildWidget(null).setZIndex(5))).isInstanceOf(DataStoreException.class);
+
+        Widget resaved = wr.save(widgets.get(1).withX(300).withZIndex(-1));
+        assertThat(wr.findByZIndex(1)).isEmpty();
+        assertThat(wr.findByZIndex(-1)).contains(resaved);
+        assertThat(wr.findAllInArea(new MBRectangle(0, 0, 400, 100))).hasSize(100);
+
+        wr.deleteById(widgets.get(2).getId());
+        wr.deleteById(UUID.randomUUID());
+        assertThat(wr.getById(widgets.get(2).getId())).isEmpty();
+        assertThat(wr.findByZIndex(2)).isEmpty();
+        assertThat(wr.countInArea(new MBRectangle(0, 0, 400, 100))).isEqualTo(99);
+
+        assertThat(wr.updateZIndexToMakeSpaceFor(3)).isEqualTo(97);
+        assertThat(wr.findAllOrderByZIndexAsc(0, 100).stream().map(Widget::getZIndex).limit(4))
+                .containsExactly(-1, 0, 4, 5);
+        assertThat(wr.findAllAtPointOrderByZIndexDesc(35, 5, 1).get(0).getZIndex()).isEqualTo(4);
+
+        wr.clear();
+        assertThat(wr.findAllInArea(new MBRectangle(0, 0, 400, 100))).isEmpty();
+        assertThat(wr.findAllOrderByZIndexAsc(0, 100)).isEmpty();
+    }
+
+    @Test
+    void whenSavingIfZIndexFree_takenZIndexIsLeftAlone() {
+        WidgetRepository wr = new ShardedWidgetRepository(5, 15);
+        List<Widget> widgets = saveGrid(wr);
+
+        assertThat(wr.saveIfZIndexFree(buildWidget(null).setZIndex(5))).isEmpty();
+        assertThat(wr.findByZIndex(5)).contains(widgets.get(5));
+        assertThat(wr.findAllOrderByZIndexAsc(0, 1000)).hasSize(100);
+
+        Widget created = wr.saveIfZIndexFree(buildWidget(null).setX(500).setZIndex(100)).orElseThrow();
+        Widget moved = wr.saveIfZIndexFree(widgets.get(1).withX(300).withZIndex(-1)).orElseThrow();
+        Widget resized = wr.saveIfZIndexFree(widgets.get(2).withWidth(5)).orElseThrow();
+        assertThat(wr.findByZIndex(100)).contains(created);
+        assertThat(wr.findByZIndex(1)).isEmpty();
+        assertThat(wr.findByZIndex(-1)).contains(moved);
+        assertThat(wr.getById(resized.getId())).contains(resized);
+        assertThat(wr.findAllInArea(new MBRectangle(0, 0, 600, 100))).hasSize(101);
+    }
+
+    @Test
+    void whenSavingAll_widgetsAreReplaced() {
+        WidgetRepository wr = new ShardedWidgetRepository(5, 15);
+        List<Widget> widgets = saveGrid(wr);
+
+        wr.saveAll(List.of(widgets.get(0).withZIndex(1).withX(200), widgets.get(1).withZIndex(0), buildWidget(null).setZIndex(100)));
+
+        assertThat(wr.findAllOrderByZIndexAsc(0, 1000)).hasSize(101);
+        assertThat(wr.findByZIndex(1).map(Widget::getId)).contains(widgets.get(0).getId());
+        assertThat(wr.findAllInArea(new MBRectangle(200, 0, 210, 10))).hasSize(1);
+        assertThatThrownBy(() -> wr.saveAll(List.of(buildWidget(null).setZIndex(5))))
+                .isInstanceOf(DataStoreException.class);
+        assertThatThrownBy(() -> new ShardedWidgetRepository(0, 10)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void whenWidgetsAreMovedConcurrently_nothingIsLost() throws Exception {
+        WidgetRepository wr = new ShardedWidgetRepository(5, 15);
+        List<Widget> widgets = saveGrid(wr);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        Widget widget = wr.getById(widgets.get(RANDOM.nextInt(widgets.size())).getId()).orElseThrow();
+                        wr.update(widget.withX(RANDOM.nextInt(200)).withY(RANDOM.nextInt(200)));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(wr.findAllInArea(new MBRectangle(0, 0, 300, 300)))
+                .containsExactlyInAnyOrderElementsOf(wr.findAllOrderByZIndexAsc(0, 1000));
+        assertThat(wr.countInArea(new MBRectangle(0, 0, 300, 300))).isEqualTo(100);
+    }
+
+    @Test
+    void whenSameNewIdIsSavedConcurrently_itIsStoredOnce() throws Exception {
+        WidgetRepository wr = new ShardedWidgetRepository(5, 15);
+        MBRectangle everything = new MBRectangle(0, 0, 300, 300);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 500; i++) {
+                UUID id = UUID.randomUUID();
+                // different tiles, so the saves lock different shards
+                Widget first = buildWidget(id).setX(0).setZIndex(2 * i);
+                Widget second = buildWidget(id).setX(200).setZIndex(2 * i + 1);
+                CountDownLatch start = new CountDownLatch(1);
+                Future<?> firstSaved = executor.submit(() -> {
+                    start.await();
+                    return wr.save(first);
+                });
+                Future<?> secondSaved = executor.submit(() -> {
+                    start.await();
+                    return wr.save(second);
+                });
+                start.countDown();
+                firstSaved.get();
+                secondSaved.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(wr.countInArea(everything)).isEqualTo(500);
+        assertThat(wr.findAllOrderByZIndexAsc(0, 2000)).hasSize(500);
+    }
+
+    @Test
+    void storedWidgetsCanNotBeChangedByCallers() {
+        WidgetRepository wr = new ShardedWidgetRepository(5, 15);
+        Widget toSave = buildWidget(null).setZIndex(1);
+        Widget saved = wr.save(toSave);
+
+        toSave.setX(100);
+        saved.setX(100);
+        wr.getById(saved.getId()).orElseThrow().setX(100);
+        wr.findAllOrderByZIndexAsc(0, 10).get(0).setX(100);
+        wr.findAllInArea(new MBRectangle(0, 0, 10, 10)).get(0).setX(100);
+
+        assertThat(wr.findByZIndex(1).map(Widget::getX)).contains(0);
+        assertThat(wr.findAllInArea(new MBRectangle(0, 0, 10, 10))).hasSize(1);
+    }
+
+    @Test
+    void whenShardsAreChangedDuringReads_readsStayConsistent() throws Exception {
+        WidgetRepository wr = new ShardedWidgetRepository(5, 15);
+        List<Widget> widgets = saveGrid(wr);
+        MBRectangle everything = new MBRectangle(0, 0, 300, 300);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> writer = executor.submit(() -> {
+                for (int i = 0; i < 5000; i++) {
+                    Widget widget = wr.getById(widgets.get(RANDOM.nextInt(widgets.size())).getId()).orElseThrow();
+                    // widgets stay within their tiles, so within their shards
+                    wr.update(widget.withX(widget.getX() / 15 * 15 + RANDOM.nextInt(15))
+                            .withY(widget.getY() / 15 * 15 + RANDOM.nextInt(15)));
+                }
+            });
+            Future<?> reader = executor.submit(() -> {
+                while (!writer.isDone()) {
+                    assertThat(wr.countInArea(everything)).isEqualTo(100);
+                    assertThat(wr.findNearest(100, 100, 5)).hasSize(5);
+                    assertThat(wr.findAllInAreaOrderByZIndex(everything, ZOrder.TOP_MOST_FIRST, 3)).hasSize(3);
+                }
+            });
+            writer.get();
+            reader.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void whenWidgetsAreChangedUnderWriteLock_readersWaitForAllTheChanges() throws Exception {
+        WidgetRepository wr = new ShardedWidgetRepository(5, 15);
+        List<Widget> widgets = saveGrid(wr);
+        MBRectangle everything = new MBRectangle(0, 0, 300, 300);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> count;
+            try {
+                wr.acquireWriteLock();
+                // widget is missing in between, like in batches replacing widgets
+                wr.deleteById(widgets.get(0).getId());
+                assertThat(wr.countInArea(everything)).isEqualTo(99);
+                count = executor.submit(() -> wr.countInArea(everything));
+                assertThatThrownBy(() -> count.get(200, TimeUnit.MILLISECONDS))
+                        .isInstanceOf(TimeoutException.class);
+                wr.save(widgets.get(0).withX(200));
+            } finally {
+                wr.releaseWriteLock();
+            }
+            assertThat(count.get(10, TimeUnit.SECONDS)).isEqualTo(100);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
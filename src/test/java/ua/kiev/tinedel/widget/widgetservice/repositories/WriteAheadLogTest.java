@@ -0,0 +1,132 @@
+package ua.kiev.tinedel.widget.widgetservice.repositories;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static ua.kiev.tinedel.widget.widgetservice.utils.DataGenerator.buildWidget;
+
+class WriteAheadLogTest {
+
+    @Test
+    @SneakyThrows
+    void changesAreReplayedInOrder_andTornTailIsCutOff(@TempDir Path dir) {
+        Path file = dir.resolve("widgets.wal");
+        StoredWidget widget = StoredWidget.of(buildWidget(UUID.randomUUID()));
+        UUID deleted = UUID.randomUUID();
+
+        WriteAheadLog wal = WriteAheadLog.open(file, Duration.ZERO, 0, new Recorder());
+        wal.appendSave(widget);
+        wal.appendSaveAll(List.of(widget, widget));
+        wal.appendShift(7);
+        wal.appendDelete(deleted);
+        wal.appendClear();
+        wal.awaitDurable(wal.lastAppended());
+        assertThat(wal.lastAppended()).isEqualTo(5);
+        wal.close();
+        assertThatThrownBy(wal::appendClear).isInstanceOf(DataStoreException.class);
+
+        long size = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            // the last record was written only partly
+            channel.truncate(size - 3);
+        }
+
+        Recorder recorder = new Recorder();
+        wal = WriteAheadLog.open(file, Duration.ZERO, 0, recorder);
+        assertThat(recorder.changes).containsExactly(
+                "save " + widget.id(), "saveAll 2", "shift 7", "delete " + deleted);
+        assertThat(wal.lastAppended()).isEqualTo(4);
+
+        wal.appendShift(1);
+        wal.close();
+        recorder = new Recorder();
+        WriteAheadLog.open(file, Duration.ofMillis(5), 0, recorder).close();
+        assertThat(recorder.changes).containsExactly(
+                "save " + widget.id(), "saveAll 2", "shift 7", "delete " + deleted, "shift 1");
+    }
+
+    @Test
+    @SneakyThrows
+    void corruptedRecordEndsTheLog(@TempDir Path dir) {
+        Path file = dir.resolve("widgets.wal");
+        WriteAheadLog wal = WriteAheadLog.open(file, Duration.ZERO, 0, new Recorder());
+        wal.appendShift(1);
+        wal.appendShift(2);
+        wal.close();
+
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 6]++;
+        Files.write(file, bytes);
+
+        Recorder recorder = new Recorder();
+        WriteAheadLog.open(file, Duration.ZERO, 0, recorder).close();
+        assertThat(recorder.changes).containsExactly("shift 1");
+    }
+
+    @Test
+    @SneakyThrows
+    void changesBeforeSnapshotAreSkipped_andCanBeDropped(@TempDir Path dir) {
+        Path file = dir.resolve("widgets.wal");
+        WriteAheadLog wal = WriteAheadLog.open(file, Duration.ZERO, 10, new Recorder());
+        wal.appendShift(1);
+        long snapshotBytes = wal.appendedBytes();
+        wal.appendShift(2);
+        wal.appendShift(3);
+        wal.close();
+
+        Recorder recorder = new Recorder();
+        wal = WriteAheadLog.open(file, Duration.ZERO, 11, recorder);
+        assertThat(recorder.changes).containsExactly("shift 2", "shift 3");
+        wal.dropHead(snapshotBytes);
+        assertThat(Files.size(file)).isEqualTo(wal.appendedBytes());
+        wal.appendShift(4);
+        wal.close();
+
+        recorder = new Recorder();
+        wal = WriteAheadLog.open(file, Duration.ZERO, 11, recorder);
+        assertThat(recorder.changes).containsExactly("shift 2", "shift 3", "shift 4");
+        assertThat(wal.lastAppended()).isEqualTo(14);
+        wal.close();
+    }
+
+    private static class Recorder implements WriteAheadLog.Target {
+        List<String> changes = new ArrayList<>();
+
+        @Override
+        public void save(StoredWidget widget) {
+            changes.add("save " + widget.id());
+        }
+
+        @Override
+        public void saveAll(List<StoredWidget> widgets) {
+            changes.add("saveAll " + widgets.size());
+        }
+
+        @Override
+        public void shift(int zIndex) {
+            changes.add("shift " + zIndex);
+        }
+
+        @Override
+        public void delete(UUID id) {
+            changes.add("delete " + id);
+        }
+
+        @Override
+        public void clear() {
+            changes.add("clear");
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ua.kiev.tinedel.widget.widgetservice.rtree;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class OffHeapRTreeTest {
+
+    final static int EXTENT = 1000;
+    final static int MAX_WH = 200;
+    final static int MAX_ITEMS = 3000;
+    static final Random RANDOM = new Random();
+
+    // boxes and orders of items, indexed by item
+    int[][] boxes = new int[MAX_ITEMS][];
+    long[] orders = new long[MAX_ITEMS];
+
+    private void generate(OffHeapRTree tree, int count) {
+        for (int item = 0; item < count; item++) {
+            place(tree, item, true);
+        }
+    }
+
+    private void place(OffHeapRTree tree, int item, boolean added) {
+        int x = RANDOM.nextInt(2 * EXTENT) - EXTENT, y = RANDOM.nextInt(2 * EXTENT) - EXTENT;
+        boxes[item] = new int[]{x, y, x + RANDOM.nextInt(MAX_WH) + 1, y + RANDOM.nextInt(MAX_WH) + 1};
+        orders[item] = RANDOM.nextInt();
+        if (added) {
+            tree.add(item, boxes[item][0], boxes[item][1], boxes[item][2], boxes[item][3], orders[item]);
+        } else {
+            tree.update(item, boxes[item][0], boxes[item][1], boxes[item][2], boxes[item][3], orders[item]);
+        }
+    }
+
+    private List<Integer> contained(MBRectangle query, List<Integer> items) {
+        return items.stream()
+                .filter(i -> query.contains(new MBRectangle(boxes[i][0], boxes[i][1], boxes[i][2], boxes[i][3])))
+                .collect(Collectors.toList());
+    }
+
+    private static List<Integer> collect(Consumer<IntConsumer> search) {
+        List<Integer> found = new ArrayList<>();
+        search.accept(found::add);
+        return found;
+    }
+
+    private void checkSearches(OffHeapRTree tree, List<Integer> items) {
+        for (int k = 0; k < 20; k++) {
+            int x = RANDOM.nextInt(2 * EXTENT) - EXTENT, y = RANDOM.nextInt(2 * EXTENT) - EXTENT;
+            MBRectangle query = new MBRectangle(x, y, x + RANDOM.nextInt(EXTENT), y + RANDOM.nextInt(EXTENT));
+            List<Integer> expected = contained(query, items);
+
+            assertThat(collect(consumer -> tree.search(query, consumer))).containsExactlyInAnyOrderElementsOf(expected);
+            assertThat(tree.count(query)).isEqualTo(expected.size());
+            assertThat(collect(consumer -> tree.searchOrdered(query, true, Long.MAX_VALUE, 5, consumer)))
+                    .containsExactlyElementsOf(expected.stream()
+                            .sorted(Comparator.comparingLong((Integer i) -> orders[i]).reversed())
+                            .limit(5)
+                            .collect(Collectors.toList()));
+            assertThat(collect(consumer -> tree.searchOrdered(query, false, 0, 5, consumer)))
+                    .containsExactlyElementsOf(expected.stream()
+                            .filter(i -> orders[i] >= 0)
+                            .sorted(Comparator.comparingLong(i -> orders[i]))
+                            .limit(5)
+                            .collect(Collectors.toList()));
+        }
+        assertThat(tree.size()).isEqualTo(items.size());
+    }
+
+    @Test
+    void searchesFindTheSameAsFullScan() {
+        OffHeapRTree tree = new OffHeapRTree();
+        generate(tree, MAX_ITEMS);
+
+        checkSearches(tree, IntStream.range(0, MAX_ITEMS).boxed().collect(Collectors.toList()));
+    }
+
+    @Test
+    void whenItemsAreDeletedAndUpdated_searchesStayConsistent() {
+        OffHeapRTree tree = new OffHeapRTree(2, 6);
+        generate(tree, 2000);
+        List<Integer> items = IntStream.range(0, 2000).boxed().collect(Collectors.toList());
+
+        for (int item = 0; item < 1500; item++) {
+            tree.delete(item);
+        }
+        for (int item = 1500; item < 1800; item++) {
+            place(tree, item, false);
+        }
+        for (int item = 1800; item < 2000; item++) {
+            orders[item] = -orders[item];
+            tree.updateOrder(item, orders[item]);
+        }
+        checkSearches(tree, items.subList(1500, 2000));
+
+        // freed nodes are reused
+        for (int item = 0; item < 1500; item++) {
+            place(tree, item, true);
+        }
+        checkSearches(tree, items);
+
+        tree.clear();
+        assertThat(tree.count(new MBRectangle(-2 * EXTENT, -2 * EXTENT, 2 * EXTENT, 2 * EXTENT))).isZero();
+        tree.add(0, 0, 0, 1, 1, 0);
+        assertThat(tree.size()).isEqualTo(1);
+    }
+
+    @Test
+    void pointAndNearestSearchesRankItems() {
+        OffHeapRTree tree = new OffHeapRTree(2, 4);
+        for (int item = 0; item < 100; item++) {
+            tree.add(item, item % 10 * 10, item / 10 * 10, item % 10 * 10 + 10, item / 10 * 10 + 10, item);
+        }
+
+        assertThat(collect(consumer -> tree.searchAtPointOrdered(20, 20, true, 10, consumer)))
+                .containsExactly(22, 21, 12, 11);
+        assertThat(collect(consumer -> tree.searchAtPointOrdered(20, 20, false, 2, consumer)))
+                .containsExactly(11, 12);
+        assertThat(collect(consumer -> tree.searchNearest(55, 300, 1, consumer))).containsExactly(95);
+        assertThat(collect(consumer -> tree.searchNearest(5, 5, 100, consumer))).hasSize(100).startsWith(0);
+    }
+
+    @Test
+    void fillLimitsAreValidated() {
+        assertThatThrownBy(() -> new OffHeapRTree(0, 4)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new OffHeapRTree(3, 5)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
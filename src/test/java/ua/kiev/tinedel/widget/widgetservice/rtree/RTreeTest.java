@@ -3,12 +3,17 @@ package ua.kiev.tinedel.widget.widgetservice.rtree;
 import org.junit.jupiter.api.Test;
 import ua.kiev.tinedel.widget.widgetservice.models.Widget;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.UUID;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 /**
  * Bad bad test, overrelies on randomness, but not enough time to create proper tests
@@ -27,6 +32,7 @@ class RTreeTest {
 
     private Widget generateWidget() {
         return Widget.builder()
+                .zIndex(RANDOM.nextInt())
                 .x(RANDOM.nextInt(2 * EXTENT) - EXTENT)
                 .y(RANDOM.nextInt(2 * EXTENT) - EXTENT)
                 .width(RANDOM.nextInt(MAX_WH) + 1)
@@ -36,7 +42,7 @@ class RTreeTest {
 
     @Test
     public void indexWorksRoughly() {
-        RTree tree = new RTree();
+        RTree<Widget> tree = new RTree<>(Shape.WIDGET);
         List<Widget> widgets = generateWidgets(1000);
 
         widgets.forEach(tree::add);
@@ -52,9 +58,213 @@ class RTreeTest {
         }
     }
 
+    @Test
+    public void treeStaysBalancedAndShallowWhenWidgetsAreClustered() {
+        RTree<Widget> tree = new RTree<>(2, 6, Shape.WIDGET);
+        List<Widget> widgets = IntStream.range(0, 5000)
+                .mapToObj(i -> Widget.builder().zIndex(i).x(i % 7).y(i % 11).width(i % 5 + 1).height(i % 3 + 1).build())
+                .collect(Collectors.toList());
+
+        widgets.forEach(tree::add);
+        tree.validate(5000);
+
+        // fanout is at least 2 on every level, root excluded
+        assertThat(tree.height()).isLessThanOrEqualTo(14);
+        assertThat(tree.find(new MBRectangle(0, 0, 11, 14))).hasSize(5000);
+
+        widgets.subList(0, 4000).forEach(tree::delete);
+        tree.validate(1000);
+        assertThat(tree.find(new MBRectangle(0, 0, 11, 14))).containsExactlyInAnyOrderElementsOf(widgets.subList(4000, 5000));
+    }
+
+    @Test
+    public void fillLimitsAreChecked() {
+        assertThatThrownBy(() -> new RTree<>(0, 10, Shape.WIDGET)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new RTree<>(6, 10, Shape.WIDGET)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void bulkLoadedIndexWorksRoughly() {
+        List<Widget> widgets = generateWidgets(20000);
+        RTree<Widget> tree = RTree.bulkLoad(widgets, Shape.WIDGET);
+        tree.validate(20000);
+
+        int[] a = RANDOM.ints(0, widgets.size()).limit(20).toArray();
+        int[] b = RANDOM.ints(0, widgets.size()).limit(20).toArray();
+
+        for(int i : a) {
+            for(int j : b) {
+                checkBothFound(widgets.get(i), widgets.get(j), tree);
+            }
+        }
+    }
+
+    @Test
+    public void bulkLoadedIndexAcceptsFurtherChanges() {
+        List<Widget> widgets = generateWidgets(1000);
+        RTree<Widget> tree = RTree.bulkLoad(widgets.subList(0, 500), Shape.WIDGET);
+
+        widgets.subList(500, 1000).forEach(tree::add);
+        widgets.subList(0, 250).forEach(tree::delete);
+        tree.validate(750);
+
+        assertThat(tree.find(new MBRectangle(-1 * EXTENT, -1 * EXTENT,
+                EXTENT + MAX_WH, EXTENT + MAX_WH))).containsExactlyInAnyOrderElementsOf(widgets.subList(250, 1000));
+    }
+
+    @Test
+    public void bulkLoadOfNothingGivesEmptyIndex() {
+        RTree<Widget> tree = RTree.bulkLoad(List.of(), Shape.WIDGET);
+
+        assertThat(tree.size()).isZero();
+        assertThat(tree.find(new MBRectangle(-1 * EXTENT, -1 * EXTENT,
+                EXTENT + MAX_WH, EXTENT + MAX_WH))).isEmpty();
+    }
+
+    @Test
+    public void searchVisitsExactlyContainedWidgets() {
+        List<Widget> widgets = generateWidgets(3000);
+        RTree<Widget> tree = new RTree<>(Shape.WIDGET);
+        widgets.forEach(tree::add);
+
+        for (int i = 0; i < 50; i++) {
+            int x = RANDOM.nextInt(2 * EXTENT) - EXTENT;
+            int y = RANDOM.nextInt(2 * EXTENT) - EXTENT;
+            MBRectangle query = new MBRectangle(x, y, x + RANDOM.nextInt(EXTENT), y + RANDOM.nextInt(EXTENT));
+
+            List<Widget> visited = new ArrayList<>();
+            tree.search(query.getX1(), query.getY1(), query.getX2(), query.getY2(), visited::add);
+
+            assertThat(visited).containsExactlyInAnyOrderElementsOf(widgets.stream()
+                    .filter(w -> query.contains(MBRectangle.from(w)))
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void countMatchesNumberOfContainedWidgets() {
+        List<Widget> widgets = generateWidgets(3000);
+        RTree<Widget> tree = new RTree<>(Shape.WIDGET);
+        widgets.forEach(tree::add);
+        widgets.subList(0, 1000).forEach(tree::delete);
+        List<Widget> left = widgets.subList(1000, widgets.size());
+        tree.validate(left.size());
+
+        for (int i = 0; i < 50; i++) {
+            int x = RANDOM.nextInt(2 * EXTENT) - EXTENT;
+            int y = RANDOM.nextInt(2 * EXTENT) - EXTENT;
+            MBRectangle query = new MBRectangle(x, y, x + RANDOM.nextInt(2 * EXTENT), y + RANDOM.nextInt(2 * EXTENT));
+
+            assertThat(tree.count(query)).isEqualTo(left.stream()
+                    .filter(w -> query.contains(MBRectangle.from(w)))
+                    .count());
+        }
+        assertThat(tree.count(new MBRectangle(-EXTENT, -EXTENT, EXTENT + MAX_WH, EXTENT + MAX_WH)))
+                .isEqualTo(left.size());
+    }
+
+    @Test
+    public void searchOrderedByZIndexGivesTopAndBottomMostWidgets() {
+        List<Widget> widgets = generateWidgets(3000);
+        RTree<Widget> tree = new RTree<>(Shape.WIDGET);
+        widgets.forEach(tree::add);
+
+        for (int i = 0; i < 50; i++) {
+            int x = RANDOM.nextInt(2 * EXTENT) - EXTENT;
+            int y = RANDOM.nextInt(2 * EXTENT) - EXTENT;
+            MBRectangle query = new MBRectangle(x, y, x + RANDOM.nextInt(2 * EXTENT), y + RANDOM.nextInt(2 * EXTENT));
+            List<Widget> expected = widgets.stream()
+                    .filter(w -> query.contains(MBRectangle.from(w)))
+                    .sorted(Comparator.comparing(Widget::getZIndex))
+                    .collect(Collectors.toList());
+
+            List<Widget> bottomMost = new ArrayList<>();
+            tree.searchOrderedByZIndex(query, false, 10, bottomMost::add);
+            assertThat(bottomMost).containsExactlyElementsOf(expected.subList(0, Math.min(10, expected.size())));
+
+            List<Widget> topMost = new ArrayList<>();
+            tree.searchOrderedByZIndex(query, true, Integer.MAX_VALUE, topMost::add);
+            Collections.reverse(expected);
+            assertThat(topMost).containsExactlyElementsOf(expected);
+        }
+    }
+
+    @Test
+    public void searchAtPointGivesCoveringWidgetsTopMostFirst() {
+        List<Widget> widgets = generateWidgets(3000);
+        RTree<Widget> tree = new RTree<>(Shape.WIDGET);
+        widgets.forEach(tree::add);
+
+        for (int i = 0; i < 50; i++) {
+            int x = RANDOM.nextInt(2 * EXTENT) - EXTENT;
+            int y = RANDOM.nextInt(2 * EXTENT) - EXTENT;
+            List<Widget> expected = widgets.stream()
+                    .filter(w -> MBRectangle.from(w).containsPoint(x, y))
+                    .sorted(Comparator.comparing(Widget::getZIndex).reversed())
+                    .limit(5)
+                    .collect(Collectors.toList());
+
+            List<Widget> found = new ArrayList<>();
+            tree.searchAtPointOrderedByZIndex(x, y, true, 5, found::add);
+            assertThat(found).containsExactlyElementsOf(expected);
+        }
+    }
+
+    @Test
+    public void searchNearestGivesClosestWidgetsFirst() {
+        List<Widget> widgets = generateWidgets(3000);
+        RTree<Widget> tree = new RTree<>(Shape.WIDGET);
+        widgets.forEach(tree::add);
+
+        for (int i = 0; i < 50; i++) {
+            int x = RANDOM.nextInt(4 * EXTENT) - 2 * EXTENT;
+            int y = RANDOM.nextInt(4 * EXTENT) - 2 * EXTENT;
+            List<Double> expected = widgets.stream()
+                    .map(w -> distance(w, x, y))
+                    .sorted()
+                    .limit(7)
+                    .collect(Collectors.toList());
+
+            List<Widget> found = new ArrayList<>();
+            tree.searchNearest(x, y, 7, found::add);
+            assertThat(found.stream().map(w -> distance(w, x, y))).containsExactlyElementsOf(expected);
+        }
+    }
+
+    private static double distance(Widget w, int x, int y) {
+        double dx = Math.max(0, Math.max(w.getX() - x, x - w.getX() - w.getWidth()));
+        double dy = Math.max(0, Math.max(w.getY() - y, y - w.getY() - w.getHeight()));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    @Test
+    public void zIndexChangesAreSeenAfterRefresh() {
+        List<Widget> widgets = generateWidgets(1000);
+        RTree<Widget> tree = new RTree<>(Shape.WIDGET);
+        widgets.forEach(tree::add);
+
+        Widget widget = widgets.get(RANDOM.nextInt(widgets.size()));
+        widget.setZIndex(Integer.MAX_VALUE);
+        tree.refreshOrder(widget);
+        tree.validate(1000);
+
+        List<Widget> topMost = new ArrayList<>();
+        tree.searchOrderedByZIndex(new MBRectangle(-1 * EXTENT, -1 * EXTENT, EXTENT + MAX_WH, EXTENT + MAX_WH),
+                true, 1, topMost::add);
+        assertThat(topMost).containsExactly(widget);
+    }
+
+    @Test
+    public void searchInEmptyTreeVisitsNothing() {
+        List<Widget> visited = new ArrayList<>();
+        new RTree<>(Shape.WIDGET).search(new MBRectangle(-EXTENT, -EXTENT, EXTENT, EXTENT), visited::add);
+
+        assertThat(visited).isEmpty();
+    }
+
     @Test
     public void indexWorksWithOneElement() {
-        RTree tree = new RTree();
+        RTree<Widget> tree = new RTree<>(Shape.WIDGET);
         Widget widget = generateWidget();
 
         tree.add(widget);
@@ -65,7 +275,7 @@ class RTreeTest {
 
     @Test
     public void removalWorks() {
-        RTree tree = new RTree();
+        RTree<Widget> tree = new RTree<>(Shape.WIDGET);
         Widget widget = generateWidget();
 
         tree.add(widget);
@@ -75,7 +285,129 @@ class RTreeTest {
                 EXTENT + MAX_WH, EXTENT + MAX_WH))).isEmpty();
     }
 
-    private void checkBothFound(Widget a, Widget b, RTree tree) {
+    @Test
+    public void treeIsCondensedWhenWidgetsAreRemoved() {
+        RTree<Widget> tree = new RTree<>(2, 6, Shape.WIDGET);
+        List<Widget> widgets = generateWidgets(2000);
+        widgets.forEach(tree::add);
+        int fullHeight = tree.height();
+
+        Collections.shuffle(widgets, RANDOM);
+        for (int i = 0; i < 1990; i++) {
+            tree.delete(widgets.get(i));
+            if (i % 100 == 0) {
+                tree.validate(widgets.size() - i - 1);
+            }
+        }
+        tree.validate(10);
+
+        assertThat(tree.height()).isLessThan(fullHeight);
+        assertThat(tree.find(new MBRectangle(-1 * EXTENT, -1 * EXTENT,
+                EXTENT + MAX_WH, EXTENT + MAX_WH))).containsExactlyInAnyOrderElementsOf(widgets.subList(1990, 2000));
+    }
+
+    @Test
+    public void removalOfNotIndexedWidgetChangesNothing() {
+        RTree<Widget> tree = new RTree<>(Shape.WIDGET);
+        Widget widget = generateWidget();
+        tree.add(widget);
+
+        tree.delete(widget.withId(UUID.randomUUID()));
+        tree.delete(generateWidget());
+
+        tree.validate(1);
+    }
+
+    @Test
+    public void updatedWidgetsAreFoundOnNewPlace() {
+        RTree<Widget> tree = new RTree<>(2, 6, Shape.WIDGET);
+        List<Widget> widgets = generateWidgets(1000);
+        widgets.forEach(tree::add);
+
+        List<Widget> updated = new ArrayList<>();
+        for (int i = 0; i < widgets.size(); i++) {
+            Widget old = widgets.get(i);
+            // small moves stay in their leaves, every third widget jumps far away
+            Widget moved = i % 3 == 0
+                    ? old.withX(-old.getX()).withY(-old.getY())
+                    : old.withX(old.getX() + RANDOM.nextInt(11) - 5).withZIndex(RANDOM.nextInt());
+            tree.update(old, moved);
+            updated.add(moved);
+        }
+        tree.validate(1000);
+
+        for (int i = 0; i < 50; i++) {
+            int x = RANDOM.nextInt(2 * EXTENT) - EXTENT;
+            int y = RANDOM.nextInt(2 * EXTENT) - EXTENT;
+            MBRectangle query = new MBRectangle(x, y, x + RANDOM.nextInt(EXTENT), y + RANDOM.nextInt(EXTENT));
+
+            assertThat(tree.find(query)).containsExactlyInAnyOrderElementsOf(updated.stream()
+                    .filter(w -> query.contains(MBRectangle.from(w)))
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void widgetChangedInPlaceIsUpdated() {
+        RTree<Widget> tree = new RTree<>(Shape.WIDGET);
+        Widget widget = generateWidget();
+        tree.add(widget);
+
+        widget.setX(widget.getX() + 1);
+        tree.update(widget, widget);
+        tree.validate(1);
+
+        Widget notIndexed = generateWidget();
+        tree.update(notIndexed, notIndexed);
+        tree.validate(2);
+    }
+
+    @Test
+    public void snapshotsDoNotSeeLaterChanges() {
+        RTree<Widget> tree = new RTree<>(2, 6, Shape.WIDGET);
+        List<Widget> widgets = generateWidgets(1000);
+        MBRectangle everything = new MBRectangle(-EXTENT, -EXTENT, 2 * EXTENT + MAX_WH, 2 * EXTENT + MAX_WH);
+
+        List<RTree<Widget>> snapshots = new ArrayList<>();
+        List<List<Widget>> expected = new ArrayList<>();
+        List<Widget> current = new ArrayList<>();
+        for (int i = 0; i < widgets.size(); i++) {
+            tree.add(widgets.get(i));
+            current.add(widgets.get(i));
+            if (i % 3 == 0) {
+                Widget moved = current.get(i / 2).withX(current.get(i / 2).getX() + EXTENT);
+                tree.update(current.get(i / 2), moved);
+                current.set(i / 2, moved);
+            }
+            if (i % 5 == 0) {
+                tree.delete(current.remove(RANDOM.nextInt(current.size())));
+            }
+            if (i % 7 == 0) {
+                snapshots.add(tree.snapshot());
+                expected.add(new ArrayList<>(current));
+            }
+        }
+        tree.validate(current.size());
+
+        assertThat(tree.find(everything)).containsExactlyInAnyOrderElementsOf(current);
+        for (int i = 0; i < snapshots.size(); i++) {
+            assertThat(snapshots.get(i).size()).isEqualTo(expected.get(i).size());
+            assertThat(snapshots.get(i).find(everything)).containsExactlyInAnyOrderElementsOf(expected.get(i));
+        }
+    }
+
+    @Test
+    public void snapshotCanNotBeChanged() {
+        RTree<Widget> snapshot = new RTree<>(Shape.WIDGET).snapshot();
+        Widget widget = generateWidget();
+
+        assertThatThrownBy(() -> snapshot.add(widget)).isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> snapshot.delete(widget)).isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> snapshot.update(widget, widget)).isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(snapshot::clear).isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    private void checkBothFound(Widget a, Widget b, RTree<Widget> tree) {
         MBRectangle query = MBRectangle.from(a).append(MBRectangle.from(b));
 
         final List<Widget> actual = tree.find(query);
@@ -0,0 +1,108 @@
+package ua.kiev.tinedel.widget.widgetservice.services;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.repositories.DataStoreException;
+import ua.kiev.tinedel.widget.widgetservice.repositories.InMemoryWidgetRepository;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static ua.kiev.tinedel.widget.widgetservice.utils.DataGenerator.buildWidget;
+
+class PipelinedWriteExecutorTest {
+
+    @Test
+    @SneakyThrows
+    void concurrentWritesAreAllApplied_andSeenByTheirWriters() {
+        InMemoryWidgetRepository repository = new InMemoryWidgetRepository();
+        PipelinedWriteExecutor writes = new PipelinedWriteExecutor(repository, 16, 4);
+        WidgetService service = new WidgetService(repository, writes, new SearchCache(16));
+
+        List<CompletableFuture<Boolean>> futures = IntStream.range(0, 200)
+                .mapToObj(i -> CompletableFuture.supplyAsync(() -> {
+                    Widget saved = service.save(buildWidget(null).setZIndex(i % 10));
+                    return service.getById(saved.getId()).isPresent();
+                }))
+                .collect(Collectors.toList());
+
+        for (CompletableFuture<Boolean> future : futures) {
+            assertThat(future.get()).isTrue();
+        }
+        assertThat(service.findAll(300, 0)).hasSize(200);
+        writes.stop();
+    }
+
+    @Test
+    @SneakyThrows
+    void failedChangeThrowsToItsCaller_andWriterGoesOn() {
+        InMemoryWidgetRepository repository = new InMemoryWidgetRepository();
+        PipelinedWriteExecutor writes = new PipelinedWriteExecutor(repository, 16, 4);
+
+        assertThatThrownBy(() -> writes.execute(() -> {
+            throw new DataStoreException("Found another element with same zIndex");
+        })).isInstanceOf(DataStoreException.class);
+        assertThatThrownBy(() -> writes.execute(() -> {
+            throw new AssertionError("broken");
+        })).isInstanceOf(AssertionError.class);
+
+        Widget saved = writes.execute(() -> writes.execute(() -> repository.save(buildWidget(UUID.randomUUID()))));
+        assertThat(repository.getById(saved.getId())).isPresent();
+
+        writes.stop();
+        assertThatThrownBy(() -> writes.execute(() -> 1)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    @SneakyThrows
+    void whenBatchCanNotBePublished_callersGetTheFailure_andWriterGoesOn() {
+        AtomicReference<Throwable> failure = new AtomicReference<>(new DataStoreException("Write-ahead log failed"));
+        InMemoryWidgetRepository repository = new InMemoryWidgetRepository() {
+            @Override
+            @SneakyThrows
+            public void releaseWriteLock() {
+                super.releaseWriteLock();
+                if (failure.get() != null) {
+                    throw failure.get();
+                }
+            }
+        };
+        PipelinedWriteExecutor writes = new PipelinedWriteExecutor(repository, 16, 4);
+
+        // caller would wait forever if it was not completed
+        CompletableFuture<Widget> failed = CompletableFuture.supplyAsync(
+                () -> writes.execute(() -> repository.save(buildWidget(UUID.randomUUID()))));
+        assertThatThrownBy(() -> failed.get(10, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(DataStoreException.class)
+                .hasRootCauseMessage("Write-ahead log failed");
+        assertThatThrownBy(() -> writes.execute(() -> {
+            throw new IllegalArgumentException("broken");
+        })).isInstanceOf(IllegalArgumentException.class);
+
+        failure.set(new AssertionError("broken"));
+        CompletableFuture<Integer> broken = CompletableFuture.supplyAsync(() -> writes.execute(() -> 1));
+        assertThatThrownBy(() -> broken.get(10, TimeUnit.SECONDS)).hasCauseInstanceOf(AssertionError.class);
+
+        failure.set(null);
+        CompletableFuture<Integer> after = CompletableFuture.supplyAsync(() -> writes.execute(() -> 1));
+        assertThat(after.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+        writes.stop();
+    }
+
+    @Test
+    void sizesAreValidated() {
+        InMemoryWidgetRepository repository = new InMemoryWidgetRepository();
+        assertThatThrownBy(() -> new PipelinedWriteExecutor(repository, 0, 1))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new PipelinedWriteExecutor(repository, 1, 0))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,221 @@
+package ua.kiev.tinedel.widget.widgetservice.services;
+
+import org.junit.jupiter.api.Test;
+import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
+import ua.kiev.tinedel.widget.widgetservice.repositories.InMemoryWidgetRepository;
+import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static ua.kiev.tinedel.widget.widgetservice.utils.DataGenerator.buildWidget;
+
+class SearchCacheTest {
+
+    final static MBRectangle LEFT = new MBRectangle(0, 0, 100, 100);
+    final static MBRectangle RIGHT = new MBRectangle(200, 0, 300, 100);
+
+    AtomicInteger searches = new AtomicInteger();
+
+    private List<Widget> find(SearchCache cache, MBRectangle box, List<Widget> found) {
+        return cache.find(box, ZOrder.TOP_MOST_FIRST, 10, () -> {
+            searches.incrementAndGet();
+            return found;
+        });
+    }
+
+    private void changed(SearchCache cache, Consumer<SearchCache.Changes> change) {
+        SearchCache.Changes changes = cache.changes();
+        change.accept(changes);
+        changes.publish();
+    }
+
+    @Test
+    void whenSearchedAgain_cachedResultIsReturned() {
+        SearchCache cache = new SearchCache(2);
+        List<Widget> found = List.of(buildWidget(UUID.randomUUID()));
+
+        assertThat(find(cache, LEFT, found)).isEqualTo(found);
+        assertThat(find(cache, LEFT, List.of())).isEqualTo(found);
+        assertThat(cache.find(LEFT, ZOrder.BOTTOM_MOST_FIRST, 10, List::of)).isEmpty();
+        assertThat(searches).hasValue(1);
+
+        // least recently used one is evicted
+        find(cache, LEFT, found);
+        find(cache, RIGHT, found);
+        find(cache, LEFT, found);
+        assertThat(searches).hasValue(2);
+        find(cache, new MBRectangle(0, 0, 1, 1), found);
+        assertThat(searches).hasValue(3);
+    }
+
+    @Test
+    void whenCachedResultsHoldTooManyWidgets_leastRecentlyUsedOnesAreEvicted() {
+        SearchCache cache = new SearchCache(16, 3);
+        List<Widget> two = List.of(buildWidget(UUID.randomUUID()), buildWidget(UUID.randomUUID()));
+        List<Widget> one = List.of(buildWidget(UUID.randomUUID()));
+
+        find(cache, LEFT, two);
+        find(cache, RIGHT, one);
+        find(cache, LEFT, two);
+        assertThat(searches).hasValue(2);
+
+        // right one is evicted, as the left one was used after it
+        find(cache, new MBRectangle(0, 0, 1, 1), one);
+        find(cache, LEFT, two);
+        assertThat(searches).hasValue(3);
+        find(cache, RIGHT, one);
+        assertThat(searches).hasValue(4);
+
+        // too large to be cached at all
+        List<Widget> four = List.of(buildWidget(UUID.randomUUID()), buildWidget(UUID.randomUUID()),
+                buildWidget(UUID.randomUUID()), buildWidget(UUID.randomUUID()));
+        assertThat(find(cache, new MBRectangle(0, 0, 500, 500), four)).isEqualTo(four);
+        assertThat(find(cache, new MBRectangle(0, 0, 500, 500), four)).isEqualTo(four);
+        assertThat(searches).hasValue(6);
+        find(cache, RIGHT, one);
+        assertThat(searches).hasValue(6);
+    }
+
+    @Test
+    void cachedResultsAreFoundWhileChangesAreApplied() {
+        SearchCache cache = new SearchCache(16);
+        List<Widget> found = List.of(buildWidget(UUID.randomUUID()));
+        find(cache, LEFT, found);
+
+        // changes hold the cache while they evict touched results
+        synchronized (cache) {
+            assertThat(CompletableFuture.supplyAsync(() -> find(cache, LEFT, List.of()))
+                    .orTimeout(10, TimeUnit.SECONDS)
+                    .join()).isEqualTo(found);
+        }
+        assertThat(searches).hasValue(1);
+    }
+
+    @Test
+    void whenChanged_onlyTouchedResultsAreEvicted() {
+        SearchCache cache = new SearchCache(16);
+        Widget left = buildWidget(UUID.randomUUID()).setX(10).setY(10).setZIndex(5);
+        find(cache, LEFT, List.of(left));
+        find(cache, RIGHT, List.of());
+
+        // moved within the left box, and then into the right one
+        changed(cache, changes -> changes.saved(left.withX(20)));
+        assertThat(find(cache, RIGHT, List.of())).isEmpty();
+        assertThat(searches).hasValue(2);
+        assertThat(find(cache, LEFT, List.of(left.withX(20)))).containsExactly(left.withX(20));
+        changed(cache, changes -> changes.saved(left.withX(210)));
+        assertThat(find(cache, LEFT, List.of())).isEmpty();
+        assertThat(find(cache, RIGHT, List.of(left.withX(210)))).hasSize(1);
+        assertThat(searches).hasValue(5);
+
+        // partially overlapping widget is not found in the box, so it does not touch the result
+        changed(cache, changes -> changes.saved(buildWidget(UUID.randomUUID()).setX(95).setY(95)));
+        changed(cache, changes -> changes.deleted(UUID.randomUUID()));
+        changed(cache, changes -> changes.shifted(6));
+        find(cache, LEFT, List.of());
+        find(cache, RIGHT, List.of());
+        assertThat(searches).hasValue(5);
+
+        changed(cache, changes -> changes.shifted(5));
+        find(cache, LEFT, List.of());
+        assertThat(searches).hasValue(5);
+        find(cache, RIGHT, List.of());
+        assertThat(searches).hasValue(6);
+
+        changed(cache, changes -> changes.deleted(left.getId()));
+        cache.clear();
+        find(cache, LEFT, List.of());
+        assertThat(searches).hasValue(7);
+    }
+
+    @Test
+    void whenChangedDuringSearch_resultIsNotCached() {
+        SearchCache cache = new SearchCache(16);
+        Widget widget = buildWidget(UUID.randomUUID()).setX(10).setY(10);
+
+        cache.find(LEFT, ZOrder.TOP_MOST_FIRST, 10, () -> {
+            changed(cache, changes -> changes.saved(widget));
+            return List.of();
+        });
+        cache.find(RIGHT, ZOrder.TOP_MOST_FIRST, 10, () -> {
+            changed(cache, changes -> changes.saved(widget));
+            return List.of();
+        });
+        find(cache, LEFT, List.of(widget));
+        find(cache, RIGHT, List.of());
+        assertThat(searches).hasValue(1);
+    }
+
+    @Test
+    void whenServiceChangesWidgets_searchesSeeTheChanges() {
+        WidgetService service = new WidgetService(new InMemoryWidgetRepository(), new DirectWriteExecutor(),
+                new SearchCache(16));
+        Widget first = service.save(buildWidget(null).setX(10).setY(10).setZIndex(1));
+        Widget second = service.save(buildWidget(null).setX(210).setY(10).setZIndex(2));
+        assertThat(service.findInBoundingBox(LEFT, ZOrder.TOP_MOST_FIRST, 10)).containsExactly(first);
+        assertThat(service.findInBoundingBox(RIGHT, ZOrder.TOP_MOST_FIRST, 10)).containsExactly(second);
+
+        Widget shifting = service.save(buildWidget(null).setX(230).setY(10).setZIndex(1));
+        assertThat(service.findInBoundingBox(LEFT, ZOrder.TOP_MOST_FIRST, 10)).extracting(Widget::getZIndex)
+                .containsExactly(2);
+        assertThat(service.findInBoundingBox(RIGHT, ZOrder.TOP_MOST_FIRST, 10)).extracting(Widget::getId)
+                .containsExactly(second.getId(), shifting.getId());
+
+        service.save(service.getById(second.getId()).orElseThrow().withX(10));
+        service.deleteById(shifting.getId());
+        assertThat(service.findInBoundingBox(LEFT, ZOrder.TOP_MOST_FIRST, 10)).extracting(Widget::getId)
+                .containsExactly(second.getId(), first.getId());
+        assertThat(service.findInBoundingBox(RIGHT, ZOrder.TOP_MOST_FIRST, 10)).isEmpty();
+    }
+
+    @Test
+    void whenSearchedBeforeChangeIsVisible_staleResultIsNotKept() {
+        InMemoryWidgetRepository repository = new InMemoryWidgetRepository();
+        List<List<Widget>> seenBeforeRelease = new ArrayList<>();
+        AtomicReference<WidgetService> service = new AtomicReference<>();
+        // searches from another thread after the change is made, but before the repository publishes it
+        WriteExecutor searchingBeforeRelease = new WriteExecutor() {
+            @Override
+            public <T> T execute(Supplier<T> change) {
+                try {
+                    repository.acquireWriteLock();
+                    T result = change.get();
+                    seenBeforeRelease.add(CompletableFuture
+                            .supplyAsync(() -> service.get().findInBoundingBox(LEFT, ZOrder.TOP_MOST_FIRST, 10))
+                            .orTimeout(10, TimeUnit.SECONDS)
+                            .join());
+                    return result;
+                } finally {
+                    repository.releaseWriteLock();
+                }
+            }
+        };
+        service.set(new WidgetService(repository, searchingBeforeRelease, new SearchCache(16)));
+
+        Widget saved = service.get().save(buildWidget(null).setX(10).setY(10));
+        assertThat(seenBeforeRelease).containsExactly(List.of());
+        assertThat(service.get().findInBoundingBox(LEFT, ZOrder.TOP_MOST_FIRST, 10)).containsExactly(saved);
+
+        service.get().deleteById(saved.getId());
+        assertThat(seenBeforeRelease).hasSize(2).last().isEqualTo(List.of(saved));
+        assertThat(service.get().findInBoundingBox(LEFT, ZOrder.TOP_MOST_FIRST, 10)).isEmpty();
+    }
+
+    @Test
+    void sizeIsValidated() {
+        assertThatThrownBy(() -> new SearchCache(-1)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new SearchCache(1, -1)).isInstanceOf(IllegalArgumentException.class);
+        assertThat(new SearchCache(0).find(LEFT, ZOrder.TOP_MOST_FIRST, 1, List::of)).isEmpty();
+    }
+}
@@ -6,9 +6,15 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import ua.kiev.tinedel.widget.widgetservice.models.Widget;
+import ua.kiev.tinedel.widget.widgetservice.models.WidgetBatch;
+import ua.kiev.tinedel.widget.widgetservice.models.ZOrder;
+import ua.kiev.tinedel.widget.widgetservice.repositories.DataStoreException;
+import ua.kiev.tinedel.widget.widgetservice.repositories.InMemoryWidgetRepository;
 import ua.kiev.tinedel.widget.widgetservice.repositories.WidgetRepository;
+import ua.kiev.tinedel.widget.widgetservice.rtree.MBRectangle;
 
 import java.util.Arrays;
 import java.util.List;
@@ -17,6 +23,7 @@ import java.util.UUID;
 import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.Mockito.*;
 import static ua.kiev.tinedel.widget.widgetservice.utils.DataGenerator.buildWidget;
 
@@ -28,6 +35,12 @@ class WidgetServiceTest {
     @Mock
     WidgetRepository repository;
 
+    @Spy
+    WriteExecutor writes = new DirectWriteExecutor();
+
+    @Spy
+    SearchCache searchCache = new SearchCache(16);
+
     @InjectMocks
     WidgetService service;
 
@@ -44,7 +57,10 @@ class WidgetServiceTest {
         assertThat(res).isEqualTo(toSave);
         assertThat(res.getLastModifiedDate()).isNotEqualTo(toSave.getLastModifiedDate());
 
+        verify(repository).update(eq(toSave));
+        verify(repository).saveIfZIndexFree(eq(toSave));
         verify(repository).acquireWriteLock();
+        verify(repository).getById(toSave.getId());
         verify(repository).deleteById(toSave.getId());
         verify(repository).findByZIndex(10);
         verify(repository).updateZIndexToMakeSpaceFor(10);
@@ -67,7 +83,10 @@ class WidgetServiceTest {
 
         assertThat(res).isSameAs(saved);
 
+        verify(repository).update(eq(toSave));
+        verify(repository).saveIfZIndexFree(eq(toSave));
         verify(repository).acquireWriteLock();
+        verify(repository).getById(toSave.getId());
         verify(repository).deleteById(toSave.getId());
         verify(repository).findByZIndex(10);
         verify(repository).save(toSave);
@@ -88,7 +107,10 @@ class WidgetServiceTest {
 
         assertThat(res).isSameAs(saved);
 
+        verify(repository).update(eq(toSave));
+        verify(repository).saveIfZIndexFree(eq(toSave));
         verify(repository).acquireWriteLock();
+        verify(repository).getById(toSave.getId());
         verify(repository).deleteById(toSave.getId());
         verify(repository).findByZIndex(10);
         verify(repository).save(toSave);
@@ -97,6 +119,104 @@ class WidgetServiceTest {
         verifyNoMoreInteractions(repository);
     }
 
+    @Test
+    void whenSave_sameZIndex_widgetIsUpdatedWithoutWriteLock() {
+        Widget toSave = buildWidget(UUID.randomUUID()).setZIndex(10).setX(5);
+
+        when(repository.update(eq(toSave))).thenAnswer(inv -> Optional.of(inv.getArgument(0, Widget.class)));
+
+        Widget res = service.save(toSave);
+
+        assertThat(res).isEqualTo(toSave);
+        assertThat(res.getLastModifiedDate()).isNotEqualTo(toSave.getLastModifiedDate());
+
+        verify(repository).update(eq(toSave));
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test
+    void whenSave_freeZIndex_widgetIsSavedWithoutWriteLock() {
+        Widget toSave = buildWidget(null).setZIndex(10);
+
+        when(repository.saveIfZIndexFree(eq(toSave))).thenAnswer(inv -> Optional.of(inv.getArgument(0, Widget.class)));
+
+        assertThat(service.save(toSave)).isEqualTo(toSave);
+
+        verify(repository).saveIfZIndexFree(eq(toSave));
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test
+    void whenSave_changedZIndex_widgetIsReplaced() {
+        Widget toSave = buildWidget(UUID.randomUUID()).setZIndex(10);
+
+        when(repository.update(eq(toSave))).thenReturn(Optional.empty());
+        when(repository.findByZIndex(10)).thenReturn(Optional.empty());
+        when(repository.save(eq(toSave))).thenAnswer(inv -> inv.getArgument(0, Widget.class));
+
+        assertThat(service.save(toSave)).isEqualTo(toSave);
+
+        verify(repository).deleteById(toSave.getId());
+        verify(repository).save(eq(toSave));
+    }
+
+    @Test
+    void whenBatchIsApplied_writeLockIsTakenOnce_andFinalStateIsReturned() {
+        UUID deleted = UUID.randomUUID();
+        Widget updated = buildWidget(UUID.randomUUID()).setZIndex(1);
+        Widget created = buildWidget(null).setZIndex(1);
+        Widget shifted = updated.withZIndex(2);
+        Widget saved = created.withId(UUID.randomUUID());
+
+        when(repository.update(eq(updated))).thenAnswer(inv -> Optional.of(inv.getArgument(0, Widget.class)));
+        when(repository.findByZIndex(1)).thenReturn(Optional.of(updated));
+        when(repository.save(eq(created))).thenReturn(saved);
+        when(repository.getById(updated.getId())).thenReturn(Optional.of(shifted));
+        when(repository.getById(saved.getId())).thenReturn(Optional.of(saved));
+        when(repository.getById(deleted)).thenReturn(Optional.empty());
+
+        List<Widget> res = service.applyBatch(new WidgetBatch()
+                .setDelete(List.of(deleted))
+                .setUpdate(List.of(updated))
+                .setCreate(List.of(created)));
+
+        assertThat(res).containsExactly(shifted, saved);
+
+        verify(repository, times(1)).acquireWriteLock();
+        verify(repository).deleteById(deleted);
+        verify(repository).updateZIndexToMakeSpaceFor(1);
+        verify(repository, times(1)).releaseWriteLock();
+    }
+
+    @Test
+    void whenBatchItemFails_itemsAppliedBeforeItAreUndone() {
+        InMemoryWidgetRepository failing = new InMemoryWidgetRepository() {
+            @Override
+            public Widget save(Widget widget) {
+                if (widget.getX() == 666) {
+                    throw new DataStoreException("broken");
+                }
+                return super.save(widget);
+            }
+        };
+        WidgetService real = new WidgetService(failing, new DirectWriteExecutor(), new SearchCache(16));
+        Widget first = failing.save(buildWidget(UUID.randomUUID()).setZIndex(1));
+        failing.save(buildWidget(UUID.randomUUID()).setZIndex(2));
+        Widget third = failing.save(buildWidget(UUID.randomUUID()).setZIndex(3));
+        Widget deleted = failing.save(buildWidget(UUID.randomUUID()).setZIndex(5));
+        List<Widget> before = failing.findAllOrderByZIndexAsc(0, 100);
+
+        assertThatThrownBy(() -> real.applyBatch(new WidgetBatch()
+                .setDelete(List.of(deleted.getId()))
+                .setUpdate(List.of(first.withX(7), third.withZIndex(1)))
+                .setCreate(List.of(buildWidget(null).setZIndex(2), buildWidget(null).setZIndex(1).setX(666)))))
+                .isInstanceOf(DataStoreException.class)
+                .hasMessage("broken");
+
+        assertThat(failing.findAllOrderByZIndexAsc(0, 100)).isEqualTo(before);
+        assertThat(real.findAll(100, 0)).isEqualTo(before);
+    }
+
     @Test
     void whenGetById_repositoryIsCalled() {
         UUID id = UUID.randomUUID();
@@ -120,6 +240,98 @@ class WidgetServiceTest {
             verify(repository, only()).findAllOrderByZIndexAsc(24, 12);
     }
 
+    @Test
+    void whenFindInBoundingBox_repositoryIsCalled() {
+        List<Widget> widgets = Arrays.stream(new int[] {3,2,1})
+                .mapToObj(zIndex -> buildWidget(UUID.randomUUID()).setZIndex(zIndex))
+                .collect(Collectors.toList());
+        MBRectangle box = new MBRectangle(0, 0, 10, 10);
+
+        when(repository.findAllInAreaOrderByZIndex(box, ZOrder.TOP_MOST_FIRST, 3)).thenReturn(widgets);
+
+        assertThat(service.findInBoundingBox(box, ZOrder.TOP_MOST_FIRST, 3)).isEqualTo(widgets);
+
+        verify(repository, only()).findAllInAreaOrderByZIndex(box, ZOrder.TOP_MOST_FIRST, 3);
+    }
+
+    @Test
+    void whenFindInBoundingBoxWithoutLimit_widgetsInAreaAreSorted() {
+        List<Widget> widgets = Arrays.stream(new int[] {2,3,1})
+                .mapToObj(zIndex -> buildWidget(UUID.randomUUID()).setZIndex(zIndex))
+                .collect(Collectors.toList());
+        MBRectangle box = new MBRectangle(0, 0, 10, 10);
+
+        when(repository.findAllInArea(box)).thenReturn(widgets);
+
+        assertThat(service.findInBoundingBox(box, ZOrder.TOP_MOST_FIRST, WidgetService.NO_LIMIT))
+                .extracting(Widget::getZIndex).containsExactly(3, 2, 1);
+
+        verify(repository, only()).findAllInArea(box);
+    }
+
+    @Test
+    void whenFindAfterZIndex_repositoryIsCalled() {
+        List<Widget> widgets = Arrays.stream(new int[] {3,2,1})
+                .mapToObj(zIndex -> buildWidget(UUID.randomUUID()).setZIndex(zIndex))
+                .collect(Collectors.toList());
+        MBRectangle box = new MBRectangle(0, 0, 10, 10);
+
+        when(repository.findAllAfterZIndexOrderByZIndexAsc(5, 3)).thenReturn(widgets);
+        when(repository.findAllInAreaOrderByZIndexAfter(box, ZOrder.TOP_MOST_FIRST, 4, 3)).thenReturn(widgets);
+
+        assertThat(service.findAllAfter(5, 3)).isEqualTo(widgets);
+        assertThat(service.findInBoundingBoxAfter(box, ZOrder.TOP_MOST_FIRST, 4, 3)).isEqualTo(widgets);
+    }
+
+    @Test
+    void whenFindAfterWidget_itsCurrentZIndexIsUsed() {
+        List<Widget> widgets = List.of(buildWidget(UUID.randomUUID()).setZIndex(3));
+        Widget shifted = buildWidget(UUID.randomUUID()).setZIndex(5);
+        MBRectangle box = new MBRectangle(0, 0, 10, 10);
+
+        when(repository.getById(shifted.getId())).thenReturn(Optional.of(shifted));
+        when(repository.findAllInAreaOrderByZIndexAfter(box, ZOrder.TOP_MOST_FIRST, 5, 3)).thenReturn(widgets);
+        when(repository.findAllInAreaOrderByZIndexAfter(box, ZOrder.TOP_MOST_FIRST, 4, 3)).thenReturn(List.of());
+
+        assertThat(service.findInBoundingBoxAfter(box, ZOrder.TOP_MOST_FIRST, shifted.getId(), 4, 3))
+                .isEqualTo(widgets);
+        // deleted one is resumed from where it was
+        assertThat(service.findInBoundingBoxAfter(box, ZOrder.TOP_MOST_FIRST, UUID.randomUUID(), 4, 3)).isEmpty();
+    }
+
+    @Test
+    void whenFindAtPoint_repositoryIsCalled() {
+        List<Widget> widgets = List.of(buildWidget(UUID.randomUUID()));
+
+        when(repository.findAllAtPointOrderByZIndexDesc(1, 2, 3)).thenReturn(widgets);
+
+        assertThat(service.findAtPoint(1, 2, 3)).isEqualTo(widgets);
+
+        verify(repository, only()).findAllAtPointOrderByZIndexDesc(1, 2, 3);
+    }
+
+    @Test
+    void whenFindNearest_repositoryIsCalled() {
+        List<Widget> widgets = List.of(buildWidget(UUID.randomUUID()));
+
+        when(repository.findNearest(1, 2, 3)).thenReturn(widgets);
+
+        assertThat(service.findNearest(1, 2, 3)).isEqualTo(widgets);
+
+        verify(repository, only()).findNearest(1, 2, 3);
+    }
+
+    @Test
+    void whenCountInBoundingBox_repositoryIsCalled() {
+        MBRectangle boundingBox = new MBRectangle(0, 0, 10, 10);
+
+        when(repository.countInArea(boundingBox)).thenReturn(42);
+
+        assertThat(service.countInBoundingBox(boundingBox)).isEqualTo(42);
+
+        verify(repository, only()).countInArea(boundingBox);
+    }
+
     @Test
     void whenDelete_repositoryIsCalled() {
         UUID id = UUID.randomUUID();